@@ -24,20 +24,27 @@ typedef unsigned char 	BYTE;
 typedef unsigned short 	WORD;
 typedef unsigned int	DWORD;
 typedef float 		FLOAT;
+typedef long long	INT64;		/* stack lengths passed through JNA as Java longs */
 typedef struct {float re, im; }	FCOMPLEX;
 
 #define FALSE	0
 #define TRUE	(!FALSE)
 
-///* deconvolution methods */
-//#define METHOD_UNDEFINED	0
-//#define METHOD_LLS		1
-//#define METHOD_MAP		2
-//#define METHOD_EM		3
+/* deconvolution methods */
+#define METHOD_UNDEFINED	0
+#define METHOD_LLS		1
+#define METHOD_MAP		2
+#define METHOD_EM		3
 //#define METHOD_IDIV		4
 //#define METHOD_WLS		5
 //#define METHOD_WCAR		6
 //#define METHOD_BLIND		7
+#define METHOD_AEM		8	/* accelerated EM */
+#define METHOD_SGP		9	/* scaled gradient projection */
+
+/* fill of the voxels createPaddedStack adds past the edges of a stack */
+#define PAD_MIRROR		1	/* the stack reflected at its edges */
+#define PAD_TAPER		2	/* a smooth blend from the last voxel of each line back to the first */
 //
 ///* size of file data */
 //#define DATA_SIZE_MASK			0x000f
@@ -120,6 +127,16 @@ typedef void (*ProgressFunc)(int iIteration, int nTotalIterations, double dError
 char* printProgress (char* pcBuffer, int i, int iTotal, time_t* ptStart, double dError, ProgressFunc progress);
 void writeProgressFile (char* pcBuffer, const char* pcFileName);
 
+/* work on items iStart to iEnd-1 of a pass split by runParallel */
+typedef void (*RangeFunc)(void* pvData, int iStart, int iEnd);
+
+void runParallel (RangeFunc func, void* pvData, int nItems, int nThreads);
+
+/* map a new, zeroed scratch file of cbSize bytes in the directory pcDir.
+   Returns NULL on failure. The file is deleted when it is unmapped. */
+void* mapScratchFile (const char* pcDir, size_t cbSize);
+void unmapScratchFile (void* pvData, size_t cbSize);
+
 #define SHOWMSG_MESSAGE		0
 #define SHOWMSG_WARNING		1
 #define SHOWMSG_ERROR		2
@@ -15,28 +15,264 @@
 
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
+#include <math.h>
 
 #include "deco.h"
 #include "stackdata.h"
 #include "process.h"
 
-int g_iVerbose = 1;
+CDecoContext::
+CDecoContext() {
+    m_nThreads = 1;
+    m_iVerbose = 1;
+    m_iFFTPlanFlags = FFTW_ESTIMATE;
+    m_progress = NULL;
+    m_pcProgress[0] = '\0';
+    m_dTolerance = 0.0;
+    m_nMinIterations = 0;
+    m_nPlateauWindow = 1;
+    m_nIterationsUsed = 0;
+    m_dTargetDivergence = 0.0;
+    m_nIterationsToTarget = -1;
+    m_dDivergence = 0.0;
+    m_nSnapshots = 0;
+    m_piSnapshotIterations = NULL;
+    m_ppSnapshots = NULL;
+    m_pcCheckpointFile = NULL;
+    m_nCheckpointIterations = 0;
+    m_nCheckpointSeconds = 0;
+    m_pcScratchDir = NULL;
+    m_dScratchLimit = 0.0;
+    m_nCoarseLevels = 0;
+    m_piCoarseBinning = NULL;
+    m_piCoarseIterations = NULL;
+}
+
+CDecoContext::
+~CDecoContext() {
+    delete[] m_piSnapshotIterations;
+    delete[] m_ppSnapshots;
+    delete[] m_pcCheckpointFile;
+    delete[] m_pcScratchDir;
+    delete[] m_piCoarseBinning;
+    delete[] m_piCoarseIterations;
+}
+
+CDecoContext* CDecoContext::
+getDefault() {
+    static CDecoContext s_contextDefault;
+    return &s_contextDefault;
+}
+
+BOOL CDecoContext::
+setFFTPlanMode(int iMode) {
+    switch (iMode) {
+        case FFT_PLAN_ESTIMATE:
+            m_iFFTPlanFlags = FFTW_ESTIMATE;
+            break;
+        case FFT_PLAN_MEASURE:
+            m_iFFTPlanFlags = FFTW_MEASURE;
+            break;
+        case FFT_PLAN_PATIENT:
+            m_iFFTPlanFlags = FFTW_PATIENT;
+            break;
+        default:
+            SHOW_ERROR("unknown FFT planning mode");
+            return FALSE;
+    }
+    return TRUE;
+}
+
+CDecoContext* createContext()
+{
+    return new CDecoContext();
+}
+
+BOOL destroyContext(CDecoContext* pContext)
+{
+    delete pContext;
+    return TRUE;
+}
+
+BOOL setContextNumThreads(CDecoContext* pContext, int nThreads)
+{
+    /* plans with different thread counts are cached separately, so every
+       context may use its own number of threads */
+    pContext->m_nThreads = nThreads < 1 ? 1 : nThreads;
+    return TRUE;
+}
+
+void setContextVerbose(CDecoContext* pContext, int iVerbose)
+{
+    pContext->m_iVerbose = iVerbose;
+}
+
+BOOL setContextFFTPlanMode(CDecoContext* pContext, int iMode)
+{
+    return pContext->setFFTPlanMode(iMode);
+}
+
+void setContextProgress(CDecoContext* pContext, ProgressFunc progress)
+{
+    pContext->m_progress = progress;
+}
+
+void setContextConvergence(CDecoContext* pContext, double dTolerance, int nMinIterations, int nPlateauWindow)
+{
+    /* the iteration count passed to processEM is the maximum */
+    pContext->m_dTolerance = dTolerance > 0 ? dTolerance : 0.0;
+    pContext->m_nMinIterations = nMinIterations > 0 ? nMinIterations : 0;
+    pContext->m_nPlateauWindow = nPlateauWindow > 1 ? nPlateauWindow : 1;
+}
+
+int getContextIterationsUsed(CDecoContext* pContext)
+{
+    return pContext->m_nIterationsUsed;
+}
+
+void setContextTarget(CDecoContext* pContext, double dDivergence)
+{
+    pContext->m_dTargetDivergence = dDivergence > 0 ? dDivergence : 0.0;
+}
+
+int getContextIterationsToTarget(CDecoContext* pContext)
+{
+    return pContext->m_nIterationsToTarget;
+}
+
+double getContextDivergence(CDecoContext* pContext)
+{
+    return pContext->m_dDivergence;
+}
+
+BOOL setContextCheckpoint(CDecoContext* pContext, const char* pcFileName, int nEveryIterations, int nEverySeconds)
+{
+    /* the checkpoint is kept when EM finishes, so that a stack that was
+       already done is not run again. The caller deletes it. */
+    delete[] pContext->m_pcCheckpointFile;
+    pContext->m_pcCheckpointFile = NULL;
+    pContext->m_nCheckpointIterations = nEveryIterations > 0 ? nEveryIterations : 0;
+    pContext->m_nCheckpointSeconds = nEverySeconds > 0 ? nEverySeconds : 0;
+    if (pcFileName == NULL || pcFileName[0] == '\0') {
+        return TRUE;
+    }
+    pContext->m_pcCheckpointFile = new char[strlen(pcFileName) + 1];
+    strcpy(pContext->m_pcCheckpointFile, pcFileName);
+    return TRUE;
+}
+
+BOOL setContextScratch(CDecoContext* pContext, const char* pcDir, double dLimitBytes)
+{
+    /* only the stacks that EM streams through are moved to scratch files.
+       The working stack and the OTF stay in memory for the FFTs. */
+    delete[] pContext->m_pcScratchDir;
+    pContext->m_pcScratchDir = NULL;
+    pContext->m_dScratchLimit = dLimitBytes > 0 ? dLimitBytes : 0.0;
+    if (pcDir == NULL || pcDir[0] == '\0') {
+        return TRUE;
+    }
+    pContext->m_pcScratchDir = new char[strlen(pcDir) + 1];
+    strcpy(pContext->m_pcScratchDir, pcDir);
+    return TRUE;
+}
+
+BOOL setContextCoarseLevels(CDecoContext* pContext, const int* piBinning, const int* piIterations, int nLevels)
+{
+    /* the levels run in the order given, so the binning should get smaller */
+    delete[] pContext->m_piCoarseBinning;
+    delete[] pContext->m_piCoarseIterations;
+    pContext->m_piCoarseBinning = NULL;
+    pContext->m_piCoarseIterations = NULL;
+    pContext->m_nCoarseLevels = 0;
+    if (nLevels <= 0) {
+        return TRUE;
+    }
+    for (int i = 0; i < nLevels; i++) {
+        if (piBinning[i] < 2 || piIterations[i] < 1) {
+            SHOW_ERROR("coarse levels must bin by at least 2 and run at least 1 iteration");
+            return FALSE;
+        }
+    }
+    pContext->m_piCoarseBinning = new int[nLevels];
+    pContext->m_piCoarseIterations = new int[nLevels];
+    memcpy(pContext->m_piCoarseBinning, piBinning, nLevels * sizeof (int));
+    memcpy(pContext->m_piCoarseIterations, piIterations, nLevels * sizeof (int));
+    pContext->m_nCoarseLevels = nLevels;
+    return TRUE;
+}
+
+BOOL setContextSnapshots(CDecoContext* pContext, const int* piIterations, int nSnapshots, CStackData** ppSnapshots)
+{
+    /* the lists are copied, but the stacks must stay valid until the
+       snapshots are cleared with nSnapshots = 0 */
+    delete[] pContext->m_piSnapshotIterations;
+    delete[] pContext->m_ppSnapshots;
+    pContext->m_piSnapshotIterations = NULL;
+    pContext->m_ppSnapshots = NULL;
+    pContext->m_nSnapshots = 0;
+    if (nSnapshots <= 0) {
+        return TRUE;
+    }
+    for (int i = 0; i < nSnapshots; i++) {
+        if (ppSnapshots[i] == NULL || !ppSnapshots[i]->isValid()) {
+            SHOW_ERROR("snapshot stacks must be valid");
+            return FALSE;
+        }
+    }
+    pContext->m_piSnapshotIterations = new int[nSnapshots];
+    pContext->m_ppSnapshots = new CStackData*[nSnapshots];
+    memcpy(pContext->m_piSnapshotIterations, piIterations, nSnapshots * sizeof (int));
+    memcpy(pContext->m_ppSnapshots, ppSnapshots, nSnapshots * sizeof (CStackData*));
+    pContext->m_nSnapshots = nSnapshots;
+    return TRUE;
+}
 
 BOOL setNumThreads(int nThreads)
 {
-#ifndef NOTHREADS
-    BOOL bRet = fftwf_init_threads();
-    if (!bRet) {
+    return setContextNumThreads(CDecoContext::getDefault(), nThreads);
+}
+
+void setVerbose(int iVerbose)
+{
+    setContextVerbose(CDecoContext::getDefault(), iVerbose);
+}
+
+BOOL setFFTPlanMode(int iMode, double dTimeLimit)
+{
+    if (!CDecoContext::getDefault()->setFFTPlanMode(iMode)) {
         return FALSE;
     }
-    fftwf_plan_with_nthreads(nThreads);
-#endif
-	return TRUE;
+    /* limit the time (in seconds) FFTW may spend creating a single plan. This
+       is a setting of the FFTW planner itself, so it is shared by all contexts
+       and set while no other thread is planning */
+    CFFTPlans::setTimeLimit(dTimeLimit);
+    return TRUE;
 }
 
-void setVerbose(int iVerbose)
+BOOL importFFTWisdom(const char* pcFileName)
 {
-    g_iVerbose = iVerbose;
+    /* a missing wisdom file is not an error. It is created on the first export */
+    return CFFTPlans::importWisdom(pcFileName);
+}
+
+BOOL exportFFTWisdom(const char* pcFileName)
+{
+    if (!CFFTPlans::exportWisdom(pcFileName)) {
+        SHOW_WARNING1("could not write FFT wisdom to %s", pcFileName);
+        return FALSE;
+    }
+    return TRUE;
+}
+
+void setFFTPlanCacheSize(int nMaxPlans)
+{
+    CFFTPlans::setCacheLimit(nMaxPlans);
+}
+
+void clearFFTPlanCache()
+{
+    CFFTPlans::clearCache();
 }
 
 int getStackWidth(CStackData* pStack)
@@ -54,6 +290,254 @@ int getStackDepth(CStackData* pStack)
     return pStack->m_iLogicalDepth;
 }
 
+static int getExtentOTFDepth(int iDepth, int iKeptDepth);
+
+/* bytes needed by all stacks that exist at the same time while a W x H x D
+   image is deconvolved: the stacks of the image size, plus the working
+   stacks and the OTF, which take dWorkBytes and dOTFBytes. Returns 0 for
+   unknown methods. */
+static double estimateStacks(int iMethod, int iWidth, int iHeight, int iDepth,
+        double dWorkBytes, double dOTFBytes)
+{
+    double dImageBytes = (double) CStackData::storageBytes(iWidth, iHeight, iDepth);
+    switch (iMethod) {
+        case METHOD_LLS:
+        case METHOD_MAP:
+            /* image, plus the working stack and OTF (see filterWithOTF) */
+            return dImageBytes + dWorkBytes + dOTFBytes;
+        case METHOD_EM:
+            /* image and guess, plus the working stack and OTF (see processEM) */
+            return 2 * dImageBytes + dWorkBytes + dOTFBytes;
+        case METHOD_AEM:
+            /* EM plus the previous guess and the previous change */
+            return 4 * dImageBytes + dWorkBytes + dOTFBytes;
+        case METHOD_SGP:
+            /* EM plus the projected guess, the gradient and the step */
+            return 5 * dImageBytes + dWorkBytes + dOTFBytes;
+        default:
+            SHOW_ERROR("unknown deconvolution method");
+            return 0;
+    }
+}
+
+double estimateMemory(int iMethod, int iWidth, int iHeight, int iDepth)
+{
+    /* the working stack and the OTF have twice the depth of the image */
+    double dPaddedBytes = (double) CStackData::storageBytes(iWidth, iHeight, 2 * iDepth);
+    return estimateStacks(iMethod, iWidth, iHeight, iDepth, dPaddedBytes, dPaddedBytes);
+}
+
+double estimateMemoryWithOTF(int iMethod, COTFData* pOTF, int iWidth, int iHeight, int iDepth)
+{
+    if (pOTF == NULL) {
+        return estimateMemory(iMethod, iWidth, iHeight, iDepth);
+    }
+    int iOTFDepth;
+    double dWorkBytes;
+    if (pOTF->m_bCosineZ) {
+        /* the working stack is only as deep as the image, and the odd part of
+           the convolution needs a second one (see createEMWork) */
+        iOTFDepth = iDepth;
+        dWorkBytes = (double) CStackData::storageBytes(iWidth, iHeight, iDepth);
+        if (pOTF->m_pOddZ) {
+            dWorkBytes *= 2;
+        }
+    } else {
+        /* the depth of pOTF if it is for this image, otherwise that of an OTF
+           like it for the image: padded as far as the kept planes of the psf
+           reach, or to twice the depth */
+        if (pOTF->m_iLogicalWidth == iWidth && pOTF->m_iLogicalHeight == iHeight
+                && pOTF->m_iLogicalDepth >= iDepth && pOTF->m_iLogicalDepth <= 2 * iDepth) {
+            iOTFDepth = pOTF->m_iLogicalDepth;
+        } else if (pOTF->m_iKeptDepthZ > 0) {
+            iOTFDepth = getExtentOTFDepth(iDepth, pOTF->m_iKeptDepthZ);
+        } else {
+            iOTFDepth = 2 * iDepth;
+        }
+        dWorkBytes = (double) CStackData::storageBytes(iWidth, iHeight, iOTFDepth);
+    }
+
+    /* an OTF without an imaginary part only keeps one FLOAT per FCOMPLEX (see
+       COTFData::storeRealOTF), and the odd part of a cosine form OTF is a
+       stack of its own */
+    double dOTFBytes = (double) CStackData::storageBytes(iWidth, iHeight, iOTFDepth);
+    if (pOTF->m_pfRealOTF) {
+        dOTFBytes /= 2;
+    }
+    if (pOTF->m_pOddZ) {
+        dOTFBytes += (double) CStackData::storageBytes(iWidth, iHeight, iOTFDepth);
+    }
+    return estimateStacks(iMethod, iWidth, iHeight, iDepth, dWorkBytes, dOTFBytes);
+}
+
+COTFData* createOTF(CDecoContext* pContext, CStackData* pPsf, int iWidth, int iHeight, int iDepth)
+{
+    COTFData* pOTF = new COTFData(pPsf, iWidth, iHeight, iDepth, FALSE, pContext);
+    if (pOTF->isValid()) {
+        return pOTF;
+    }
+    delete pOTF;
+    return NULL;
+}
+
+COTFData* createCosineOTF(CDecoContext* pContext, CStackData* pPsf, int iWidth, int iHeight, int iDepth)
+{
+    /* the cosine form is calculated from the OTF of the stack mirrored to
+       twice its depth, which is only needed for a moment */
+    COTFData* pMirrorOTF = createOTF(pContext, pPsf, iWidth, iHeight, 2 * iDepth);
+    if (pMirrorOTF == NULL) {
+        return NULL;
+    }
+    COTFData* pOTF = new COTFData(pMirrorOTF);
+    delete pMirrorOTF;
+    if (pOTF->isValid()) {
+        if (pContext->m_iVerbose && pOTF->m_pOddZ == NULL) SHOW_MESSAGE("the psf is symmetric along Z");
+        return pOTF;
+    }
+    delete pOTF;
+    return NULL;
+}
+
+/* fraction of the energy of the psf that createExtentOTF keeps along Z */
+#define PSF_EXTENT_ENERGY	0.999
+
+/* the smallest size of at least iSize without prime factors above 7, which
+   FFTW transforms quickly */
+static int fastFFTSize(int iSize)
+{
+    for (;; iSize++) {
+        int n = iSize;
+        while (n % 2 == 0) n /= 2;
+        while (n % 3 == 0) n /= 3;
+        while (n % 5 == 0) n /= 5;
+        while (n % 7 == 0) n /= 7;
+        if (n == 1) return iSize;
+    }
+}
+
+/* the depth createExtentOTF pads a D deep image to when it keeps iKeptDepth
+   planes of the psf */
+static int getExtentOTFDepth(int iDepth, int iKeptDepth)
+{
+    /* the convolution reaches iKeptDepth/2 planes past each end of the image,
+       which must land in the reflected padding rather than wrap around onto
+       the image. Twice the depth of the image is always enough. */
+    int iOTFDepth = fastFFTSize(iDepth + iKeptDepth);
+    return iOTFDepth > 2 * iDepth ? 2 * iDepth : iOTFDepth;
+}
+
+int getPsfExtentZ(CStackData* pPsf, double dEnergy)
+{
+    /* the psf is centered on plane 0 and wraps around, so plane z is
+       min(z, D-z) planes from its center */
+    int iDepth = pPsf->m_iLogicalDepth;
+    int iMaxExtent = iDepth / 2;
+    double* pdEnergy = new double[iMaxExtent + 1];
+    double dTotal = 0.0;
+    int x, y, z;
+    memset(pdEnergy, 0, (iMaxExtent + 1) * sizeof (double));
+    for (z = 0; z < iDepth; z++) {
+        double dPlane = 0.0;
+        for (y = 0; y < pPsf->m_iLogicalHeight; y++) {
+            FLOAT* pf = pPsf->m_pfRealData + z * pPsf->m_iRealPlaneSize + y * (size_t) pPsf->m_iRealLineSize;
+            for (x = 0; x < pPsf->m_iLogicalWidth; x++) {
+                dPlane += fabs(pf[x]);
+            }
+        }
+        pdEnergy[z <= iMaxExtent ? z : iDepth - z] += dPlane;
+        dTotal += dPlane;
+    }
+    int iExtent = 0;
+    double dSum = pdEnergy[0];
+    while (iExtent < iMaxExtent && dSum < dEnergy * dTotal) {
+        dSum += pdEnergy[++iExtent];
+    }
+    delete[] pdEnergy;
+    return iExtent;
+}
+
+COTFData* createExtentOTF(CDecoContext* pContext, CStackData* pPsf, int iWidth, int iHeight, int iDepth)
+{
+    /* keep the planes of the psf within its extent on either side of its
+       center. An even number of planes keeps each plane at its distance
+       from the center in COTFData (see CStackData::copyPadCenter), so one
+       more plane is kept below the center than above it. */
+    int iExtent = getPsfExtentZ(pPsf, PSF_EXTENT_ENERGY);
+    int iPsfDepth = pPsf->m_iLogicalDepth;
+    int iKeptDepth = 2 * (iExtent + 1) < iPsfDepth ? 2 * (iExtent + 1) : iPsfDepth;
+
+    int iOTFDepth = getExtentOTFDepth(iDepth, iKeptDepth);
+    if (iOTFDepth < iKeptDepth) {
+        SHOW_ERROR("the psf reaches further along Z than the image is deep.");
+        return NULL;
+    }
+    if (pContext->m_iVerbose) SHOW_MESSAGE3("the psf reaches %ld planes along Z, padding %ld planes to %ld",
+            (long) iExtent, (long) iDepth, (long) iOTFDepth);
+    if (iKeptDepth == iPsfDepth) {
+        COTFData* pOTF = createOTF(pContext, pPsf, iWidth, iHeight, iOTFDepth);
+        if (pOTF != NULL) {
+            pOTF->m_iKeptDepthZ = iKeptDepth;
+        }
+        return pOTF;
+    }
+
+    CStackData* pKept = new CStackData(pPsf->m_iLogicalWidth, pPsf->m_iLogicalHeight, iKeptDepth,
+            FALSE, FALSE, pContext);
+    if (!pKept->isValid()) {
+        SHOW_ERROR("could not create the trimmed psf.");
+        delete pKept;
+        return NULL;
+    }
+    size_t cbPlaneBytes = pPsf->m_iRealPlaneSize * sizeof (FLOAT);
+    int iHalf = iKeptDepth / 2;
+    memcpy(pKept->m_pfRealData, pPsf->m_pfRealData, iHalf * cbPlaneBytes);
+    memcpy(pKept->m_pfRealData + iHalf * pKept->m_iRealPlaneSize,
+            pPsf->m_pfRealData + (iPsfDepth - iHalf) * pPsf->m_iRealPlaneSize, iHalf * cbPlaneBytes);
+    COTFData* pOTF = createOTF(pContext, pKept, iWidth, iHeight, iOTFDepth);
+    delete pKept;
+    if (pOTF != NULL) {
+        pOTF->m_iKeptDepthZ = iKeptDepth;
+    }
+    return pOTF;
+}
+
+COTFData* createPaddedOTF(CDecoContext* pContext, CStackData* pImage, CStackData* pPsf)
+{
+    if (pImage->m_iLogicalWidth < pPsf->m_iLogicalWidth) {
+        SHOW_ERROR("image width must be larger than psf width.");
+        return NULL;
+    }
+    if (pImage->m_iLogicalHeight < pPsf->m_iLogicalHeight) {
+        SHOW_ERROR("image height must be larger than psf height.");
+        return NULL;
+    }
+    if (pImage->m_iLogicalDepth < pPsf->m_iLogicalDepth) {
+        SHOW_ERROR("image depth must be larger than psf depth.");
+        return NULL;
+    }
+
+    /*  create the OTF
+
+        NOTE: because of the cyclical nature of the DFT-based convolution,
+        the edges of the data create discontinuities and wrap-around errors. These
+            problems can be overcome by doubling the size of each dimension and padding
+            the new bits with zeros. Since it would take up too much space to double width,
+            height, and	depth, only the depth is doubled, since improving axial resolution
+            is the overall goal. A couple of notes about the padding: The psf will be
+            padded in the center (because it already wraps around), and the image
+            will be padded in the z direction. Instead of just padding the z-direction
+            with zeros, it is padded with a reflected version of the image. This edge
+            reflection smooths out the discontinuities at the edges. */
+
+    return createOTF(pContext, pPsf, pImage->m_iLogicalWidth, pImage->m_iLogicalHeight, 2 * pImage->m_iLogicalDepth);
+}
+
+BOOL destroyOTF(COTFData* pOTF)
+{
+    delete pOTF;
+    return TRUE;
+}
+
 CStackData* createEmptyStack(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan)
 {
     CStackData* stack = new CStackData(iWidth, iHeight, iDepth, bCreateFFTPlan, bQuickFFTPlan);
@@ -94,6 +578,36 @@ BOOL setShortPlane(CStackData* pDestStack, int zDestPlane, WORD* pwSrc, int iSrc
     return FALSE;
 }
 
+BOOL setFloatStack(CStackData* pDestStack, FLOAT* pfSrc, INT64 lSrcLen)
+{
+    if (pDestStack->isValid()) {
+        if (pDestStack->setStack(pfSrc, lSrcLen)) {
+            return TRUE;
+        }
+    }
+    return FALSE;
+}
+
+BOOL setByteStack(CStackData* pDestStack, BYTE* pbSrc, INT64 lSrcLen)
+{
+    if (pDestStack->isValid()) {
+        if (pDestStack->setStack(pbSrc, lSrcLen)) {
+            return TRUE;
+        }
+    }
+    return FALSE;
+}
+
+BOOL setShortStack(CStackData* pDestStack, WORD* pwSrc, INT64 lSrcLen)
+{
+    if (pDestStack->isValid()) {
+        if (pDestStack->setStack(pwSrc, lSrcLen)) {
+            return TRUE;
+        }
+    }
+    return FALSE;
+}
+
 BOOL destroyStack(CStackData* pStack)
 {
     delete pStack;
@@ -104,3 +618,324 @@ BOOL getPlane(FLOAT* pfDest, int iDestLen, CStackData* pSrcStack, int zSrcPlane)
 {
     return pSrcStack->getPlane(pfDest, iDestLen, zSrcPlane);
 }
+
+BOOL getStack(FLOAT* pfDest, INT64 lDestLen, CStackData* pSrcStack)
+{
+    return pSrcStack->getStack(pfDest, lDestLen);
+}
+
+/* copy planes zStart to zEnd-1 of pSrc to the same planes of pDest.
+   zEnd < 0 copies all planes of pSrc. */
+void copyToLowerZ(CStackData* pDest, CStackData* pSrc, int zStart, int zEnd) {
+    ASSERT(pSrc->m_iRealPlaneSize == pDest->m_iRealPlaneSize);
+    ASSERT(pSrc->m_iRealDepth <= pDest->m_iRealDepth);
+
+    size_t iPlaneSize = pSrc->m_iRealPlaneSize;
+    size_t cbPlaneBytes = iPlaneSize * sizeof (FLOAT);
+
+    if (zEnd < 0) zEnd = pSrc->m_iLogicalDepth;
+    FLOAT* pfSrc = pSrc->m_pfRealData + zStart*iPlaneSize;
+    FLOAT* pfDest = pDest->m_pfRealData + zStart*iPlaneSize;
+    int iCount = zEnd - zStart;
+    while (iCount--) {
+        memcpy(pfDest, pfSrc, cbPlaneBytes);
+        pfSrc += iPlaneSize;
+        pfDest += iPlaneSize;
+    }
+}
+
+/* reflect planes zStart to zEnd-1 of an image of iDepth planes into the
+   padding of pStack past the image. The first half of the padding continues
+   the image past its last plane (plane z goes to plane 2*iDepth-1-z), and the
+   second half leads up to its first plane, where the transforms wrap around
+   (plane z goes to plane N-1-z). With N = 2*iDepth both are the same plane.
+   Each plane of the padding is written by exactly one plane of the image.
+   zEnd < 0 reflects the whole image. */
+void mirrorToPaddingZ(CStackData* pStack, int iDepth, int zStart, int zEnd) {
+    size_t iPlaneSize = pStack->m_iRealPlaneSize;
+    size_t cbPlaneBytes = iPlaneSize * sizeof (FLOAT);
+
+    int N = pStack->m_iLogicalDepth;
+    int zSplit = iDepth + (N - iDepth + 1) / 2;
+    if (zEnd < 0) zEnd = iDepth;
+    for (int z = zStart; z < zEnd; z++) {
+        FLOAT* pfSrc = pStack->m_pfRealData + z * iPlaneSize;
+        int zAfter = 2 * iDepth - 1 - z;
+        int zBefore = N - 1 - z;
+        if (zAfter >= iDepth && zAfter < zSplit)
+            memcpy(pStack->m_pfRealData + zAfter * iPlaneSize, pfSrc, cbPlaneBytes);
+        if (zBefore >= zSplit)
+            memcpy(pStack->m_pfRealData + zBefore * iPlaneSize, pfSrc, cbPlaneBytes);
+    }
+}
+
+BOOL fitsPaddedZ(COTFData* pOTF, CStackData* pImage)
+{
+    return pOTF->m_iLogicalWidth == pImage->m_iLogicalWidth
+            && pOTF->m_iLogicalHeight == pImage->m_iLogicalHeight
+            && pOTF->m_iLogicalDepth >= pImage->m_iLogicalDepth
+            && pOTF->m_iLogicalDepth <= 2 * pImage->m_iLogicalDepth;
+}
+
+/* the voxel of a line of iSize voxels that voxel i of the mirrored line
+   repeats. Like mirrorToPaddingZ, the edge voxel is repeated, so the
+   line continues as ..., n-2, n-1, n-1, n-2, ... */
+static int mirrorIndex(int i, int iSize) {
+    i %= 2 * iSize;
+    return i < iSize ? i : 2 * iSize - 1 - i;
+}
+
+/* the weight of the last voxel of a line in voxel p of the nPad voxels
+   that PAD_TAPER adds past its end. It falls as cos^2 from 1 next to the
+   last voxel to 0 next to the first one, where the padded line wraps around. */
+static double taperWeight(int p, int nPad) {
+    double dCos = cos(0.5 * M_PI * (p + 1) / (nPad + 1));
+    return dCos * dCos;
+}
+
+/* fill the pad of a line of n voxels, of which the first iSize are set */
+static void padLine(FLOAT* pf, int iSize, int n, int iFill) {
+    for (int i = iSize; i < n; i++) {
+        if (iFill == PAD_MIRROR) {
+            pf[i] = pf[mirrorIndex(i, iSize)];
+        } else {
+            double dWeight = taperWeight(i - iSize, n - iSize);
+            pf[i] = (FLOAT) (dWeight * pf[iSize - 1] + (1.0 - dWeight) * pf[0]);
+        }
+    }
+}
+
+/* fill line i >= iSize of n lines of iLen voxels, each iStride apart, of
+   which the first iSize are set. The whole line is filled at once, so this
+   pads the lines of a plane as well as the planes of a stack. */
+static void padLines(FLOAT* pf, size_t iStride, int iLen, int iSize, int i, int n, int iFill) {
+    FLOAT* pfDest = pf + i * iStride;
+    if (iFill == PAD_MIRROR) {
+        memcpy(pfDest, pf + mirrorIndex(i, iSize) * iStride, iLen * sizeof (FLOAT));
+        return;
+    }
+    double dWeight = taperWeight(i - iSize, n - iSize);
+    FLOAT* pfLast = pf + (iSize - 1) * iStride;
+    for (int x = 0; x < iLen; x++) {
+        pfDest[x] = (FLOAT) (dWeight * pfLast[x] + (1.0 - dWeight) * pf[x]);
+    }
+}
+
+CStackData* createPaddedStack(CStackData* pSrc, int iWidth, int iHeight, int iDepth, int iFill)
+{
+    int iSrcWidth = pSrc->m_iLogicalWidth;
+    int iSrcHeight = pSrc->m_iLogicalHeight;
+    int iSrcDepth = pSrc->m_iLogicalDepth;
+    if (iWidth < iSrcWidth || iHeight < iSrcHeight || iDepth < iSrcDepth) {
+        SHOW_ERROR("a padded stack cannot be smaller than the stack.");
+        return NULL;
+    }
+    if (iFill != PAD_MIRROR && iFill != PAD_TAPER) {
+        SHOW_ERROR1("unknown padding %ld", (long) iFill);
+        return NULL;
+    }
+    CStackData* pDest = createEmptyStack(iWidth, iHeight, iDepth, FALSE, FALSE);
+    if (pDest == NULL) {
+        SHOW_ERROR("could not create the padded stack.");
+        return NULL;
+    }
+
+    /* pad each line of the stack, then the lines of each plane and then
+       the planes */
+    size_t iLineSize = pDest->m_iRealLineSize;
+    size_t iPlaneSize = pDest->m_iRealPlaneSize;
+    int y, z;
+    for (z = 0; z < iSrcDepth; z++) {
+        FLOAT* pfPlane = pDest->m_pfRealData + z * iPlaneSize;
+        for (y = 0; y < iSrcHeight; y++) {
+            FLOAT* pfLine = pfPlane + y * iLineSize;
+            memcpy(pfLine, pSrc->m_pfRealData + z * pSrc->m_iRealPlaneSize + y * (size_t) pSrc->m_iRealLineSize,
+                    iSrcWidth * sizeof (FLOAT));
+            padLine(pfLine, iSrcWidth, iWidth, iFill);
+        }
+        for (y = iSrcHeight; y < iHeight; y++) {
+            padLines(pfPlane, iLineSize, iWidth, iSrcHeight, y, iHeight, iFill);
+        }
+    }
+    for (z = iSrcDepth; z < iDepth; z++) {
+        padLines(pDest->m_pfRealData, iPlaneSize, (int) iPlaneSize, iSrcDepth, z, iDepth, iFill);
+    }
+    return pDest;
+}
+
+CStackData* createCroppedStack(CStackData* pSrc, int iWidth, int iHeight, int iDepth)
+{
+    if (iWidth > pSrc->m_iLogicalWidth || iHeight > pSrc->m_iLogicalHeight || iDepth > pSrc->m_iLogicalDepth) {
+        SHOW_ERROR("a cropped stack cannot be larger than the stack.");
+        return NULL;
+    }
+    CStackData* pDest = createEmptyStack(iWidth, iHeight, iDepth, FALSE, FALSE);
+    if (pDest == NULL) {
+        SHOW_ERROR("could not create the cropped stack.");
+        return NULL;
+    }
+    for (int z = 0; z < iDepth; z++) {
+        for (int y = 0; y < iHeight; y++) {
+            memcpy(pDest->m_pfRealData + z * pDest->m_iRealPlaneSize + y * (size_t) pDest->m_iRealLineSize,
+                    pSrc->m_pfRealData + z * pSrc->m_iRealPlaneSize + y * (size_t) pSrc->m_iRealLineSize,
+                    iWidth * sizeof (FLOAT));
+        }
+    }
+    return pDest;
+}
+
+/* create the stack an image is transformed in for an OTF of the image size or
+   up to twice its depth (see fitsPaddedZ), and fill it with the image (padded
+   with its reflection). With bInPlace, an OTF of the image size transforms the
+   image itself, which needs FFT plans for the image. Returns NULL on error. */
+static CStackData* createFilterWork(CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, BOOL bInPlace)
+{
+    int iWidth = pImage->m_iLogicalWidth;
+    int iHeight = pImage->m_iLogicalHeight;
+    int iDepth = pImage->m_iLogicalDepth;
+
+    if (pOTF->m_bCosineZ) {
+        SHOW_ERROR("the cosine form of an OTF can only be used by EM.");
+        return NULL;
+    }
+
+    if (!fitsPaddedZ(pOTF, pImage)) {
+        SHOW_ERROR("OTF must be the same size as the image, or up to twice its depth.");
+        return NULL;
+    }
+    int iWorkDepth = pOTF->m_iLogicalDepth;
+    if (iWorkDepth == iDepth && bInPlace) {
+        return pImage;
+    }
+
+    CStackData* pWork = new CStackData(iWidth, iHeight, iWorkDepth, TRUE, FALSE, pContext);
+    if (!pWork->isValid()) {
+        SHOW_ERROR("could not create working stack.");
+        delete pWork;
+        return NULL;
+    }
+    copyToLowerZ(pWork, pImage);
+    if (iWorkDepth > iDepth)
+        mirrorToPaddingZ(pWork, iDepth);
+    return pWork;
+}
+
+/* normalize the inverse transform in pWork, get rid of negative values and copy
+   the lower half to pDest */
+static void storeFilterResult(CStackData* pWork, CStackData* pDest)
+{
+    double dScale = pWork->calcFFTScaleFactor();
+    FLOAT* pfWork = pWork->m_pfRealData;
+    FLOAT* pf = pDest->m_pfRealData;
+    size_t iCount = pDest->m_iRealStackSize;
+    while (iCount--) {
+        if ((*pfWork) < 0)
+            *pf = 0;
+        else
+            *pf = *pfWork / dScale;
+        pf++;
+        pfWork++;
+    }
+}
+
+BOOL filterWithOTF(CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, OTFFilterFunc filter, double dParam)
+{
+    /* with an OTF deeper than the image, the image is padded with its
+       reflection like in processEM */
+    CStackData* pWork = createFilterWork(pContext, pImage, pOTF, TRUE);
+    if (pWork == NULL) {
+        return FALSE;
+    }
+
+    /* forward transform of the image */
+    if (pContext->m_iVerbose) SHOW_MESSAGE("calculating forward FFT of the image");
+    if (!pWork->forwardFFT()) {
+        SHOW_ERROR("could not create forward FFT of the image");
+        if (pWork != pImage) delete pWork;
+        return FALSE;
+    }
+
+    filter(pWork, pOTF, dParam);
+
+    /* inverse transform of the image */
+    if (pContext->m_iVerbose) SHOW_MESSAGE("calculating inverse FFT of the deconvolved image");
+    if (!pWork->inverseFFT()) {
+        SHOW_ERROR("could not create inverse FFT of the deconvolved image");
+        if (pWork != pImage) delete pWork;
+        return FALSE;
+    }
+
+    if (pContext->m_iVerbose) SHOW_MESSAGE("scaling image");
+    storeFilterResult(pWork, pImage);
+
+    if (pWork != pImage) delete pWork;
+    if (pContext->m_iVerbose) SHOW_MESSAGE("Done");
+    return TRUE;
+}
+
+BOOL sweepWithOTF(CDecoContext* pContext, int iMethod, CStackData* pImage, COTFData* pOTF,
+        const double* pdParams, int nParams, CStackData** ppResults)
+{
+    OTFFilterFunc filter;
+    switch (iMethod) {
+        case METHOD_LLS:
+            filter = filterLLS;
+            break;
+        case METHOD_MAP:
+            filter = filterMAP;
+            break;
+        default:
+            SHOW_ERROR("only LLS and MAP can sweep a parameter");
+            return FALSE;
+    }
+    for (int i = 0; i < nParams; i++) {
+        if (!ppResults[i]->hasSize(pImage->m_iLogicalWidth, pImage->m_iLogicalHeight, pImage->m_iLogicalDepth)) {
+            SHOW_ERROR("sweep results must be the same size as the image");
+            return FALSE;
+        }
+    }
+
+    /* the image is transformed once. Its spectrum is kept in pSpectrum, and
+       every parameter filters a copy of it in pWork. */
+    CStackData* pWork = createFilterWork(pContext, pImage, pOTF, FALSE);
+    if (pWork == NULL) {
+        return FALSE;
+    }
+    if (pContext->m_iVerbose) SHOW_MESSAGE("calculating forward FFT of the image");
+    if (!pWork->forwardFFT()) {
+        SHOW_ERROR("could not create forward FFT of the image");
+        delete pWork;
+        return FALSE;
+    }
+    CStackData* pSpectrum = new CStackData(pWork->m_iLogicalWidth, pWork->m_iLogicalHeight, pWork->m_iLogicalDepth,
+            FALSE, FALSE, pContext);
+    if (!pSpectrum->isValid()) {
+        SHOW_ERROR("could not create spectrum stack.");
+        delete pSpectrum;
+        delete pWork;
+        return FALSE;
+    }
+    pSpectrum->copyTransform(pWork);
+
+    BOOL bSuccess = TRUE;
+    time_t tStart;
+    printProgress(pContext->m_pcProgress, 0, nParams, &tStart, 0, NULL);
+    for (int i = 0; i < nParams; i++) {
+        if (i > 0) {
+            pWork->copyTransform(pSpectrum);
+        }
+        filter(pWork, pOTF, pdParams[i]);
+        if (!pWork->inverseFFT()) {
+            SHOW_ERROR("could not create inverse FFT of the deconvolved image");
+            bSuccess = FALSE;
+            break;
+        }
+        storeFilterResult(pWork, ppResults[i]);
+        printProgress(pContext->m_pcProgress, i + 1, nParams, &tStart, 0, pContext->m_progress);
+        if (pContext->m_iVerbose) SHOW_MESSAGE1("%s", pContext->m_pcProgress);
+    }
+
+    delete pSpectrum;
+    delete pWork;
+    return bSuccess;
+}
@@ -16,26 +16,225 @@
 #ifndef PROCESS_H
 #define PROCESS_H
 
+/* FFTW planning modes for setFFTPlanMode */
+#define FFT_PLAN_ESTIMATE	0
+#define FFT_PLAN_MEASURE	1
+#define FFT_PLAN_PATIENT	2
+
+/**Settings and scratch buffers of one deconvolution engine. Every process*
+ * call is given its own context, so several deconvolutions can run at the
+ * same time in one process without sharing any state.
+ */
+
+class CDecoContext {
+public:
+    CDecoContext();
+    ~CDecoContext();
+
+    /** returns the context used when no context is given. It is changed by
+        setNumThreads, setVerbose and setFFTPlanMode. */
+    static CDecoContext* getDefault();
+
+    /** sets the planning flags from one of the FFT_PLAN_ modes */
+    BOOL setFFTPlanMode(int iMode);
+
+public: // Public attributes
+
+    /** number of threads used by each FFT */
+    int m_nThreads;
+
+    /** show a message for each processing step if not zero */
+    int m_iVerbose;
+
+    /** FFTW planning flags for new FFT plans */
+    int m_iFFTPlanFlags;
+
+    /** called after each iteration, may be NULL */
+    ProgressFunc m_progress;
+
+    /** text of the last progress report */
+    char m_pcProgress[128];
+
+    /** EM stops when the relative change of the guess stays below this
+        tolerance. 0 always runs all iterations. */
+    double m_dTolerance;
+
+    /** iterations always run before checking the tolerance */
+    int m_nMinIterations;
+
+    /** number of successive iterations that must be below the tolerance */
+    int m_nPlateauWindow;
+
+    /** iterations run by the last EM call */
+    int m_nIterationsUsed;
+
+    /** EM and SGP compute the divergence of the image from the projected
+        guess, relative to the sum of the image, if this target is above 0.
+        m_nIterationsToTarget is the number of iterations after which the
+        guess first reached it, or -1, and m_dDivergence the last value. */
+    double m_dTargetDivergence;
+    int m_nIterationsToTarget;
+    double m_dDivergence;
+
+    /** EM copies its guess after m_piSnapshotIterations[i] iterations to
+        m_ppSnapshots[i]. The stacks belong to the caller. */
+    int m_nSnapshots;
+    int* m_piSnapshotIterations;
+    CStackData** m_ppSnapshots;
+
+    /** file EM saves its state to, or NULL. EM resumes from this file if it
+        exists and was saved for the same image. */
+    char* m_pcCheckpointFile;
+
+    /** EM saves a checkpoint after this many iterations, 0 = never */
+    int m_nCheckpointIterations;
+
+    /** EM saves a checkpoint when this many seconds have passed since the
+        last one, 0 = never */
+    int m_nCheckpointSeconds;
+
+    /** directory for the scratch files of out-of-core EM, or NULL */
+    char* m_pcScratchDir;
+
+    /** EM keeps the image, the guess and the extrapolation stacks in scratch
+        files when estimateMemoryWithOTF is above this many bytes, 0 = never */
+    double m_dScratchLimit;
+
+    /** before its own iterations, EM runs m_piCoarseIterations[i] iterations
+        on the image binned by m_piCoarseBinning[i] in X and Y, for each
+        coarse level in turn, and starts from the upsampled result */
+    int m_nCoarseLevels;
+    int* m_piCoarseBinning;
+    int* m_piCoarseIterations;
+};
+
+/** filter applied to the transform of an image by filterWithOTF */
+typedef void (*OTFFilterFunc)(CStackData* pFTImage, COTFData* pOTF, double dParam);
+
+/** deconvolve an image in one pass by transforming it, applying a filter with
+    the OTF and transforming it back. The image is padded to twice its depth
+    if the OTF has that size. */
+BOOL filterWithOTF(CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, OTFFilterFunc filter, double dParam);
+
+/** the filters of processLLSWithOTF and processMAPWithOTF */
+void filterLLS(CStackData* pFTImage, COTFData* pOTF, double dThresh);
+void filterMAP(CStackData* pFTImage, COTFData* pOTF, double dAlpha);
+
+/** copy planes zStart to zEnd-1 of pSrc to the same planes of pDest.
+    zEnd < 0 copies all planes of pSrc. */
+void copyToLowerZ(CStackData* pDest, CStackData* pSrc, int zStart = 0, int zEnd = -1);
+
+/** reflect planes zStart to zEnd-1 of an image of iDepth planes, held in
+    the first planes of pStack, into the remaining planes of pStack. Half of
+    this padding continues the image past its last plane and half leads up
+    to its first plane, where the transforms wrap around. zEnd < 0 reflects
+    the whole image. */
+void mirrorToPaddingZ(CStackData* pStack, int iDepth, int zStart = 0, int zEnd = -1);
+
+/** true if pOTF has the width and height of pImage and a depth from that of
+    the image to twice that, the image padded along Z by its reflection */
+BOOL fitsPaddedZ(COTFData* pOTF, CStackData* pImage);
+
 extern "C" {
 
-extern int g_iVerbose;
+CDecoContext* createContext();
+BOOL destroyContext(CDecoContext* pContext);
+BOOL setContextNumThreads(CDecoContext* pContext, int nThreads);
+void setContextVerbose(CDecoContext* pContext, int iVerbose);
+BOOL setContextFFTPlanMode(CDecoContext* pContext, int iMode);
+void setContextProgress(CDecoContext* pContext, ProgressFunc progress);
+void setContextConvergence(CDecoContext* pContext, double dTolerance, int nMinIterations, int nPlateauWindow);
+int getContextIterationsUsed(CDecoContext* pContext);
+void setContextTarget(CDecoContext* pContext, double dDivergence);
+int getContextIterationsToTarget(CDecoContext* pContext);
+double getContextDivergence(CDecoContext* pContext);
+BOOL setContextSnapshots(CDecoContext* pContext, const int* piIterations, int nSnapshots, CStackData** ppSnapshots);
+BOOL setContextCheckpoint(CDecoContext* pContext, const char* pcFileName, int nEveryIterations, int nEverySeconds);
+BOOL setContextScratch(CDecoContext* pContext, const char* pcDir, double dLimitBytes);
+BOOL setContextCoarseLevels(CDecoContext* pContext, const int* piBinning, const int* piIterations, int nLevels);
 
 BOOL setNumThreads(int nThreads);
 void setVerbose(int iVerbose);
+BOOL setFFTPlanMode(int iMode, double dTimeLimit);
+BOOL importFFTWisdom(const char* pcFileName);
+BOOL exportFFTWisdom(const char* pcFileName);
+void setFFTPlanCacheSize(int nMaxPlans);
+void clearFFTPlanCache();
 CStackData* createEmptyStack(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan);
 BOOL setFloatPlane(CStackData* pDestStack, int zDestPlane, FLOAT* pfSrc, int iSrcLen);
 BOOL setBytePlane(CStackData* pDestStack, int zDestPlane, BYTE* pbSrc, int iSrcLen);
 BOOL setShortPlane(CStackData* pDestStack, int zDestPlane, WORD* pwSrc, int iSrcLen);
+BOOL setFloatStack(CStackData* pDestStack, FLOAT* pfSrc, INT64 lSrcLen);
+BOOL setByteStack(CStackData* pDestStack, BYTE* pbSrc, INT64 lSrcLen);
+BOOL setShortStack(CStackData* pDestStack, WORD* pwSrc, INT64 lSrcLen);
 
 BOOL destroyStack(CStackData* pStack);
 BOOL getPlane(FLOAT* pfDest, int iDestLen, CStackData* pSrcStack, int zSrcPlane);
+BOOL getStack(FLOAT* pfDest, INT64 lDestLen, CStackData* pSrcStack);
 int getStackWidth(CStackData* pStack);
 int getStackHeight(CStackData* pStack);
 int getStackDepth(CStackData* pStack);
 
-BOOL processLLS (CStackData* pImage, CStackData* pPsf, double dThresh);
-BOOL processMAP (CStackData* pImage, CStackData* pPsf, double dThresh);
-BOOL processEM (CStackData* pImage, CStackData* pPsf, int iTotalIterations, ProgressFunc progress);
+/* a copy of pSrc padded to W x H x D voxels, each at least the size of pSrc,
+   so that its transforms have sizes FFTW handles quickly. The voxels past the
+   edges are filled as given by iFill, PAD_MIRROR or PAD_TAPER. */
+CStackData* createPaddedStack(CStackData* pSrc, int iWidth, int iHeight, int iDepth, int iFill);
+
+/* a copy of the first W x H x D voxels of pSrc, which undoes createPaddedStack */
+CStackData* createCroppedStack(CStackData* pSrc, int iWidth, int iHeight, int iDepth);
+
+double estimateMemory(int iMethod, int iWidth, int iHeight, int iDepth);
+
+/* like estimateMemory, for an OTF like pOTF: in cosine form, with or
+   without an odd part, or with only its real part. If pOTF is for a
+   W x H x D image, its depth is used. Otherwise an OTF from createExtentOTF
+   stands for one padded as far as its psf reaches, and any other for one
+   of twice the depth of the image. pOTF may be NULL. */
+double estimateMemoryWithOTF(int iMethod, COTFData* pOTF, int iWidth, int iHeight, int iDepth);
+
+COTFData* createOTF(CDecoContext* pContext, CStackData* pPsf, int iWidth, int iHeight, int iDepth);
+COTFData* createPaddedOTF(CDecoContext* pContext, CStackData* pImage, CStackData* pPsf);
+
+/* the number of planes on either side of its center within which the psf has
+   the fraction dEnergy of its energy. The psf is centered on plane 0. */
+int getPsfExtentZ(CStackData* pPsf, double dEnergy);
+
+/* the OTF for W x H x D images padded along Z only as far as the psf reaches
+   (99.9% of its energy), rounded up to a depth FFTW transforms quickly,
+   instead of to twice their depth. Its depth is at most 2 * D. */
+COTFData* createExtentOTF(CDecoContext* pContext, CStackData* pPsf, int iWidth, int iHeight, int iDepth);
+
+/* the OTF in cosine form for EM of W x H x D images: EM gives the same result
+   as with the OTF of twice the depth, without the mirrored half of its working
+   stack. If the psf is not symmetric along Z, EM needs one extra stack of
+   the image size for the odd part. LLS and MAP cannot use this OTF. */
+COTFData* createCosineOTF(CDecoContext* pContext, CStackData* pPsf, int iWidth, int iHeight, int iDepth);
+BOOL destroyOTF(COTFData* pOTF);
+
+BOOL processLLS (CDecoContext* pContext, CStackData* pImage, CStackData* pPsf, double dThresh);
+BOOL processMAP (CDecoContext* pContext, CStackData* pImage, CStackData* pPsf, double dThresh);
+BOOL processEM (CDecoContext* pContext, CStackData* pImage, CStackData* pPsf, int iTotalIterations);
+BOOL processAEM (CDecoContext* pContext, CStackData* pImage, CStackData* pPsf, int iTotalIterations);
+BOOL processSGP (CDecoContext* pContext, CStackData* pImage, CStackData* pPsf, int iTotalIterations);
+
+BOOL processLLSWithOTF (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, double dThresh);
+BOOL processMAPWithOTF (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, double dThresh);
+BOOL processEMWithOTF (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, int iTotalIterations);
+BOOL processAEMWithOTF (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, int iTotalIterations);
+BOOL processSGPWithOTF (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, int iTotalIterations);
+
+/* deconvolve pImage with LLS or MAP once for each of the nParams thresholds or
+   alphas in pdParams, and store the results in the nParams stacks in ppResults,
+   which must be the size of pImage. The image is transformed only once.
+   pImage is not modified. */
+BOOL sweepWithOTF (CDecoContext* pContext, int iMethod, CStackData* pImage, COTFData* pOTF,
+        const double* pdParams, int nParams, CStackData** ppResults);
+
+/* EM starting from pGuess instead of a flat guess. pGuess must be the size of
+   pImage and may be pImage itself. It is not modified. */
+BOOL processEMWithGuess (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, CStackData* pGuess, int iTotalIterations);
+BOOL processAEMWithGuess (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, CStackData* pGuess, int iTotalIterations);
+BOOL processSGPWithGuess (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, CStackData* pGuess, int iTotalIterations);
 
 }
 
@@ -20,64 +20,26 @@
 #include "stackdata.h"
 #include "process.h"
 
-BOOL processMAP (CStackData* pImage, CStackData* pPsf, double dAlpha)
-{
-	int iResult;
-	
-	if (pImage->m_iLogicalWidth != pPsf->m_iLogicalWidth) {
-		SHOW_ERROR ("image and Psf do not have the same width.");
-		return FALSE;
-	}
-		
-	if (pImage->m_iLogicalHeight != pPsf->m_iLogicalHeight) {
-		SHOW_ERROR ("image and Psf do not have the same height.");
-		return FALSE;
-	}
-		
-	if (pImage->m_iLogicalDepth != pPsf->m_iLogicalDepth) {
-		SHOW_ERROR ("image and Psf do not have the same depth.");
-		return FALSE;
-	}
-		
-	//BOOL bSuccess;
-
-	/* create the OTF */
-	if (g_iVerbose) SHOW_MESSAGE ("calculating OTF from Psf");
-	iResult = pPsf->forwardFFT ();
-	if (!iResult) { SHOW_ERROR ("could not create the OTF from the Psf"); return FALSE; }
-	CStackData* pOTF = pPsf;	/* a reference to make the code more readable */
-	pPsf = 0;
-	
-	/* calculate the NORM of the OTF. This is the average value for the entire image, or the
-	   magnitude in the fourier plane for frequency=0. We don't actually divide the OTF by
-	   NORM, because this can be combined with another step */
-
-	double dNorm = sqrt( pOTF->m_pfcComplexData[0].re * pOTF->m_pfcComplexData[0].re
-			+ pOTF->m_pfcComplexData[0].im * pOTF->m_pfcComplexData[0].im);
+/* divide the transformed IMAGE by the OTF, smoothed by a penalty on the squared
+   frequency, alpha * |omega|^2.
 
-	/* forward transform of the image */
-	if (g_iVerbose) SHOW_MESSAGE ("calculating forward FFT of the image");
-	iResult = pImage->forwardFFT ();
-	if (!iResult) { SHOW_ERROR ("could not create forward FFT of the image"); return FALSE; }
-	CStackData* pFTImage = pImage;
-	pImage = 0;
-	
-  	if (g_iVerbose) SHOW_MESSAGE ("calculating MAP version of IMAGE/OTF");
-  	/* 	divide the IMAGE by the OTF. If the OTF magnitude is less than the threshold (fFactor),
-  		then we assume that we are outside of the bandwidth of the OTF and set the resulting
-  	    value to zero. */
-		
+   The OTF has already been divided by its NORM (the magnitude in the fourier plane
+   for frequency=0), so the smoothing term is divided by NORM instead. */
+void filterMAP (CStackData* pFTImage, COTFData* pOTF, double dAlpha)
+{
+	double dNorm = pOTF->m_dNorm;
   	const double dPi = 2.0 * acos(0.0);
   	
   	double dDenom, dRe, dIm;
   	FCOMPLEX* pfcI = pFTImage->m_pfcComplexData;
   	FCOMPLEX* pfcO = pOTF->m_pfcComplexData;
-  	int iCount = pFTImage->m_iComplexStackSize;
+  	FLOAT* pfO = pOTF->m_pfRealOTF;
+  	FLOAT fORe, fOIm;
   	int x, y, z;
   	
-  	int iLogWidth = pFTImage->m_iComplexWidth;
-  	int iLogHeight = pFTImage->m_iComplexHeight;
-  	int iLogDepth = pFTImage->m_iComplexDepth;
+  	int iLogWidth = pFTImage->m_iLogicalWidth;
+  	int iLogHeight = pFTImage->m_iLogicalHeight;
+  	int iLogDepth = pFTImage->m_iLogicalDepth;
   	
   	int iCpxWidth = pFTImage->m_iComplexWidth;
   	int iCpxHeight = pFTImage->m_iComplexHeight;
@@ -92,7 +54,7 @@ BOOL processMAP (CStackData* pImage, CStackData* pPsf, double dAlpha)
 	
 	double dOmegaX, dOmegaY, dOmegaZ;
 	double dOmegaXSq, dOmegaYSq, dOmegaZSq, dSumOmegaYSqZSq;
-	double dTwoAlpha = 2.0 * dAlpha;
+	double dTwoAlpha = 2.0 * dAlpha / dNorm;
 
 	for (z=0; z<iCpxDepth; z++) {
 		if (z <= iMaxZ)
@@ -113,37 +75,45 @@ BOOL processMAP (CStackData* pImage, CStackData* pPsf, double dAlpha)
 					dOmegaX = x * dScaleX;
 					dOmegaXSq = dOmegaX * dOmegaX;
 					
-            		dDenom = (pfcO->re * pfcO->re + pfcO->im * pfcO->im) / dNorm
+					/* a real OTF only stores the real part */
+					if (pfO) {
+						fORe = *pfO;
+						fOIm = 0;
+					} else {
+						fORe = pfcO->re;
+						fOIm = pfcO->im;
+					}
+            		dDenom = (fORe * fORe + fOIm * fOIm)
             					+ dTwoAlpha * (dOmegaXSq + dSumOmegaYSqZSq);
-        			dRe = (pfcI->re * pfcO->re + pfcI->im * pfcO->im) / dDenom;
-        			dIm = (pfcI->im * pfcO->re - pfcI->im * pfcO->im) / dDenom;
+        			dRe = (pfcI->re * fORe + pfcI->im * fOIm) / dDenom;
+        			dIm = (pfcI->im * fORe - pfcI->re * fOIm) / dDenom;
             		pfcI->re = (FLOAT)dRe;
             		pfcI->im = (FLOAT)dIm;
             	}
-  				pfcO++;
+  				if (pfO)
+  					pfO++;
+  				else
+  					pfcO++;
   				pfcI++;
   			} /* for x */
   		} /* for y */
   	} /* for z */
-	
-	/* inverse transform of the image */
-	if (g_iVerbose) SHOW_MESSAGE ("calculating inverse FFT of the deconvolved image");
-	iResult = pFTImage->inverseFFT ();
-	if (!iResult) { SHOW_ERROR ("could not create inverse FFT of the deconvolved image"); }
-	pImage = pFTImage;
-	pFTImage = 0;
-	
-	/* normalize the final image and get rid of negative values */
-	FLOAT* pf = pImage->m_pfRealData;
-	dDenom = pImage->calcFFTScaleFactor ();
-	iCount = pImage->m_iRealStackSize;
-	while (iCount--) {
-		if ((*pf) < 0)
-			*pf = 0;
-		else
-			*pf /= dDenom;
-		pf++;
+}
+
+BOOL processMAP (CDecoContext* pContext, CStackData* pImage, CStackData* pPsf, double dAlpha)
+{
+	/* pad the depth like processEM to avoid wrap-around at the top and bottom */
+	COTFData* pOTF = createPaddedOTF(pContext, pImage, pPsf);
+	if (pOTF == NULL) {
+		return FALSE;
 	}
+	BOOL bSuccess = processMAPWithOTF(pContext, pImage, pOTF, dAlpha);
+	destroyOTF(pOTF);
+	return bSuccess;
+}
 
-	return TRUE;
+BOOL processMAPWithOTF (CDecoContext* pContext, CStackData* pImage, COTFData* pOTF, double dAlpha)
+{
+  	if (pContext->m_iVerbose) SHOW_MESSAGE ("calculating MAP version of IMAGE/OTF");
+	return filterWithOTF (pContext, pImage, pOTF, filterMAP, dAlpha);
 }
@@ -16,12 +16,15 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <math.h>
 #include <sys/types.h>
+#ifndef NOTHREADS
+#include <pthread.h>
+#endif
 
 #include "deco.h"
 #include "stackdata.h"
-
-extern int g_iVerbose;
+#include "process.h"
 
 CStackData::
 CStackData() {
@@ -31,13 +34,14 @@ CStackData() {
     m_iComplexWidth = m_iComplexHeight = m_iComplexDepth = 0;
     m_pfRealData = NULL;
     m_pfcComplexData = NULL;
-    m_planForwardFFT = NULL;
-    m_planBackwardFFT = NULL;
+    m_pFFTPlans = NULL;
+    m_cbMapped = 0;
 }
 
 CStackData::
-CStackData(int iLogicalWidth, int iLogicalHeight, int iLogicalDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan) {
-    create(iLogicalWidth, iLogicalHeight, iLogicalDepth, bCreateFFTPlan, bQuickFFTPlan);
+CStackData(int iLogicalWidth, int iLogicalHeight, int iLogicalDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan,
+        const CDecoContext* pContext) {
+    create(iLogicalWidth, iLogicalHeight, iLogicalDepth, bCreateFFTPlan, bQuickFFTPlan, pContext);
 }
 
 CStackData::
@@ -55,8 +59,10 @@ calcSize(int iW, int iH, int iD) {
     m_iRealHeight = actualHeight(m_iLogicalHeight);
     m_iRealDepth = actualDepth(m_iLogicalDepth);
 
+    /* the plane and stack sizes are calculated in 64 bits, because a large
+       stack padded to twice its depth has more than 2^31 floats */
     m_iRealLineSize = m_iRealWidth;
-    m_iRealPlaneSize = m_iRealLineSize * m_iRealHeight;
+    m_iRealPlaneSize = ((size_t) m_iRealLineSize) * m_iRealHeight;
     m_iRealStackSize = m_iRealPlaneSize * m_iRealDepth;
 
     m_iComplexWidth = m_iRealWidth / 2;
@@ -64,26 +70,30 @@ calcSize(int iW, int iH, int iD) {
     m_iComplexDepth = m_iRealDepth;
 
     m_iComplexLineSize = m_iComplexWidth;
-    m_iComplexPlaneSize = m_iComplexLineSize * m_iComplexHeight;
+    m_iComplexPlaneSize = ((size_t) m_iComplexLineSize) * m_iComplexHeight;
     m_iComplexStackSize = m_iComplexPlaneSize * m_iComplexDepth;
 }
 
 void CStackData::
-create(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan) {
+create(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan,
+        const CDecoContext* pContext) {
     calcSize(iWidth, iHeight, iDepth);
     m_pfRealData = (FLOAT*) fftwf_malloc(m_iRealStackSize * sizeof (FLOAT));
     m_pfcComplexData = NULL;
-    m_planForwardFFT = NULL;
-    m_planBackwardFFT = NULL;
+    m_pFFTPlans = NULL;
     m_bQuickPlan = bQuickFFTPlan;
+    m_cbMapped = 0;
 
     if (m_pfRealData == 0) {
-        SHOW_ERROR1("not enough memory to create stack. At least %d free KB are required.", storageBytes(iWidth, iHeight, iDepth) / 1024);
+        SHOW_ERROR1("not enough memory to create stack. At least %lu free KB are required.", (unsigned long) (storageBytes(iWidth, iHeight, iDepth) / 1024));
     } else {
         /* Create the FFT plans */
         if (bCreateFFTPlan) {
-            int iFlags = bQuickFFTPlan ? FFTW_ESTIMATE : FFTW_MEASURE;
-            createInPlaceFFTPlans(m_pfRealData, iFlags);
+            if (pContext == NULL) {
+                pContext = CDecoContext::getDefault();
+            }
+            int iFlags = bQuickFFTPlan ? FFTW_ESTIMATE : pContext->m_iFFTPlanFlags;
+            createInPlaceFFTPlans(m_pfRealData, iFlags, pContext->m_nThreads, pContext->m_iVerbose);
         }
 
         /* zero out the memory */
@@ -91,144 +101,244 @@ create(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTP
     }
 }
 
+void CStackData::
+createMapped(int iWidth, int iHeight, int iDepth, const char* pcDir) {
+    calcSize(iWidth, iHeight, iDepth);
+    m_pfcComplexData = NULL;
+    m_pFFTPlans = NULL;
+    m_bQuickPlan = FALSE;
+    /* a new scratch file reads as zeros, so it is not cleared */
+    m_pfRealData = (FLOAT*) mapScratchFile(pcDir, m_iRealStackSize * sizeof (FLOAT));
+    m_cbMapped = m_pfRealData ? m_iRealStackSize * sizeof (FLOAT) : 0;
+}
+
 BOOL CStackData::
-setPlane(int zDestPlane, FLOAT* pfSrc, int iSrcLen) {
-    //fprintf(stderr, "writing plane %d size %d\n", z, iSrcLen);
-    if (!isValid()) {
-        SHOW_ERROR("Not enough memory to store stack.");
+moveToScratch(const char* pcDir) {
+    if (m_pfRealData == NULL) {
         return FALSE;
     }
-
-    if (iSrcLen < m_iLogicalWidth * m_iLogicalHeight) {
-        SHOW_ERROR("source array is too short");
+    if (m_cbMapped) {
+        return TRUE;
+    }
+    size_t cbData = m_iRealStackSize * sizeof (FLOAT);
+    FLOAT* pfMapped = (FLOAT*) mapScratchFile(pcDir, cbData);
+    if (pfMapped == NULL) {
         return FALSE;
     }
+    /* the mapping is page aligned, so any FFT plans can still be used */
+    memcpy(pfMapped, m_pfRealData, cbData);
+    freeData(m_pfRealData);
+    m_pfRealData = pfMapped;
+    m_cbMapped = cbData;
+    return TRUE;
+}
 
-    if (zDestPlane < 0 || zDestPlane >= m_iLogicalDepth) {
-        SHOW_ERROR("invalid z plane");
-        return FALSE;
+void CStackData::
+freeData(void* pvData) {
+    if (m_cbMapped) {
+        unmapScratchFile(pvData, m_cbMapped);
+        m_cbMapped = 0;
+    } else {
+        fftwf_free(pvData);
     }
+}
 
+/** Copy one plane of pixels into the padded layout of a stack, converting
+    each pixel to FLOAT on the way. Any padding at the end of each line and
+    at the end of the plane is set to zero. */
+template <class T> static void
+copyToPaddedPlane(FLOAT* pfDestPlane, const T* pSrc, int iWidth, int iHeight,
+        int iRealLineSize, int iRealHeight) {
     int x, y;
-    FLOAT* pfLine;
     FLOAT* pfPoint;
-    int iWExtra = m_iRealWidth - m_iLogicalWidth;
-    int iHExtra = m_iRealHeight - m_iLogicalHeight;
-    size_t cbLineBytes = m_iRealLineSize * sizeof (FLOAT);
-    size_t cbSrcLineBytes = m_iLogicalWidth * sizeof (FLOAT);
-    FLOAT* pfSrcLine = pfSrc;
-
-    pfLine = m_pfRealData + zDestPlane*m_iRealPlaneSize;
-    for (y = 0; y < m_iLogicalHeight; y++) {
+    FLOAT* pfLine = pfDestPlane;
+    for (y = 0; y < iHeight; y++) {
         pfPoint = pfLine;
-        /* copy the line */
-        memcpy(pfPoint, pfSrcLine, cbSrcLineBytes);
-        pfPoint += m_iLogicalWidth;
+        for (x = 0; x < iWidth; x++) {
+            *(pfPoint++) = (FLOAT) *(pSrc++);
+        }
         /* set any extra points at the end of the line to zero */
-        x = iWExtra;
-        while (x--) {
+        for (; x < iRealLineSize; x++) {
             *(pfPoint++) = 0;
         }
-        pfSrcLine += m_iLogicalWidth;
-        pfLine += m_iRealLineSize;
+        pfLine += iRealLineSize;
     } /* for y */
     /* set any extra lines at the end of the plane to zero */
-    y = iHExtra;
-    while (y--) {
-        memset(pfLine, 0, cbLineBytes);
-        pfLine += m_iRealLineSize;
+    if (iRealHeight > iHeight) {
+        memset(pfLine, 0, (iRealHeight - iHeight) * (size_t) iRealLineSize * sizeof (FLOAT));
     }
+}
 
-    return TRUE;
+/** FLOAT pixels need no conversion, so each line is copied as a block */
+static void
+copyToPaddedPlane(FLOAT* pfDestPlane, const FLOAT* pfSrc, int iWidth, int iHeight,
+        int iRealLineSize, int iRealHeight) {
+    int y;
+    FLOAT* pfLine = pfDestPlane;
+    size_t cbSrcLineBytes = iWidth * sizeof (FLOAT);
+    size_t cbExtraBytes = (iRealLineSize - iWidth) * sizeof (FLOAT);
+    for (y = 0; y < iHeight; y++) {
+        /* copy the line */
+        memcpy(pfLine, pfSrc, cbSrcLineBytes);
+        /* set any extra points at the end of the line to zero */
+        if (cbExtraBytes) {
+            memset(pfLine + iWidth, 0, cbExtraBytes);
+        }
+        pfSrc += iWidth;
+        pfLine += iRealLineSize;
+    } /* for y */
+    /* set any extra lines at the end of the plane to zero */
+    if (iRealHeight > iHeight) {
+        memset(pfLine, 0, (iRealHeight - iHeight) * (size_t) iRealLineSize * sizeof (FLOAT));
+    }
 }
 
 BOOL CStackData::
-setPlane(int zDest, BYTE* pbSrc, int iSrcLen)
-{
-	FLOAT* pfTempPlane = new FLOAT[iSrcLen];
-    if (pfTempPlane == NULL) {
-        SHOW_ERROR("Not enough memory convert stack to float");
+checkTransfer(int zPlane, int nPlanes, INT64 lLen) {
+    if (!isValid()) {
+        SHOW_ERROR("Not enough memory to store stack.");
         return FALSE;
     }
-	
-	FLOAT* pf = pfTempPlane;
-	BYTE* pb = pbSrc;
-	int count = iSrcLen;
-	while (count--) {
-		*(pf++) = *(pb++);
-	}
-	BOOL bRet = setPlane (zDest, pfTempPlane, iSrcLen);
-	delete pfTempPlane;
-	return bRet;
+
+    if (zPlane < 0 || nPlanes < 1 || zPlane + nPlanes > m_iLogicalDepth) {
+        SHOW_ERROR("invalid z plane");
+        return FALSE;
+    }
+
+    if (lLen < ((INT64) m_iLogicalWidth) * m_iLogicalHeight * nPlanes) {
+        SHOW_ERROR("array is too short");
+        return FALSE;
+    }
+
+    return TRUE;
+}
+
+template <class T> BOOL CStackData::
+setPlanes(int zDest, int nPlanes, const T* pSrc, INT64 lSrcLen) {
+    if (!checkTransfer(zDest, nPlanes, lSrcLen)) {
+        return FALSE;
+    }
+
+    int z;
+    size_t iSrcPlaneSize = ((size_t) m_iLogicalWidth) * m_iLogicalHeight;
+    FLOAT* pfPlane = m_pfRealData + zDest*m_iRealPlaneSize;
+    for (z = 0; z < nPlanes; z++) {
+        copyToPaddedPlane(pfPlane, pSrc, m_iLogicalWidth, m_iLogicalHeight,
+                m_iRealLineSize, m_iRealHeight);
+        pSrc += iSrcPlaneSize;
+        pfPlane += m_iRealPlaneSize;
+    }
+
+    return TRUE;
 }
 
 BOOL CStackData::
-setPlane(int zDest, WORD* pwSrc, int iSrcLen)
-{
-	FLOAT* pfTempPlane = new FLOAT[iSrcLen];
-	if (pfTempPlane == NULL) {
-		SHOW_ERROR("Not enough memory convert stack to float");
-		return FALSE;
-	}
-	
-	FLOAT* pf = pfTempPlane;
-	WORD* pw = pwSrc;
-	int count = iSrcLen;
-	while (count--) {
-		*(pf++) = *(pw++);
-	}
-	BOOL bRet = setPlane (zDest, pfTempPlane, iSrcLen);
-	delete pfTempPlane;
-	return bRet;
-	
+setPlane(int zDestPlane, FLOAT* pfSrc, int iSrcLen) {
+    //fprintf(stderr, "writing plane %d size %d\n", z, iSrcLen);
+    return setPlanes(zDestPlane, 1, pfSrc, iSrcLen);
 }
 
+BOOL CStackData::
+setPlane(int zDest, BYTE* pbSrc, int iSrcLen) {
+    return setPlanes(zDest, 1, pbSrc, iSrcLen);
+}
 
 BOOL CStackData::
-getPlane(FLOAT* pfDest, int iDestLen, int zSrcPlane) {
-    //fprintf(stderr, "writing plane %d size %d\n", z, iDestLen);
-    if (!isValid()) {
-        SHOW_ERROR("Stack is empty.");
-        return FALSE;
-    }
+setPlane(int zDest, WORD* pwSrc, int iSrcLen) {
+    return setPlanes(zDest, 1, pwSrc, iSrcLen);
+}
 
-    if (iDestLen < m_iLogicalWidth * m_iLogicalHeight) {
-        SHOW_ERROR("destination array is too short");
-        return FALSE;
-    }
+BOOL CStackData::
+setStack(FLOAT* pfSrc, INT64 lSrcLen) {
+    return setPlanes(0, m_iLogicalDepth, pfSrc, lSrcLen);
+}
 
-    if (zSrcPlane < 0 || zSrcPlane >= m_iLogicalDepth) {
-        SHOW_ERROR("invalid z plane");
+BOOL CStackData::
+setStack(BYTE* pbSrc, INT64 lSrcLen) {
+    return setPlanes(0, m_iLogicalDepth, pbSrc, lSrcLen);
+}
+
+BOOL CStackData::
+setStack(WORD* pwSrc, INT64 lSrcLen) {
+    return setPlanes(0, m_iLogicalDepth, pwSrc, lSrcLen);
+}
+
+BOOL CStackData::
+getPlanes(FLOAT* pfDest, INT64 lDestLen, int zSrc, int nPlanes) {
+    if (!checkTransfer(zSrc, nPlanes, lDestLen)) {
         return FALSE;
     }
 
-    int y;
+    int y, z;
     FLOAT* pfLine;
     FLOAT* pfDestLine = pfDest;
     size_t cbDestLineBytes = m_iLogicalWidth * sizeof (FLOAT);
 
-    pfLine = m_pfRealData + zSrcPlane*m_iRealPlaneSize;
-    for (y = 0; y < m_iLogicalHeight; y++) {
-        memcpy(pfDestLine, pfLine, cbDestLineBytes);
-        pfDestLine += m_iLogicalWidth;
-        pfLine += this->m_iRealLineSize;
+    for (z = zSrc; z < zSrc + nPlanes; z++) {
+        pfLine = m_pfRealData + z*m_iRealPlaneSize;
+        for (y = 0; y < m_iLogicalHeight; y++) {
+            memcpy(pfDestLine, pfLine, cbDestLineBytes);
+            pfDestLine += m_iLogicalWidth;
+            pfLine += m_iRealLineSize;
+        }
+    }
+    return TRUE;
+}
+
+BOOL CStackData::
+writeData(FILE* pFile) {
+    int y, z;
+    for (z = 0; z < m_iLogicalDepth; z++) {
+        FLOAT* pfLine = m_pfRealData + z*m_iRealPlaneSize;
+        for (y = 0; y < m_iLogicalHeight; y++) {
+            if (fwrite(pfLine, sizeof (FLOAT), m_iLogicalWidth, pFile) != (size_t) m_iLogicalWidth) {
+                return FALSE;
+            }
+            pfLine += m_iRealLineSize;
+        }
+    }
+    return TRUE;
+}
+
+BOOL CStackData::
+readData(FILE* pFile) {
+    int y, z;
+    for (z = 0; z < m_iLogicalDepth; z++) {
+        FLOAT* pfLine = m_pfRealData + z*m_iRealPlaneSize;
+        for (y = 0; y < m_iLogicalHeight; y++) {
+            if (fread(pfLine, sizeof (FLOAT), m_iLogicalWidth, pFile) != (size_t) m_iLogicalWidth) {
+                return FALSE;
+            }
+            pfLine += m_iRealLineSize;
+        }
     }
     return TRUE;
 }
 
+BOOL CStackData::
+getPlane(FLOAT* pfDest, int iDestLen, int zSrcPlane) {
+    //fprintf(stderr, "writing plane %d size %d\n", z, iDestLen);
+    return getPlanes(pfDest, iDestLen, zSrcPlane, 1);
+}
+
+BOOL CStackData::
+getStack(FLOAT* pfDest, INT64 lDestLen) {
+    return getPlanes(pfDest, lDestLen, 0, m_iLogicalDepth);
+}
+
 void CStackData::
 destroy() {
     destroyFFTPlans();
     if (((void*) m_pfRealData) == ((void*) m_pfcComplexData)) {
         if (m_pfRealData != NULL) {
-            fftwf_free(m_pfRealData);
+            freeData(m_pfRealData);
         }
     } else {
         if (m_pfRealData != NULL) {
-            fftwf_free(m_pfRealData);
+            freeData(m_pfRealData);
         }
         if (m_pfcComplexData != NULL) {
-            fftwf_free (m_pfcComplexData);
+            freeData(m_pfcComplexData);
         }
     }
     m_iLogicalWidth = m_iLogicalHeight = m_iLogicalDepth = 0;
@@ -240,7 +350,7 @@ destroy() {
 }
 
 BOOL CStackData::
-createInPlaceFFTPlans(FLOAT* pfData, int iFlags) {
+createInPlaceFFTPlans(FLOAT* pfData, int iFlags, int nThreads, BOOL bVerbose, int iTransform) {
     ASSERT(m_iLogicalWidth >= 0);
     ASSERT(m_iLogicalHeight >= 0);
     ASSERT(m_iLogicalDepth >= 0);
@@ -249,119 +359,45 @@ createInPlaceFFTPlans(FLOAT* pfData, int iFlags) {
         iFlags = FFTW_ESTIMATE;
     }
 
-    /*
-            FFTW assumes that arrays were created using C++'s multidimensional
-        array declaration:
-	
-                    float pfArray[WIDTH][HEIGHT][DEPTH];
-	   	
-            Multidimensional arrays created this way are accessed using code
-            such as:
-	   		
-                    float value = pfArray[x][y][z];
-
-            Because of the "C" "right-to-left" precedence for the array operator
-            "[]", The statement "float pfArray[WIDTH][HEIGHT][DEPTH];" is
-            equivalent to "float pfArray[WIDTH]([HEIGHT]([DEPTH]))". Written
-            in english (if the following can actually be called english), this
-            translates to "allocate an array of WIDTH arrays of HEIGHT arrays
-            of DEPTH floating point values and call it 'pfArray'."
-	   	
-            This creates a linear array in memory with the following order
-		   	
-                    x0y0z0, x0y0z1, x0y0z2, ..., x0y0zDEPTH, x0y1z0, x0y1z1, x0y1z2, ...
-	   	
-            That is, the Z values vary the quickest (are in sucessive memory
-            locations) while X values vary the slowest. This scheme is known
-            as "row-major" order, because in 2D arrays of this type, rows
-            (y values) vary the quickest.
-	   	
-            Our CStackData stack arrays are allocated using another method:
-	   	
-                    float pfArray = (float*) malloc (WIDTH*HEIGHT*DEPTH*sizeof(float));
-	   	
-            and accessed using code such as:
-	   		
-                    float value = pfArray[x + WIDTH*y + (WIDTH*HEIGHT)*z];
-	   	
-            This creates a linear array in memory with the following order:
-	   		
-                    x0y0z0, x1y0z0, x2y0z0, ..., xWIDTHy0z0, x0y1z0, x1y1z0, x2y1z0, ...
-	   	
-            In these arrays, neighboring X values are next to each other in memory
-            (vary the quickest), while neigboring Z values are separated by
-            WIDTH*HEIGHT memory locations (vary the slowest). This scheme is known
-            as "column-major" order, because in 2D arrays of this latter type,
-            columns (x values) vary the quickest.
-	   		
-            This second method (column-major) is the one most widely used by
-            images and imaging applications because arrays may be dynamically
-            allocated in "C", while the first method (row-major) can only be
-            used to allocate static arrays in "C".
-            (I have *never* seen or even heard of an image file where y values
-            were right next to each other in the file. Consecutive x values
-            are almost *always* consecutive in the file.)
-	   	
-            So FFTW expects the values to be in a different order than most of
-            the rest of the world. Heck, even multidimensional arrays in FORTRAN
-            use the "column-major" ordering scheme.
-	   	
-            Luckily, this "feature" is not a problem at all. We can just reverse
-            the order of WIDTH, HEIGHT, DEPTH dimensions we pass to FFTW, making
-            it DEPTH, HEIGHT, WIDTH. That's all it takes!
-     */
-
-    /* always do "in-place" transforms */
-
-    /* Usually only one pointer to the data is defined at any time, but in reality they
-       both point to the same place. */
-    ASSERT(pfData != NULL);
-
-    /* NOTE: If the fftw3 planning flag is set to anything other than
-     * FFTW_ESTIMATE, the planning phase overwrites any data while measuring
-     * the best method to use. As a result, this method is called before
-     * any data is written
-     */
-
-    /**#### Force flags to FFTW_ESTIMATE for testing purposes ####*/
+    m_pFFTPlans = CFFTPlans::acquire(m_iLogicalWidth, m_iLogicalHeight, m_iLogicalDepth, pfData,
+            iFlags, nThreads, bVerbose, iTransform);
+    return m_pFFTPlans != NULL;
+}
 
-    if (g_iVerbose) SHOW_MESSAGE("creating forward FFT plan");
-    m_planForwardFFT = fftwf_plan_dft_r2c_3d(m_iLogicalDepth, m_iLogicalHeight, m_iLogicalWidth,
-            pfData, (fftwf_complex*)pfData, FFTW_ESTIMATE);
-    if (m_planForwardFFT == NULL) {
+BOOL CStackData::
+createCosineZFFTPlans(const CDecoContext* pContext) {
+    if (m_pfRealData == NULL) {
         return FALSE;
     }
-
-    if (g_iVerbose) SHOW_MESSAGE("creating backward FFT plan");
-    m_planBackwardFFT = fftwf_plan_dft_c2r_3d(m_iLogicalDepth, m_iLogicalHeight, m_iLogicalWidth,
-            (fftwf_complex*)pfData, pfData, FFTW_ESTIMATE);
-
-    if (m_planBackwardFFT == NULL) {
-        fftwf_destroy_plan(m_planForwardFFT);
-        return FALSE;
+    if (pContext == NULL) {
+        pContext = CDecoContext::getDefault();
     }
-    return TRUE;
+    int iFlags = m_bQuickPlan ? FFTW_ESTIMATE : pContext->m_iFFTPlanFlags;
+    destroyFFTPlans();
+    return createInPlaceFFTPlans(m_pfRealData, iFlags, pContext->m_nThreads, pContext->m_iVerbose,
+            FFT_TRANSFORM_COSINE_Z);
 }
 
 void CStackData::
 destroyFFTPlans() {
-    if (m_planForwardFFT) {
-        fftwf_destroy_plan(m_planForwardFFT);
+    if (m_pFFTPlans) {
+        CFFTPlans::release(m_pFFTPlans);
     }
-    if (m_planBackwardFFT) {
-        fftwf_destroy_plan(m_planBackwardFFT);
-    }
-    m_planForwardFFT = NULL;
-    m_planBackwardFFT = NULL;
+    m_pFFTPlans = NULL;
 }
 
 BOOL CStackData::
 forwardFFT() {
-    if (m_pfRealData == NULL || m_planForwardFFT == NULL) {
+    if (m_pfRealData == NULL || m_pFFTPlans == NULL) {
         return FALSE;
     }
 
-    fftwf_execute(m_planForwardFFT);
+    fftwf_execute_dft_r2c(m_pFFTPlans->m_planForward, m_pfRealData, (fftwf_complex*) m_pfRealData);
+    if (m_pFFTPlans->m_planForwardZ) {
+        /* the planes are transformed, now transform the real and imaginary
+           parts along Z */
+        fftwf_execute_r2r(m_pFFTPlans->m_planForwardZ, m_pfRealData, m_pfRealData);
+    }
     /* transforms are always in-place, so swap pointers */
     m_pfcComplexData = (FCOMPLEX*) m_pfRealData;
     m_pfRealData = 0;
@@ -370,22 +406,64 @@ forwardFFT() {
 
 BOOL CStackData::
 inverseFFT() {
-    if (m_pfcComplexData == NULL || m_planBackwardFFT == NULL) {
+    if (m_pfcComplexData == NULL || m_pFFTPlans == NULL) {
         return false;
     }
 
-    fftwf_execute(m_planBackwardFFT);
+    if (m_pFFTPlans->m_planBackwardZ) {
+        inverseCosineZ(FALSE);
+    }
+    fftwf_execute_dft_c2r(m_pFFTPlans->m_planBackward, (fftwf_complex*) m_pfcComplexData, (FLOAT*) m_pfcComplexData);
     /* transforms are always in-place, so swap pointers */
     m_pfRealData = (FLOAT*) m_pfcComplexData;
     m_pfcComplexData = 0;
     return TRUE;
 }
 
+BOOL CStackData::
+inverseCosineZ(BOOL bOdd) {
+    FLOAT* pf = (m_pfcComplexData != NULL) ? (FLOAT*) m_pfcComplexData : m_pfRealData;
+    if (pf == NULL || !hasCosineZFFTPlan()) {
+        return FALSE;
+    }
+
+    fftwf_execute_r2r(bOdd ? m_pFFTPlans->m_planBackwardOddZ : m_pFFTPlans->m_planBackwardZ, pf, pf);
+    m_pfcComplexData = (FCOMPLEX*) pf;
+    m_pfRealData = 0;
+    return TRUE;
+}
+
+BOOL CStackData::
+inverseXY() {
+    if (m_pfcComplexData == NULL || !hasCosineZFFTPlan()) {
+        return FALSE;
+    }
+
+    fftwf_execute_dft_c2r(m_pFFTPlans->m_planBackward, (fftwf_complex*) m_pfcComplexData, (FLOAT*) m_pfcComplexData);
+    m_pfRealData = (FLOAT*) m_pfcComplexData;
+    m_pfcComplexData = 0;
+    return TRUE;
+}
+
+BOOL CStackData::
+copyTransform(CStackData* pSrc) {
+    FCOMPLEX* pfc = (m_pfcComplexData != NULL) ? m_pfcComplexData : (FCOMPLEX*) m_pfRealData;
+    if (pfc == NULL || pSrc->m_pfcComplexData == NULL || pSrc->m_iComplexStackSize != m_iComplexStackSize) {
+        return FALSE;
+    }
+
+    memcpy(pfc, pSrc->m_pfcComplexData, m_iComplexStackSize * sizeof (FCOMPLEX));
+    /* the data is a transform now, so swap pointers like forwardFFT */
+    m_pfcComplexData = pfc;
+    m_pfRealData = 0;
+    return TRUE;
+}
+
 void CStackData::
 normalizeInverseFFT() {
     ASSERT(m_pfRealData != 0);
 
-    int iLen = m_iRealStackSize;
+    size_t iLen = m_iRealStackSize;
     double dScale = 1.0 / calcFFTScaleFactor();
     ASSERT(dScale != 0.0);
     FLOAT* pf = m_pfRealData;
@@ -401,50 +479,20 @@ pad(int iNewWidth, int iNewHeight, int iNewDepth, int iPadCenter) {
     ASSERT(iNewHeight >= m_iLogicalHeight);
     ASSERT(iNewDepth >= m_iLogicalDepth);
 
-    CStackData* pDest = new CStackData(iNewWidth, iNewHeight, iNewDepth, hasFFTPlan(), m_bQuickPlan);
+    CStackData* pDest = new CStackData(iNewWidth, iNewHeight, iNewDepth, FALSE, m_bQuickPlan);
     if (!pDest->isValid()) {
         FATAL_ERROR("not enough memory to pad stack");
     }
+    if (hasFFTPlan()) {
+        /* plan the padded size the same way as the current one. Planning may
+           overwrite the data, so the stack is cleared again afterwards. */
+        pDest->createInPlaceFFTPlans(pDest->m_pfRealData, m_pFFTPlans->getFlags(),
+                m_pFFTPlans->getNumThreads(), FALSE);
+        memset(pDest->m_pfRealData, 0, pDest->m_iRealStackSize * sizeof (FLOAT));
+    }
 
     if (iPadCenter) {
-        /* for clarity */
-        int iSrcW = this->m_iLogicalWidth;
-        int iSrcH = this->m_iLogicalHeight;
-        int iSrcD = this->m_iLogicalDepth;
-
-        int iDestW = pDest->m_iLogicalWidth;
-        int iDestH = pDest->m_iLogicalHeight;
-        int iDestD = pDest->m_iLogicalDepth;
-
-        int iHalfW = iSrcW / 2;
-        int iHalfH = iSrcH / 2;
-        int iHalfD = iSrcD / 2;
-
-        /* copy each of the eight corners of this stack to the dest stack */
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                0,					0,					0,
-                0,					0,					0);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                iSrcW - iHalfW,		0,					0,
-                iDestW - iHalfW,	0,					0);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                0,					iSrcH - iHalfH,		0,
-                0,					iDestH - iHalfH,	0);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                iSrcW - iHalfW,		iSrcH - iHalfH,		0,
-                iDestW - iHalfW,	iDestH - iHalfH,	0);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                0,					0,					iSrcD - iHalfD,
-                0,					0,					iDestD - iHalfD);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                iSrcW - iHalfW,		0,					iSrcD - iHalfD,
-                iDestW - iHalfW,	0,					iDestD - iHalfD);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                0,					iSrcH - iHalfH,		iSrcD - iHalfD,
-                0,					iDestH - iHalfH,	iDestD - iHalfD);
-        pDest->copySubStack(this, iHalfW, iHalfH, iHalfD,
-                iSrcW - iHalfW,		iSrcH - iHalfH,		iSrcD - iHalfD,
-                iDestW - iHalfW,	iDestH - iHalfH,	iDestD - iHalfD);
+        pDest->copyPadCenter(this);
     } else {
         pDest->copySubStack(this, this->m_iLogicalWidth, this->m_iLogicalHeight, this->m_iLogicalDepth,
                 0, 0, 0, 0, 0, 0);
@@ -452,22 +500,75 @@ pad(int iNewWidth, int iNewHeight, int iNewDepth, int iPadCenter) {
 
     /* steal the destination stack's data and put it in this stack */
     calcSize(iNewWidth, iNewHeight, iNewDepth);
-    fftwf_free(this->m_pfRealData);
+    freeData(this->m_pfRealData);
     this->m_pfRealData = pDest->m_pfRealData;
     this->m_pfcComplexData = 0;
 
     /* steal the destination stack's FFT plan and put it in this stack */
     destroyFFTPlans();
-    this->m_planForwardFFT = pDest->m_planForwardFFT;
-    this->m_planBackwardFFT = pDest->m_planBackwardFFT;
+    this->m_pFFTPlans = pDest->m_pFFTPlans;
 
     /* set the destination's data pointer and plans to zero so it won't free the memory when destroyed */
     pDest->m_pfRealData = 0;
-    pDest->m_planForwardFFT = 0;
-    pDest->m_planBackwardFFT = 0;
+    pDest->m_pFFTPlans = 0;
     delete pDest;
 }
 
+void CStackData::
+copyPadCenter(CStackData* pSrc) {
+    ASSERT(m_iLogicalWidth >= pSrc->m_iLogicalWidth);
+    ASSERT(m_iLogicalHeight >= pSrc->m_iLogicalHeight);
+    ASSERT(m_iLogicalDepth >= pSrc->m_iLogicalDepth);
+
+    if (m_iLogicalWidth == pSrc->m_iLogicalWidth
+            && m_iLogicalHeight == pSrc->m_iLogicalHeight
+            && m_iLogicalDepth == pSrc->m_iLogicalDepth) {
+        /* nothing to pad, so copy everything (including any odd center lines) */
+        copySubStack(pSrc, m_iLogicalWidth, m_iLogicalHeight, m_iLogicalDepth,
+                0, 0, 0, 0, 0, 0);
+        return;
+    }
+
+    /* for clarity */
+    int iSrcW = pSrc->m_iLogicalWidth;
+    int iSrcH = pSrc->m_iLogicalHeight;
+    int iSrcD = pSrc->m_iLogicalDepth;
+
+    int iDestW = m_iLogicalWidth;
+    int iDestH = m_iLogicalHeight;
+    int iDestD = m_iLogicalDepth;
+
+    int iHalfW = iSrcW / 2;
+    int iHalfH = iSrcH / 2;
+    int iHalfD = iSrcD / 2;
+
+    /* copy each of the eight corners of the source stack to this stack */
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        0,					0,					0,
+        0,					0,					0);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        iSrcW - iHalfW,		0,					0,
+        iDestW - iHalfW,	0,					0);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        0,					iSrcH - iHalfH,		0,
+        0,					iDestH - iHalfH,	0);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        iSrcW - iHalfW,		iSrcH - iHalfH,		0,
+        iDestW - iHalfW,	iDestH - iHalfH,	0);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        0,					0,					iSrcD - iHalfD,
+        0,					0,					iDestD - iHalfD);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        iSrcW - iHalfW,		0,					iSrcD - iHalfD,
+        iDestW - iHalfW,	0,					iDestD - iHalfD);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        0,					iSrcH - iHalfH,		iSrcD - iHalfD,
+        0,					iDestH - iHalfH,	iDestD - iHalfD);
+    copySubStack(pSrc, iHalfW, iHalfH, iHalfD,
+        iSrcW - iHalfW,		iSrcH - iHalfH,		iSrcD - iHalfD,
+        iDestW - iHalfW,	iDestH - iHalfH,	iDestD - iHalfD);
+}
+
 void CStackData::
 copySubStack(CStackData* pSrc, int iW, int iH, int iD,
         int iSrcX, int iSrcY, int iSrcZ,
@@ -508,3 +609,552 @@ copySubStack(CStackData* pSrc, int iW, int iH, int iD,
 }
 
 
+
+COTFData::
+COTFData(CStackData* pPsf, int iWidth, int iHeight, int iDepth, BOOL bQuickFFTPlan,
+        const CDecoContext* pContext) {
+    m_dNorm = 0.0;
+    m_bCosineZ = FALSE;
+    m_pOddZ = NULL;
+    m_pfRealOTF = NULL;
+    m_iKeptDepthZ = 0;
+    if (pContext == NULL) {
+        pContext = CDecoContext::getDefault();
+    }
+    if (pPsf->m_pfRealData == 0) {
+        SHOW_ERROR("psf is empty.");
+        return;
+    }
+    if (iWidth < pPsf->m_iLogicalWidth || iHeight < pPsf->m_iLogicalHeight || iDepth < pPsf->m_iLogicalDepth) {
+        SHOW_ERROR("the OTF must be at least as large as the psf.");
+        return;
+    }
+
+    create(iWidth, iHeight, iDepth, TRUE, bQuickFFTPlan, pContext);
+    if (!isValid()) {
+        return;
+    }
+    if (!hasFFTPlan()) {
+        SHOW_ERROR("could not create FFT plans for the OTF");
+        destroy();
+        return;
+    }
+
+    /* psf now has dimensions W x H x D */
+    copyPadCenter(pPsf);
+
+    if (pContext->m_iVerbose) SHOW_MESSAGE("calculating OTF from Psf");
+    if (!forwardFFT()) {
+        SHOW_ERROR("could not create the OTF from the Psf");
+        destroy();
+        return;
+    }
+
+    /* the OTF is never transformed back, so release the plans now */
+    destroyFFTPlans();
+
+    /* normalize the OTF by dividing by the DC average (frequency = 0) */
+    FCOMPLEX* pfcOtf = m_pfcComplexData;
+    size_t iCount = m_iComplexStackSize;
+    m_dNorm = sqrt((pfcOtf->re * pfcOtf->re) + (pfcOtf->im * pfcOtf->im));
+    if (m_dNorm == 0.0) {
+        SHOW_ERROR("the psf sums to zero");
+        destroy();
+        return;
+    }
+    while (iCount--) {
+        pfcOtf->re /= m_dNorm;
+        pfcOtf->im /= m_dNorm;
+        pfcOtf++;
+    }
+    storeRealOTF();
+}
+
+/* a part of the OTF is treated as zero if none of its values is larger than
+   this. The OTF is normalized to 1 at frequency=0, so this is about the size
+   of the rounding errors of a single precision transform. */
+#define OTF_ZERO_CUTOFF 1e-5
+
+void COTFData::
+storeRealOTF() {
+    FCOMPLEX* pfc = m_pfcComplexData;
+    size_t iCount = m_iComplexStackSize;
+    while (iCount--) {
+        if (fabs(pfc->im) > OTF_ZERO_CUTOFF) {
+            return;
+        }
+        pfc++;
+    }
+
+    /* if there is not enough memory, the complex OTF is simply kept */
+    m_pfRealOTF = (FLOAT*) fftwf_malloc(m_iComplexStackSize * sizeof (FLOAT));
+    if (m_pfRealOTF == NULL) {
+        return;
+    }
+    for (size_t i = 0; i < m_iComplexStackSize; i++) {
+        m_pfRealOTF[i] = m_pfcComplexData[i].re;
+    }
+    fftwf_free(m_pfcComplexData);
+    m_pfcComplexData = 0;
+}
+
+COTFData::
+COTFData(COTFData* pOTF) {
+    m_dNorm = pOTF->m_dNorm;
+    m_bCosineZ = TRUE;
+    m_pOddZ = NULL;
+    m_pfRealOTF = NULL;
+    m_iKeptDepthZ = 0;
+    if (!pOTF->isValid() || pOTF->m_bCosineZ || (pOTF->m_iLogicalDepth % 2) != 0) {
+        SHOW_ERROR("the OTF must be a transform of even depth.");
+        return;
+    }
+
+    /*  The transform of a stack mirrored to depth N = 2D is the cosine
+        transform C of the lower half, times exp(i*pi*k/N). Multiplying it by
+        the OTF G and transforming back gives in the lower half
+
+            y = 1/(2N) * (DCT-III(P * C) + DST-III(Q * C shifted down one plane))
+
+        with P[k] = G[k] + G[N-k] and Q[k] = i*(G[k] - G[N-k]) for k = 0..D-1.
+        Both are stored divided by two, so the convolution is scaled by N like
+        the transform of the mirrored stack. Q[0] is always zero, and all of Q
+        is zero if the psf is symmetric along Z. */
+    int iDepth = pOTF->m_iLogicalDepth / 2;
+    int N = pOTF->m_iLogicalDepth;
+    create(pOTF->m_iLogicalWidth, pOTF->m_iLogicalHeight, iDepth, FALSE, TRUE);
+    m_pOddZ = new CStackData(m_iLogicalWidth, m_iLogicalHeight, iDepth, FALSE, TRUE);
+    if (!isValid() || !m_pOddZ->isValid()) {
+        destroy();
+        delete m_pOddZ;
+        m_pOddZ = NULL;
+        return;
+    }
+    m_pfcComplexData = (FCOMPLEX*) m_pfRealData;
+    m_pfRealData = 0;
+
+    size_t iPlaneSize = m_iComplexPlaneSize;
+    FCOMPLEX* pfcOdd = (FCOMPLEX*) m_pOddZ->m_pfRealData;
+    double dMaxOdd = 0.0;
+    int z;
+    size_t i;
+    double dRe, dIm, dMirrorRe, dMirrorIm;
+    for (z = 0; z < iDepth; z++) {
+        size_t iOffset = z * iPlaneSize;
+        size_t iMirrorOffset = ((N - z) % N) * iPlaneSize;
+        FCOMPLEX* pfcEven = m_pfcComplexData + iOffset;
+        FCOMPLEX* pfcOddPlane = pfcOdd + iOffset;
+        for (i = 0; i < iPlaneSize; i++) {
+            /* the OTF may only have its real part */
+            if (pOTF->m_pfRealOTF) {
+                dRe = pOTF->m_pfRealOTF[iOffset + i];
+                dMirrorRe = pOTF->m_pfRealOTF[iMirrorOffset + i];
+                dIm = dMirrorIm = 0.0;
+            } else {
+                dRe = pOTF->m_pfcComplexData[iOffset + i].re;
+                dIm = pOTF->m_pfcComplexData[iOffset + i].im;
+                dMirrorRe = pOTF->m_pfcComplexData[iMirrorOffset + i].re;
+                dMirrorIm = pOTF->m_pfcComplexData[iMirrorOffset + i].im;
+            }
+            pfcEven[i].re = (FLOAT) (0.5 * (dRe + dMirrorRe));
+            pfcEven[i].im = (FLOAT) (0.5 * (dIm + dMirrorIm));
+            pfcOddPlane[i].re = (FLOAT) (-0.5 * (dIm - dMirrorIm));
+            pfcOddPlane[i].im = (FLOAT) (0.5 * (dRe - dMirrorRe));
+            if (fabs(pfcOddPlane[i].re) > dMaxOdd) dMaxOdd = fabs(pfcOddPlane[i].re);
+            if (fabs(pfcOddPlane[i].im) > dMaxOdd) dMaxOdd = fabs(pfcOddPlane[i].im);
+        }
+    }
+    storeRealOTF();
+
+    if (dMaxOdd <= OTF_ZERO_CUTOFF) {
+        delete m_pOddZ;
+        m_pOddZ = NULL;
+    } else {
+        m_pOddZ->m_pfcComplexData = pfcOdd;
+        m_pOddZ->m_pfRealData = 0;
+    }
+}
+
+COTFData::
+COTFData(COTFData* pOTF, int iBin) {
+    m_dNorm = pOTF->m_dNorm;
+    m_bCosineZ = pOTF->m_bCosineZ;
+    m_pOddZ = NULL;
+    m_pfRealOTF = NULL;
+    m_iKeptDepthZ = pOTF->m_iKeptDepthZ;
+    if (!pOTF->isValid() || iBin < 1 || pOTF->m_iLogicalWidth / iBin < 1 || pOTF->m_iLogicalHeight / iBin < 1) {
+        SHOW_ERROR("the OTF cannot be binned by this factor.");
+        return;
+    }
+
+    /* the cosine transform along Z and the odd part are not changed by
+       binning in X and Y, so every plane is cropped the same way */
+    create(pOTF->m_iLogicalWidth / iBin, pOTF->m_iLogicalHeight / iBin, pOTF->m_iLogicalDepth, FALSE, TRUE);
+    if (pOTF->m_pOddZ) {
+        m_pOddZ = new CStackData(m_iLogicalWidth, m_iLogicalHeight, m_iLogicalDepth, FALSE, TRUE);
+    }
+    if (!isValid() || (m_pOddZ && !m_pOddZ->isValid())) {
+        destroy();
+        delete m_pOddZ;
+        m_pOddZ = NULL;
+        return;
+    }
+    m_pfcComplexData = (FCOMPLEX*) m_pfRealData;
+    m_pfRealData = 0;
+    cropFrequenciesXY(m_pfcComplexData, this, pOTF->m_pfcComplexData, pOTF->m_pfRealOTF, pOTF);
+    if (m_pOddZ) {
+        m_pOddZ->m_pfcComplexData = (FCOMPLEX*) m_pOddZ->m_pfRealData;
+        m_pOddZ->m_pfRealData = 0;
+        cropFrequenciesXY(m_pOddZ->m_pfcComplexData, m_pOddZ, pOTF->m_pOddZ->m_pfcComplexData, NULL, pOTF->m_pOddZ);
+    }
+    storeRealOTF();
+}
+
+void COTFData::
+cropFrequenciesXY(FCOMPLEX* pfcDest, CStackData* pDest,
+        const FCOMPLEX* pfcSrc, const FLOAT* pfRealSrc, CStackData* pSrc) {
+    /* X only has the non-negative frequencies. Along Y, the first half of
+       the lines has the non-negative frequencies and the rest the negative
+       ones, so the negative ones are taken from the end of the source. */
+    int x, y, z;
+    int iHeight = pDest->m_iComplexHeight;
+    for (z = 0; z < pDest->m_iComplexDepth; z++) {
+        for (y = 0; y < iHeight; y++) {
+            int ySrc = (y <= iHeight / 2) ? y : pSrc->m_iComplexHeight - (iHeight - y);
+            size_t iDest = z * pDest->m_iComplexPlaneSize + y * (size_t) pDest->m_iComplexLineSize;
+            size_t iSrc = z * pSrc->m_iComplexPlaneSize + ySrc * (size_t) pSrc->m_iComplexLineSize;
+            for (x = 0; x < pDest->m_iComplexWidth; x++) {
+                if (pfRealSrc) {
+                    pfcDest[iDest + x].re = pfRealSrc[iSrc + x];
+                    pfcDest[iDest + x].im = 0;
+                } else {
+                    pfcDest[iDest + x] = pfcSrc[iSrc + x];
+                }
+            }
+        }
+    }
+}
+
+COTFData::
+~COTFData() {
+    delete m_pOddZ;
+    if (m_pfRealOTF) {
+        fftwf_free(m_pfRealOTF);
+    }
+}
+
+//==========================================================================
+// FFT plan cache
+//==========================================================================
+
+/* all cached plans, most recently created first */
+static CFFTPlans* s_pFirstPlans = NULL;
+static int s_nCachedPlans = 0;
+static int s_nMaxCachedPlans = 8;
+static unsigned long s_ulPlanClock = 0;
+static BOOL s_bThreadsInitialized = FALSE;
+
+/* the FFTW planner is not thread-safe, so creating and destroying plans
+   (and the cache itself) is protected by a single lock */
+#ifndef NOTHREADS
+static pthread_mutex_t s_mutexPlans = PTHREAD_MUTEX_INITIALIZER;
+#define LOCK_PLANS()	pthread_mutex_lock(&s_mutexPlans)
+#define UNLOCK_PLANS()	pthread_mutex_unlock(&s_mutexPlans)
+#else
+#define LOCK_PLANS()
+#define UNLOCK_PLANS()
+#endif
+
+CFFTPlans::
+CFFTPlans() {
+    m_planForward = NULL;
+    m_planBackward = NULL;
+    m_planForwardZ = NULL;
+    m_planBackwardZ = NULL;
+    m_planBackwardOddZ = NULL;
+    m_iWidth = m_iHeight = m_iDepth = m_iFlags = m_iAlignment = m_iTransform = 0;
+    m_nThreads = 1;
+    m_nRefs = 0;
+    m_ulLastUse = 0;
+    m_pNext = NULL;
+}
+
+CFFTPlans::
+~CFFTPlans() {
+    if (m_planForward) {
+        fftwf_destroy_plan(m_planForward);
+    }
+    if (m_planBackward) {
+        fftwf_destroy_plan(m_planBackward);
+    }
+    if (m_planForwardZ) {
+        fftwf_destroy_plan(m_planForwardZ);
+    }
+    if (m_planBackwardZ) {
+        fftwf_destroy_plan(m_planBackwardZ);
+    }
+    if (m_planBackwardOddZ) {
+        fftwf_destroy_plan(m_planBackwardOddZ);
+    }
+}
+
+CFFTPlans* CFFTPlans::
+acquire(int iWidth, int iHeight, int iDepth, FLOAT* pfData, int iFlags,
+        int nThreads, BOOL bVerbose, int iTransform) {
+    /* Usually only one pointer to the data is defined at any time, but in reality they
+       both point to the same place. */
+    ASSERT(pfData != NULL);
+
+    /* new-array execution requires the same alignment the plans were created with */
+    int iAlignment = fftwf_alignment_of(pfData);
+#ifdef NOTHREADS
+    nThreads = 1;
+#endif
+    if (nThreads < 1) {
+        nThreads = 1;
+    }
+
+    LOCK_PLANS();
+    CFFTPlans* pPlans;
+    for (pPlans = s_pFirstPlans; pPlans != NULL; pPlans = pPlans->m_pNext) {
+        if (pPlans->m_iWidth == iWidth && pPlans->m_iHeight == iHeight && pPlans->m_iDepth == iDepth
+                && pPlans->m_iFlags == iFlags && pPlans->m_iAlignment == iAlignment
+                && pPlans->m_nThreads == nThreads && pPlans->m_iTransform == iTransform) {
+            pPlans->m_nRefs++;
+            pPlans->m_ulLastUse = ++s_ulPlanClock;
+            UNLOCK_PLANS();
+            return pPlans;
+        }
+    }
+
+    /*
+            FFTW assumes that arrays were created using C++'s multidimensional
+        array declaration:
+	
+                    float pfArray[WIDTH][HEIGHT][DEPTH];
+	   	
+            Multidimensional arrays created this way are accessed using code
+            such as:
+	   		
+                    float value = pfArray[x][y][z];
+
+            Because of the "C" "right-to-left" precedence for the array operator
+            "[]", The statement "float pfArray[WIDTH][HEIGHT][DEPTH];" is
+            equivalent to "float pfArray[WIDTH]([HEIGHT]([DEPTH]))". Written
+            in english (if the following can actually be called english), this
+            translates to "allocate an array of WIDTH arrays of HEIGHT arrays
+            of DEPTH floating point values and call it 'pfArray'."
+	   	
+            This creates a linear array in memory with the following order
+		   	
+                    x0y0z0, x0y0z1, x0y0z2, ..., x0y0zDEPTH, x0y1z0, x0y1z1, x0y1z2, ...
+	   	
+            That is, the Z values vary the quickest (are in sucessive memory
+            locations) while X values vary the slowest. This scheme is known
+            as "row-major" order, because in 2D arrays of this type, rows
+            (y values) vary the quickest.
+	   	
+            Our CStackData stack arrays are allocated using another method:
+	   	
+                    float pfArray = (float*) malloc (WIDTH*HEIGHT*DEPTH*sizeof(float));
+	   	
+            and accessed using code such as:
+	   		
+                    float value = pfArray[x + WIDTH*y + (WIDTH*HEIGHT)*z];
+	   	
+            This creates a linear array in memory with the following order:
+	   		
+                    x0y0z0, x1y0z0, x2y0z0, ..., xWIDTHy0z0, x0y1z0, x1y1z0, x2y1z0, ...
+	   	
+            In these arrays, neighboring X values are next to each other in memory
+            (vary the quickest), while neigboring Z values are separated by
+            WIDTH*HEIGHT memory locations (vary the slowest). This scheme is known
+            as "column-major" order, because in 2D arrays of this latter type,
+            columns (x values) vary the quickest.
+	   		
+            This second method (column-major) is the one most widely used by
+            images and imaging applications because arrays may be dynamically
+            allocated in "C", while the first method (row-major) can only be
+            used to allocate static arrays in "C".
+            (I have *never* seen or even heard of an image file where y values
+            were right next to each other in the file. Consecutive x values
+            are almost *always* consecutive in the file.)
+	   	
+            So FFTW expects the values to be in a different order than most of
+            the rest of the world. Heck, even multidimensional arrays in FORTRAN
+            use the "column-major" ordering scheme.
+	   	
+            Luckily, this "feature" is not a problem at all. We can just reverse
+            the order of WIDTH, HEIGHT, DEPTH dimensions we pass to FFTW, making
+            it DEPTH, HEIGHT, WIDTH. That's all it takes!
+     */
+
+    /* always do "in-place" transforms */
+
+    /* NOTE: If the fftw3 planning flag is set to anything other than
+     * FFTW_ESTIMATE, the planning phase overwrites any data while measuring
+     * the best method to use. As a result, this method is called before
+     * any data is written
+     */
+
+    pPlans = new CFFTPlans();
+    pPlans->m_iWidth = iWidth;
+    pPlans->m_iHeight = iHeight;
+    pPlans->m_iDepth = iDepth;
+    pPlans->m_iFlags = iFlags;
+    pPlans->m_iAlignment = iAlignment;
+    pPlans->m_nThreads = nThreads;
+    pPlans->m_iTransform = iTransform;
+
+#ifndef NOTHREADS
+    /* the thread count is global to the FFTW planner, so it is set here while
+       the planner is locked rather than being kept as a setting */
+    if (!s_bThreadsInitialized) {
+        if (!fftwf_init_threads()) {
+            SHOW_ERROR("could not initialize FFT threads");
+            delete pPlans;
+            UNLOCK_PLANS();
+            return NULL;
+        }
+        s_bThreadsInitialized = TRUE;
+    }
+    fftwf_plan_with_nthreads(nThreads);
+#endif
+
+    BOOL bValid;
+    if (iTransform == FFT_TRANSFORM_COSINE_Z) {
+        /* each plane is transformed on its own, using the padded line and plane
+           layout of the stack */
+        int iComplexWidth = iWidth / 2 + 1;
+        int iRealPlaneSize = CStackData::actualWidth(iWidth) * iHeight;
+        int iComplexPlaneSize = iComplexWidth * iHeight;
+        int aiSize[2] = {iHeight, iWidth};
+        int aiRealEmbed[2] = {iHeight, CStackData::actualWidth(iWidth)};
+        int aiComplexEmbed[2] = {iHeight, iComplexWidth};
+
+        if (bVerbose) SHOW_MESSAGE("creating forward FFT plan");
+        pPlans->m_planForward = fftwf_plan_many_dft_r2c(2, aiSize, iDepth,
+                pfData, aiRealEmbed, 1, iRealPlaneSize,
+                (fftwf_complex*)pfData, aiComplexEmbed, 1, iComplexPlaneSize, iFlags);
+
+        if (bVerbose) SHOW_MESSAGE("creating backward FFT plan");
+        pPlans->m_planBackward = fftwf_plan_many_dft_c2r(2, aiSize, iDepth,
+                (fftwf_complex*)pfData, aiComplexEmbed, 1, iComplexPlaneSize,
+                pfData, aiRealEmbed, 1, iRealPlaneSize, iFlags);
+
+        /* every float of a plane (real and imaginary parts alike) is
+           transformed along Z */
+        fftwf_r2r_kind kind;
+        if (bVerbose) SHOW_MESSAGE("creating Z transform plans");
+        kind = FFTW_REDFT10;
+        pPlans->m_planForwardZ = fftwf_plan_many_r2r(1, &iDepth, iRealPlaneSize,
+                pfData, NULL, iRealPlaneSize, 1, pfData, NULL, iRealPlaneSize, 1, &kind, iFlags);
+        kind = FFTW_REDFT01;
+        pPlans->m_planBackwardZ = fftwf_plan_many_r2r(1, &iDepth, iRealPlaneSize,
+                pfData, NULL, iRealPlaneSize, 1, pfData, NULL, iRealPlaneSize, 1, &kind, iFlags);
+        kind = FFTW_RODFT01;
+        pPlans->m_planBackwardOddZ = fftwf_plan_many_r2r(1, &iDepth, iRealPlaneSize,
+                pfData, NULL, iRealPlaneSize, 1, pfData, NULL, iRealPlaneSize, 1, &kind, iFlags);
+
+        bValid = pPlans->m_planForward != NULL && pPlans->m_planBackward != NULL
+                && pPlans->m_planForwardZ != NULL && pPlans->m_planBackwardZ != NULL
+                && pPlans->m_planBackwardOddZ != NULL;
+    } else {
+        if (bVerbose) SHOW_MESSAGE("creating forward FFT plan");
+        pPlans->m_planForward = fftwf_plan_dft_r2c_3d(iDepth, iHeight, iWidth,
+                pfData, (fftwf_complex*)pfData, iFlags);
+
+        if (bVerbose) SHOW_MESSAGE("creating backward FFT plan");
+        pPlans->m_planBackward = fftwf_plan_dft_c2r_3d(iDepth, iHeight, iWidth,
+                (fftwf_complex*)pfData, pfData, iFlags);
+
+        bValid = pPlans->m_planForward != NULL && pPlans->m_planBackward != NULL;
+    }
+
+    if (!bValid) {
+        delete pPlans;
+        UNLOCK_PLANS();
+        return NULL;
+    }
+
+    pPlans->m_nRefs = 1;
+    pPlans->m_ulLastUse = ++s_ulPlanClock;
+    pPlans->m_pNext = s_pFirstPlans;
+    s_pFirstPlans = pPlans;
+    s_nCachedPlans++;
+    trimCache();
+    UNLOCK_PLANS();
+    return pPlans;
+}
+
+void CFFTPlans::
+release(CFFTPlans* pPlans) {
+    LOCK_PLANS();
+    ASSERT(pPlans->m_nRefs > 0);
+    pPlans->m_nRefs--;
+    trimCache();
+    UNLOCK_PLANS();
+}
+
+void CFFTPlans::
+setCacheLimit(int nMaxPlans) {
+    LOCK_PLANS();
+    s_nMaxCachedPlans = nMaxPlans < 0 ? 0 : nMaxPlans;
+    trimCache();
+    UNLOCK_PLANS();
+}
+
+void CFFTPlans::
+clearCache() {
+    LOCK_PLANS();
+    int nMax = s_nMaxCachedPlans;
+    s_nMaxCachedPlans = 0;
+    trimCache();
+    s_nMaxCachedPlans = nMax;
+    UNLOCK_PLANS();
+}
+
+void CFFTPlans::
+setTimeLimit(double dSeconds) {
+    LOCK_PLANS();
+    fftwf_set_timelimit(dSeconds > 0 ? dSeconds : FFTW_NO_TIMELIMIT);
+    UNLOCK_PLANS();
+}
+
+BOOL CFFTPlans::
+importWisdom(const char* pcFileName) {
+    LOCK_PLANS();
+    BOOL bRead = fftwf_import_wisdom_from_filename(pcFileName) ? TRUE : FALSE;
+    UNLOCK_PLANS();
+    return bRead;
+}
+
+BOOL CFFTPlans::
+exportWisdom(const char* pcFileName) {
+    LOCK_PLANS();
+    BOOL bWritten = fftwf_export_wisdom_to_filename(pcFileName) ? TRUE : FALSE;
+    UNLOCK_PLANS();
+    return bWritten;
+}
+
+void CFFTPlans::
+trimCache() {
+    /* NOTE: must be called with the cache locked. Plans in use by a stack are
+       never destroyed, so the cache may temporarily hold more than the limit. */
+    while (s_nCachedPlans > s_nMaxCachedPlans) {
+        CFFTPlans** ppOldest = NULL;
+        CFFTPlans** pp;
+        for (pp = &s_pFirstPlans; *pp != NULL; pp = &((*pp)->m_pNext)) {
+            if ((*pp)->m_nRefs == 0 && (ppOldest == NULL || (*pp)->m_ulLastUse < (*ppOldest)->m_ulLastUse)) {
+                ppOldest = pp;
+            }
+        }
+        if (ppOldest == NULL) {
+            return;
+        }
+        CFFTPlans* pOldest = *ppOldest;
+        *ppOldest = pOldest->m_pNext;
+        delete pOldest;
+        s_nCachedPlans--;
+    }
+}
@@ -18,6 +18,105 @@
 
 #include <fftw3.h>
 
+class CDecoContext;
+
+/* kinds of transforms for CFFTPlans::acquire */
+/** 3D real to complex transform */
+#define FFT_TRANSFORM_3D        0
+/** 2D real to complex transform of each plane followed by a DCT-II along Z.
+    This equals the 3D transform of the stack mirrored to twice its depth,
+    without storing the mirrored half. */
+#define FFT_TRANSFORM_COSINE_Z  1
+
+/**Class to hold a pair of forward and backward FFTW plans for one in-place
+ * transform size. Plans are kept in a process-wide cache and shared by every
+ * stack of the same size, using FFTW's new-array execute functions, so
+ * identically sized stacks never plan the same transform twice.
+ */
+
+class CFFTPlans {
+public:
+    /** returns plans for an in-place W x H x D transform of arrays aligned like
+        pfData, creating them if they are not already cached. NOTE: pfData is
+        overwritten if new plans have to be measured. Returns NULL on failure. */
+    static CFFTPlans* acquire(int iWidth, int iHeight, int iDepth, FLOAT* pfData, int iFlags,
+            int nThreads, BOOL bVerbose, int iTransform = FFT_TRANSFORM_3D);
+
+    /** releases plans returned by acquire. Unused plans stay cached until the
+        cache is full, then the least recently used ones are destroyed. */
+    static void release(CFFTPlans* pPlans);
+
+    /** sets the maximum number of plan pairs to keep in the cache */
+    static void setCacheLimit(int nMaxPlans);
+
+    /** destroys all plans that are not being used by a stack */
+    static void clearCache();
+
+    /** limits the time in seconds the FFTW planner may spend on a single
+        plan, or removes the limit if dSeconds <= 0 */
+    static void setTimeLimit(double dSeconds);
+
+    /** adds the plans in a wisdom file to the FFTW planner. Returns FALSE if
+        the file could not be read. */
+    static BOOL importWisdom(const char* pcFileName);
+
+    /** writes all plans measured so far to a wisdom file. Returns FALSE if
+        the file could not be written. */
+    static BOOL exportWisdom(const char* pcFileName);
+
+    /** returns the planning flags the plans were created with */
+    int getFlags() {
+        return m_iFlags;
+    }
+
+    /** returns the number of threads the plans use */
+    int getNumThreads() {
+        return m_nThreads;
+    }
+
+    /** returns the FFT_TRANSFORM_ kind of the plans */
+    int getTransform() {
+        return m_iTransform;
+    }
+
+public: // Public attributes
+
+    /** plan for the forward FFT transform. For FFT_TRANSFORM_COSINE_Z this only
+        transforms the planes. */
+    fftwf_plan m_planForward;
+
+    /** plan for the backward FFT transform. For FFT_TRANSFORM_COSINE_Z this only
+        transforms the planes. */
+    fftwf_plan m_planBackward;
+
+    /** FFT_TRANSFORM_COSINE_Z plans along Z: the DCT-II applied after
+        m_planForward, the DCT-III applied before m_planBackward, and the
+        DST-III used for the odd part of a mirrored convolution. */
+    fftwf_plan m_planForwardZ;
+    fftwf_plan m_planBackwardZ;
+    fftwf_plan m_planBackwardOddZ;
+
+protected: // Protected methods
+
+    CFFTPlans();
+    ~CFFTPlans();
+
+    /** internal method that destroys unused plans until the cache fits its limit */
+    static void trimCache();
+
+protected: // Protected attributes
+
+    /** transform size, planning flags, data alignment, number of threads and
+        kind of transform the plans were created for */
+    int m_iWidth, m_iHeight, m_iDepth, m_iFlags, m_iAlignment, m_nThreads, m_iTransform;
+    /** number of stacks using the plans */
+    int m_nRefs;
+    /** value of the cache clock the last time the plans were acquired */
+    unsigned long m_ulLastUse;
+    /** next plans in the cache */
+    CFFTPlans* m_pNext;
+};
+
 /**Class to hold stack data
  *@author Jeffrey Kuhn
  */
@@ -27,8 +126,11 @@ public:
     /** default constructor */
     CStackData();
 
-    /** construct an empty stack of a given size */
-    CStackData(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan);
+    /** construct an empty stack of a given size. FFT plans are created with the
+        planning flags and number of threads of pContext (or of the default
+        context if pContext is NULL) */
+    CStackData(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan,
+            const CDecoContext* pContext = NULL);
 
     /** destructor */
     ~CStackData();
@@ -38,6 +140,12 @@ public:
         return (m_pfRealData != 0) || (m_pfcComplexData != 0);
     }
 
+    /** returns TRUE if the stack has the given logical size. An OTF of that
+        size can be used for a transform of the same size. */
+    BOOL hasSize(int iWidth, int iHeight, int iDepth) {
+        return m_iLogicalWidth == iWidth && m_iLogicalHeight == iHeight && m_iLogicalDepth == iDepth;
+    }
+
     /** calculates the actual width (in floats) needed to store the fourier transform */
     static int actualWidth(int iWidth) {
         return 2 * (iWidth / 2 + 1);
@@ -59,7 +167,24 @@ public:
     }
 
     /** create the data storage space. Use isValid() to check the results. */
-    void create(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan);
+    void create(int iWidth, int iHeight, int iDepth, BOOL bCreateFFTPlan, BOOL bQuickFFTPlan,
+            const CDecoContext* pContext = NULL);
+
+    /** create the data storage space in a memory-mapped scratch file in the
+        directory pcDir instead of in memory. The stack has no FFT plans and
+        the file is deleted when the stack is destroyed. Use isValid() to
+        check the results. */
+    void createMapped(int iWidth, int iHeight, int iDepth, const char* pcDir);
+
+    /** move the data of a stack in real form to a memory-mapped scratch file
+        in the directory pcDir and free its memory. Returns FALSE and leaves
+        the stack alone if the file cannot be created. */
+    BOOL moveToScratch(const char* pcDir);
+
+    /** returns TRUE if the data is stored in a memory-mapped scratch file */
+    BOOL isMapped() {
+        return m_cbMapped != 0;
+    }
 
     BOOL setPlane(int zDest, FLOAT* pfSrc, int iSrcLen);
 	
@@ -69,11 +194,28 @@ public:
     
 	BOOL getPlane(FLOAT* pfDest, int iDestLen, int zSrc);
 
+    /** copy an entire stack of contiguous planes into the padded storage,
+        converting to FLOAT in a single pass */
+    BOOL setStack(FLOAT* pfSrc, INT64 lSrcLen);
+
+    BOOL setStack(BYTE* pbSrc, INT64 lSrcLen);
+
+    BOOL setStack(WORD* pwSrc, INT64 lSrcLen);
+
+    /** copy the entire stack into an array of contiguous planes */
+    BOOL getStack(FLOAT* pfDest, INT64 lDestLen);
+
+    /** write the logical voxels to a binary file, without the padding */
+    BOOL writeData(FILE* pFile);
+
+    /** read the logical voxels written by writeData */
+    BOOL readData(FILE* pFile);
+
     /** destroy any storage space previously created with "create" */
     void destroy();
 
     BOOL hasFFTPlan() {
-        return (m_planForwardFFT != NULL && m_planBackwardFFT != NULL);
+        return (m_pFFTPlans != NULL);
     }
 
     /** perform a forward, in-place FFT (real to complex) */
@@ -84,9 +226,34 @@ public:
         an inverse FFT. */
     BOOL inverseFFT();
 
-    /** calculates the scale factor to divide by after an inverse FFT. */
+    /** copy the transform of pSrc, which must be transformed and have the
+        same size, into this stack. This stack is transformed afterwards. */
+    BOOL copyTransform(CStackData* pSrc);
+
+    /** replaces the FFT plans with FFT_TRANSFORM_COSINE_Z plans, so forwardFFT
+        transforms the stack as if it were mirrored to twice its depth. Call this
+        before writing any data, because planning may overwrite it. */
+    BOOL createCosineZFFTPlans(const CDecoContext* pContext = NULL);
+
+    /** returns TRUE if the stack has FFT_TRANSFORM_COSINE_Z plans */
+    BOOL hasCosineZFFTPlan() {
+        return m_pFFTPlans != NULL && m_pFFTPlans->getTransform() == FFT_TRANSFORM_COSINE_Z;
+    }
+
+    /** first half of inverseFFT for FFT_TRANSFORM_COSINE_Z plans: the inverse
+        transform along Z, using a DST-III instead of the DCT-III if bOdd is
+        TRUE. The stack stays transformed, even if it was not before. */
+    BOOL inverseCosineZ(BOOL bOdd);
+
+    /** second half of inverseFFT for FFT_TRANSFORM_COSINE_Z plans: the inverse
+        transform of each plane */
+    BOOL inverseXY();
+
+    /** calculates the scale factor to divide by after an inverse FFT. The
+        cosine transform along Z is scaled by twice the depth. */
     double calcFFTScaleFactor() {
-        return ((double) m_iLogicalWidth)*m_iLogicalHeight*m_iLogicalDepth;
+        double dScale = ((double) m_iLogicalWidth)*m_iLogicalHeight*m_iLogicalDepth;
+        return hasCosineZFFTPlan() ? 2 * dScale : dScale;
     }
 
     /** divides every value in the stack by (W*H*D) to normalize the inverse FFT */
@@ -97,6 +264,10 @@ public:
         old dimensions. */
     void pad(int iNewWidth, int iNewHeight, int iNewDepth, int iPadCenter = FALSE);
 
+    /** copy another (smaller or equal sized) stack to this stack, padding the
+        center with zeros. Used to place a wrapped-around psf in a larger stack. */
+    void copyPadCenter(CStackData* pSrc);
+
     /** copy a portion of another stack to this stack */
     void copySubStack(CStackData* pSrc, int iW, int iH, int iD, int iSrcX, int iSrcY, int iSrcZ, int iDestX, int iDestY, int iDestZ);
 
@@ -118,9 +289,9 @@ public: // Public attributes
     /** actual size of a single line in the stack (in floats) */
     int m_iRealLineSize;
     /** actual size of a single plane in the stack (in floats) */
-    int m_iRealPlaneSize;
+    size_t m_iRealPlaneSize;
     /** actual size of the entire stack (in floats) */
-    int m_iRealStackSize;
+    size_t m_iRealStackSize;
 
     /** width of stack when it is in FCOMPLEX form */
     int m_iComplexWidth;
@@ -131,9 +302,9 @@ public: // Public attributes
     /** actual size of a single line in the stack (in FCOMPLEX's) */
     int m_iComplexLineSize;
     /** actual size of a single plane in the stack (in FCOMPLEX's) */
-    int m_iComplexPlaneSize;
+    size_t m_iComplexPlaneSize;
     /** actual size of the entire stack (in FCOMPLEX's) */
-    int m_iComplexStackSize;
+    size_t m_iComplexStackSize;
 
     /** pointer to the actual data when it is in real form */
     FLOAT* m_pfRealData;
@@ -147,20 +318,105 @@ protected: // Protected methods
     /** internal method to calculate all of the stack size numbers */
     void calcSize(int iW, int iH, int iD);
 
-    /** internal method that creates an fftw "plan" file for real Fourier Transforms */
-    BOOL createInPlaceFFTPlans(FLOAT* pfData, int iFlags /* = FFTW_MEASURE */);
+    /** internal method that gets the (shared) fftw "plans" for real Fourier Transforms */
+    BOOL createInPlaceFFTPlans(FLOAT* pfData, int iFlags /* = FFTW_MEASURE */, int nThreads, BOOL bVerbose,
+            int iTransform = FFT_TRANSFORM_3D);
 
-    /** internal method that destroys an fftw "plan" previously created with createInPlaceFft */
+    /** internal method that releases the fftw "plans" previously obtained with createInPlaceFFTPlans */
     void destroyFFTPlans();
 
-    /** plan for the forward FFT transform */
-    fftwf_plan m_planForwardFFT;
+    /** internal method that frees the data storage, unmapping it if it is
+        a scratch file */
+    void freeData(void* pvData);
 
-    /** plan for the backward FFT transform */
-    fftwf_plan m_planBackwardFFT;
+    /** internal method that validates a transfer of nPlanes planes starting at
+        zPlane to or from an array with lLen elements */
+    BOOL checkTransfer(int zPlane, int nPlanes, INT64 lLen);
+
+    /** internal method that copies and converts contiguous planes into the
+        padded storage */
+    template <class T> BOOL setPlanes(int zDest, int nPlanes, const T* pSrc, INT64 lSrcLen);
+
+    /** internal method that copies planes out of the padded storage */
+    BOOL getPlanes(FLOAT* pfDest, INT64 lDestLen, int zSrc, int nPlanes);
+
+    /** forward and backward FFT plans, shared with other stacks of the same size */
+    CFFTPlans* m_pFFTPlans;
 
     BOOL m_bQuickPlan;
 
+    /** size of the scratch file mapping holding the data, or 0 if the data
+        is in memory */
+    size_t m_cbMapped;
+
+};
+
+/**Class to hold a normalized optical transfer function (OTF). The OTF is
+ * calculated once from a psf for a given transform size and can then be
+ * used by any number of deconvolutions of that size.
+ */
+
+class COTFData : public CStackData {
+public:
+    /** calculate the OTF of a psf, padded in the center to a W x H x D stack.
+        The psf is not modified. Use isValid() to check the results. */
+    COTFData(CStackData* pPsf, int iWidth, int iHeight, int iDepth, BOOL bQuickFFTPlan,
+            const CDecoContext* pContext = NULL);
+
+    /** calculate the cosine form of pOTF, which must have an even depth 2D.
+        The result has depth D and convolves a D deep stack transformed with
+        FFT_TRANSFORM_COSINE_Z plans exactly like pOTF convolves the stack
+        mirrored to depth 2D. Use isValid() to check the results. */
+    COTFData(COTFData* pOTF);
+
+    /** calculate the OTF for an image binned by iBin in X and Y from pOTF,
+        which may be in either form. The binned image keeps the low
+        frequencies of the image, so the result keeps those of pOTF. Use
+        isValid() to check the results. */
+    COTFData(COTFData* pOTF, int iBin);
+
+    /** destructor */
+    ~COTFData();
+
+    /** returns TRUE if the OTF data is valid */
+    int isValid() {
+        return CStackData::isValid() || (m_pfRealOTF != 0);
+    }
+
+public: // Public attributes
+
+    /** magnitude of the psf transform at frequency=0 (the sum of the psf).
+        The OTF data has already been divided by this value. */
+    double m_dNorm;
+
+    /** TRUE if this is the cosine form of an OTF */
+    BOOL m_bCosineZ;
+
+    /** odd part of a cosine form OTF, or NULL if the psf is symmetric along Z
+        and there is no odd part */
+    CStackData* m_pOddZ;
+
+    /** real part of the OTF if its imaginary part is negligible, as it is for
+        a centered, symmetric psf. m_pfcComplexData is NULL in that case. It has
+        one FLOAT for each FCOMPLEX of the transform. */
+    FLOAT* m_pfRealOTF;
+
+    /** planes of the psf along Z that createExtentOTF kept and padded the
+        image for, or 0 if the OTF was made from the whole psf at the depth
+        it was asked for */
+    int m_iKeptDepthZ;
+
+protected: // Protected methods
+
+    /** internal method that replaces the complex OTF with m_pfRealOTF if its
+        imaginary part is negligible */
+    void storeRealOTF();
+
+    /** internal method that copies the low X and Y frequencies of one stack
+        of FCOMPLEX values to a smaller one. pfRealSrc is used instead of
+        pfcSrc if it is not NULL. */
+    static void cropFrequenciesXY(FCOMPLEX* pfcDest, CStackData* pDest,
+            const FCOMPLEX* pfcSrc, const FLOAT* pfRealSrc, CStackData* pSrc);
 };
 
 #endif /* STACKDATA_H */
@@ -20,15 +20,19 @@
 
 #include <unistd.h>
 #include <sys/types.h>
+#ifndef _WIN32
+#include <fcntl.h>
+#include <sys/mman.h>
+#endif
+#ifndef NOTHREADS
+#include <pthread.h>
+#endif
 
 #include "deco.h"
 
 #define MESSAGE_OUT     stderr
 #define ERROR_OUT       stderr
 
-#define MSG_BUFFER_LEN		2048
-static char pcMsgBuffer[MSG_BUFFER_LEN];
-
 char*
 addStrings(const char* pcA, const char* pcB) {
     char* pcRes = (char*) malloc(strlen(pcA) + strlen(pcB));
@@ -39,7 +43,6 @@ addStrings(const char* pcA, const char* pcB) {
 
 static void
 showMsgPrefix(int type, const char* file, int line) {
-    pcMsgBuffer[0] = '\0';
     switch (type) {
         case SHOWMSG_ERROR:
         case SHOWMSG_FATAL:
@@ -187,3 +190,107 @@ printProgress(char* pcBuffer, int i, int iTotal, time_t* ptStart, double dError,
     return pcBuffer;
 }
 
+
+#ifndef NOTHREADS
+typedef struct {
+    RangeFunc func;
+    void* pvData;
+    int iStart;
+    int iEnd;
+} RANGE_TASK;
+
+static void*
+runRangeTask(void* pvTask) {
+    RANGE_TASK* pTask = (RANGE_TASK*) pvTask;
+    pTask->func(pTask->pvData, pTask->iStart, pTask->iEnd);
+    return NULL;
+}
+#endif
+
+void
+runParallel(RangeFunc func, void* pvData, int nItems, int nThreads) {
+    /* split nItems into nThreads contiguous ranges. The ranges depend only on
+       nItems and nThreads, so a pass that keeps one partial result per item
+       gives the same result for any number of threads. The calling thread
+       works on the first range itself. */
+    if (nThreads > nItems)
+        nThreads = nItems;
+#ifndef NOTHREADS
+    if (nThreads > 1) {
+        RANGE_TASK* pTasks = new RANGE_TASK[nThreads];
+        pthread_t* pThreads = new pthread_t[nThreads];
+        int i;
+        for (i = 0; i < nThreads; i++) {
+            pTasks[i].func = func;
+            pTasks[i].pvData = pvData;
+            pTasks[i].iStart = (int) ((long long) nItems * i / nThreads);
+            pTasks[i].iEnd = (int) ((long long) nItems * (i + 1) / nThreads);
+        }
+        int nStarted = 1;
+        for (i = 1; i < nThreads; i++) {
+            if (pthread_create(&pThreads[i], NULL, runRangeTask, &pTasks[i]) != 0) {
+                break;
+            }
+            nStarted++;
+        }
+        /* do any range that could not get its own thread on this one */
+        for (i = nStarted; i < nThreads; i++) {
+            runRangeTask(&pTasks[i]);
+        }
+        runRangeTask(&pTasks[0]);
+        for (i = 1; i < nStarted; i++) {
+            pthread_join(pThreads[i], NULL);
+        }
+        delete[] pThreads;
+        delete[] pTasks;
+        return;
+    }
+#endif
+    if (nItems > 0)
+        func(pvData, 0, nItems);
+}
+
+void*
+mapScratchFile(const char* pcDir, size_t cbSize) {
+#ifdef _WIN32
+    SHOW_ERROR("scratch files are not supported on this platform");
+    return NULL;
+#else
+    char* pcPath = (char*) malloc(strlen(pcDir) + 16);
+    sprintf(pcPath, "%s/decoj_XXXXXX", pcDir);
+    int fd = mkstemp(pcPath);
+    if (fd < 0) {
+        SHOW_ERROR1("could not create a scratch file in %s", pcDir);
+        free(pcPath);
+        return NULL;
+    }
+    /* the name is removed at once, so the file goes away with the mapping,
+       even if the process is killed */
+    unlink(pcPath);
+    free(pcPath);
+
+    /* reserve the blocks now, so that a full disk is reported here and not
+       as a crash on the first write to a page */
+#ifdef __linux__
+    BOOL bOK = posix_fallocate(fd, 0, (off_t) cbSize) == 0;
+#else
+    BOOL bOK = ftruncate(fd, (off_t) cbSize) == 0;
+#endif
+    void* pvData = bOK ? mmap(NULL, cbSize, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0) : MAP_FAILED;
+    close(fd);
+    if (pvData == MAP_FAILED) {
+        SHOW_ERROR2("could not map a scratch file of %lu MB in %s", (unsigned long) (cbSize >> 20), pcDir);
+        return NULL;
+    }
+    /* the passes read each range of planes from start to end */
+    madvise(pvData, cbSize, MADV_SEQUENTIAL);
+    return pvData;
+#endif
+}
+
+void
+unmapScratchFile(void* pvData, size_t cbSize) {
+#ifndef _WIN32
+    munmap(pvData, cbSize);
+#endif
+}
@@ -7,16 +7,1135 @@
  *
  */
 
+#include <stdio.h>
 #include "testDecoJNA.h"
 #include "deco.h"
 #include "stackdata.h"
 #include "process.h"
 
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+
+/* the byte pattern stored at voxel x,y,z of the synthetic stacks */
+static BYTE patternAt(int x, int y, int z)
+{
+	return (BYTE) ((x + 3 * y + 7 * z) & 0xff);
+}
+
+/* the sizes of a 2048 x 2048 x 256 light-sheet stack padded to twice its
+   depth must not wrap around. Nothing is allocated. */
+static BOOL testLargeSizes()
+{
+	double dExpected = 4.0 * CStackData::actualWidth(2048) * 2048 * 512;
+	if ((double) CStackData::storageBytes(2048, 2048, 512) != dExpected) {
+		printf("FAILED: storageBytes of 2048x2048x512 is %.0f, expected %.0f\n",
+				(double) CStackData::storageBytes(2048, 2048, 512), dExpected);
+		return FALSE;
+	}
+	if (estimateMemory(METHOD_EM, 2048, 2048, 256) < 2 * dExpected) {
+		printf("FAILED: estimateMemory of 2048x2048x256 is %.0f\n",
+				estimateMemory(METHOD_EM, 2048, 2048, 256));
+		return FALSE;
+	}
+	printf("sizes of 2048x2048x256: OK\n");
+	return TRUE;
+}
+
+/* send a W x H x D byte stack across in one call and read back its first and
+   last planes. The stack is created without an FFT plan, so it may be larger
+   than 2^31 floats if there is enough memory. */
+static BOOL testStackRoundTrip(int iWidth, int iHeight, int iDepth)
+{
+	INT64 lPlaneSize = ((INT64) iWidth) * iHeight;
+	INT64 lStackSize = lPlaneSize * iDepth;
+	BOOL bOK = TRUE;
+
+	CStackData* pStack = createEmptyStack(iWidth, iHeight, iDepth, FALSE, FALSE);
+	BYTE* pbSrc = (BYTE*) malloc((size_t) lStackSize);
+	FLOAT* pfPlane = (FLOAT*) malloc((size_t) lPlaneSize * sizeof (FLOAT));
+	if (pStack == NULL || pbSrc == NULL || pfPlane == NULL) {
+		printf("SKIPPED: not enough memory for a %dx%dx%d stack\n", iWidth, iHeight, iDepth);
+		destroyStack(pStack);
+		free(pbSrc);
+		free(pfPlane);
+		return TRUE;
+	}
+
+	BYTE* pb = pbSrc;
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				*pb++ = patternAt(x, y, z);
+			}
+		}
+	}
+
+	if (setByteStack(pStack, pbSrc, lStackSize - 1)) {
+		printf("FAILED: a short source was accepted\n");
+		bOK = FALSE;
+	}
+	if (!setByteStack(pStack, pbSrc, lStackSize)) {
+		printf("FAILED: could not set a %dx%dx%d stack\n", iWidth, iHeight, iDepth);
+		bOK = FALSE;
+	}
+
+	int pzCheck[2] = {0, iDepth - 1};
+	for (int i = 0; bOK && i < 2; i++) {
+		int z = pzCheck[i];
+		if (!getPlane(pfPlane, (int) lPlaneSize, pStack, z)) {
+			printf("FAILED: could not get plane %d\n", z);
+			bOK = FALSE;
+			break;
+		}
+		for (int y = 0; bOK && y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				if (pfPlane[((INT64) y) * iWidth + x] != patternAt(x, y, z)) {
+					printf("FAILED: voxel %d,%d,%d is %g, expected %d\n",
+							x, y, z, pfPlane[((INT64) y) * iWidth + x], patternAt(x, y, z));
+					bOK = FALSE;
+					break;
+				}
+			}
+		}
+	}
+
+	if (bOK) {
+		printf("round trip of %dx%dx%d (%.0f voxels): OK\n", iWidth, iHeight, iDepth, (double) lStackSize);
+	}
+	destroyStack(pStack);
+	free(pbSrc);
+	free(pfPlane);
+	return bOK;
+}
+
+/* the voxel that voxel i past the end of a mirrored line of n voxels repeats */
+static int mirroredAt(int i, int n)
+{
+	i %= 2 * n;
+	return i < n ? i : 2 * n - 1 - i;
+}
+
+/* pad a small stack with both fills and crop it back. The mirrored pad must
+   repeat the stack, reflected at each edge, and the tapered pad must blend
+   each line from its last voxel back to its first. */
+static BOOL testPadding()
+{
+	const int iWidth = 5, iHeight = 4, iDepth = 3;
+	const int iPadWidth = 12, iPadHeight = 7, iPadDepth = 8;
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	INT64 lPadSize = ((INT64) iPadWidth) * iPadHeight * iPadDepth;
+	BYTE pbSrc[iWidth * iHeight * iDepth];
+	FLOAT* pfPad = (FLOAT*) malloc((size_t) lPadSize * sizeof (FLOAT));
+	FLOAT pfCrop[iWidth * iHeight * iDepth];
+	BOOL bOK = TRUE;
+	int x, y, z;
+
+	BYTE* pb = pbSrc;
+	for (z = 0; z < iDepth; z++) {
+		for (y = 0; y < iHeight; y++) {
+			for (x = 0; x < iWidth; x++) {
+				*pb++ = patternAt(x, y, z);
+			}
+		}
+	}
+	CStackData* pStack = createEmptyStack(iWidth, iHeight, iDepth, FALSE, FALSE);
+	setByteStack(pStack, pbSrc, lStackSize);
+
+	for (int iFill = PAD_MIRROR; bOK && iFill <= PAD_TAPER; iFill++) {
+		const char* pcFill = iFill == PAD_MIRROR ? "mirrored" : "tapered";
+		CStackData* pPadded = createPaddedStack(pStack, iPadWidth, iPadHeight, iPadDepth, iFill);
+		if (pPadded == NULL || !getStack(pfPad, lPadSize, pPadded)) {
+			printf("FAILED: could not create the %s stack\n", pcFill);
+			destroyStack(pPadded);
+			bOK = FALSE;
+			break;
+		}
+		for (z = 0; bOK && z < iPadDepth; z++) {
+			for (y = 0; bOK && y < iPadHeight; y++) {
+				for (x = 0; x < iPadWidth; x++) {
+					double dExpected;
+					if (iFill == PAD_MIRROR) {
+						dExpected = patternAt(mirroredAt(x, iWidth), mirroredAt(y, iHeight), mirroredAt(z, iDepth));
+					} else if (y < iHeight && z < iDepth) {
+						if (x < iWidth) {
+							dExpected = patternAt(x, y, z);
+						} else {
+							double dCos = cos(0.5 * M_PI * (x - iWidth + 1) / (iPadWidth - iWidth + 1));
+							dExpected = dCos * dCos * patternAt(iWidth - 1, y, z)
+									+ (1 - dCos * dCos) * patternAt(0, y, z);
+						}
+					} else {
+						/* the lines and planes of the pad are only checked
+						   for lying within the range of the stack */
+						dExpected = pfPad[(((INT64) z) * iPadHeight + y) * iPadWidth + x];
+						if (dExpected < 0 || dExpected > 255) {
+							dExpected = -1;
+						}
+					}
+					FLOAT f = pfPad[(((INT64) z) * iPadHeight + y) * iPadWidth + x];
+					if (fabs(f - dExpected) > 1e-4) {
+						printf("FAILED: %s voxel %d,%d,%d is %g, expected %g\n", pcFill, x, y, z, f, dExpected);
+						bOK = FALSE;
+						break;
+					}
+				}
+			}
+		}
+
+		CStackData* pCropped = createCroppedStack(pPadded, iWidth, iHeight, iDepth);
+		if (pCropped == NULL || !getStack(pfCrop, lStackSize, pCropped)) {
+			printf("FAILED: could not crop the %s stack\n", pcFill);
+			bOK = FALSE;
+		}
+		for (INT64 i = 0; bOK && i < lStackSize; i++) {
+			if (pfCrop[i] != pbSrc[i]) {
+				printf("FAILED: voxel %.0f of the cropped %s stack is %g, expected %d\n",
+						(double) i, pcFill, pfCrop[i], pbSrc[i]);
+				bOK = FALSE;
+			}
+		}
+		destroyStack(pCropped);
+		destroyStack(pPadded);
+	}
+	if (createPaddedStack(pStack, iWidth - 1, iHeight, iDepth, PAD_MIRROR) != NULL) {
+		printf("FAILED: a stack was padded to a smaller size\n");
+		bOK = FALSE;
+	}
+	if (bOK) {
+		printf("padding of %dx%dx%d to %dx%dx%d: OK\n", iWidth, iHeight, iDepth, iPadWidth, iPadHeight, iPadDepth);
+	}
+	destroyStack(pStack);
+	free(pfPad);
+	return bOK;
+}
+
+/* EM with a psf that is a single point at the origin must give back the
+   image. The float stack is sent and read back in one call. */
+static BOOL testPointEM(int iWidth, int iHeight, int iDepth)
+{
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) calloc((size_t) lStackSize, sizeof (FLOAT));
+	if (pImage == NULL || pPsf == NULL || pfImage == NULL || pfPsf == NULL) {
+		printf("SKIPPED: not enough memory for EM of a %dx%dx%d stack\n", iWidth, iHeight, iDepth);
+		destroyStack(pImage);
+		destroyStack(pPsf);
+		free(pfImage);
+		free(pfPsf);
+		return TRUE;
+	}
+
+	INT64 l = 0;
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				pfImage[l++] = 10.0f + patternAt(x, y, z);
+			}
+		}
+	}
+	pfPsf[0] = 1.0f;
+
+	if (!setFloatStack(pImage, pfImage, lStackSize) || !setFloatStack(pPsf, pfPsf, lStackSize)
+			|| !processEM(CDecoContext::getDefault(), pImage, pPsf, 2)
+			|| !getStack(pfPsf, lStackSize, pImage)) {
+		printf("FAILED: EM of a %dx%dx%d stack did not run\n", iWidth, iHeight, iDepth);
+		bOK = FALSE;
+	}
+	for (l = 0; bOK && l < lStackSize; l++) {
+		if (fabs(pfPsf[l] - pfImage[l]) > 1e-3 * pfImage[l]) {
+			printf("FAILED: EM changed voxel %.0f from %g to %g\n", (double) l, pfImage[l], pfPsf[l]);
+			bOK = FALSE;
+		}
+	}
+
+	if (bOK) {
+		printf("EM with a point psf of %dx%dx%d: OK\n", iWidth, iHeight, iDepth);
+	}
+	destroyStack(pImage);
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	return bOK;
+}
+
+/* a small blur around the origin, wrapped around the edges. The
+   neighbours of the origin get fSpread times their usual weight. */
+static void setBlurPsf(FLOAT* pfPsf, int iWidth, int iHeight, int iDepth, float fSpread)
+{
+	for (int z = -1; z <= 1; z++) {
+		for (int y = -1; y <= 1; y++) {
+			for (int x = -1; x <= 1; x++) {
+				INT64 lAt = ((INT64) ((z + iDepth) % iDepth) * iHeight + (y + iHeight) % iHeight) * iWidth + (x + iWidth) % iWidth;
+				pfPsf[lAt] = (x == 0 && y == 0 && z == 0 ? 1.0f : fSpread) / (1 + abs(x) + abs(y) + abs(z));
+			}
+		}
+	}
+}
+
+/* accelerated EM or SGP with its stacks in scratch files must give exactly
+   the same result as in memory. A limit of 1 byte forces the scratch files. */
+static BOOL testScratchEM(int iWidth, int iHeight, int iDepth, const char* pcDir, int iMethod)
+{
+	const char* pcMethod = iMethod == METHOD_SGP ? "SGP" : "EM";
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) calloc((size_t) lStackSize, sizeof (FLOAT));
+	FLOAT* pfMemory = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfScratch = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	if (pPsf == NULL || pfImage == NULL || pfPsf == NULL || pfMemory == NULL || pfScratch == NULL) {
+		printf("SKIPPED: not enough memory for %s of a %dx%dx%d stack\n", pcMethod, iWidth, iHeight, iDepth);
+		destroyStack(pPsf);
+		free(pfImage);
+		free(pfPsf);
+		free(pfMemory);
+		free(pfScratch);
+		return TRUE;
+	}
+
+	INT64 l = 0;
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				pfImage[l++] = 10.0f + patternAt(x, y, z);
+			}
+		}
+	}
+	setBlurPsf(pfPsf, iWidth, iHeight, iDepth, 1.0f);
+	setFloatStack(pPsf, pfPsf, lStackSize);
+
+	for (int iPass = 0; bOK && iPass < 2; iPass++) {
+		CDecoContext* pContext = createContext();
+		setContextVerbose(pContext, 0);
+		setContextNumThreads(pContext, 2);
+		if (iPass == 1) {
+			setContextScratch(pContext, pcDir, 1);
+		}
+		CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+		FLOAT* pfResult = iPass == 0 ? pfMemory : pfScratch;
+		if (pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+				|| !(iMethod == METHOD_SGP ? processSGP(pContext, pImage, pPsf, 5) : processAEM(pContext, pImage, pPsf, 5))
+				|| !getStack(pfResult, lStackSize, pImage)) {
+			printf("FAILED: %s of a %dx%dx%d stack did not run\n", pcMethod, iWidth, iHeight, iDepth);
+			bOK = FALSE;
+		} else if (iPass == 1 && !pImage->isMapped()) {
+			printf("FAILED: the image was not moved to a scratch file\n");
+			bOK = FALSE;
+		}
+		destroyStack(pImage);
+		destroyContext(pContext);
+	}
+	if (bOK && memcmp(pfMemory, pfScratch, (size_t) lStackSize * sizeof (FLOAT)) != 0) {
+		printf("FAILED: %s in scratch files differs from %s in memory\n", pcMethod, pcMethod);
+		bOK = FALSE;
+	}
+
+	if (bOK) {
+		printf("%s in scratch files of %dx%dx%d: OK\n", pcMethod, iWidth, iHeight, iDepth);
+	}
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	free(pfMemory);
+	free(pfScratch);
+	return bOK;
+}
+
+/* put a real OTF back in complex form with zero imaginary parts, so that
+   it goes through the complex multiplies of EM and LLS */
+static BOOL storeComplexOTF(COTFData* pOTF)
+{
+	FCOMPLEX* pfc = (FCOMPLEX*) fftwf_malloc(pOTF->m_iComplexStackSize * sizeof (FCOMPLEX));
+	if (pfc == NULL) {
+		return FALSE;
+	}
+	for (size_t i = 0; i < pOTF->m_iComplexStackSize; i++) {
+		pfc[i].re = pOTF->m_pfRealOTF[i];
+		pfc[i].im = 0.0f;
+	}
+	fftwf_free(pOTF->m_pfRealOTF);
+	pOTF->m_pfRealOTF = NULL;
+	pOTF->m_pfcComplexData = pfc;
+	return TRUE;
+}
+
+/* EM and LLS with the real OTF of a symmetric psf must give the result of
+   the same OTF in complex form */
+static BOOL testRealOTF(int iWidth, int iHeight, int iDepth)
+{
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) calloc((size_t) lStackSize, sizeof (FLOAT));
+	FLOAT* pfResults[2];
+	pfResults[0] = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	pfResults[1] = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	if (pPsf == NULL || pfImage == NULL || pfPsf == NULL || pfResults[0] == NULL || pfResults[1] == NULL) {
+		printf("SKIPPED: not enough memory for a real OTF of %dx%dx%d\n", iWidth, iHeight, iDepth);
+		destroyStack(pPsf);
+		free(pfImage);
+		free(pfPsf);
+		free(pfResults[0]);
+		free(pfResults[1]);
+		return TRUE;
+	}
+
+	INT64 l = 0;
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				pfImage[l++] = 10.0f + patternAt(x, y, z);
+			}
+		}
+	}
+	setBlurPsf(pfPsf, iWidth, iHeight, iDepth, 1.0f);
+	setFloatStack(pPsf, pfPsf, lStackSize);
+
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	COTFData* pOTFs[2];
+	pOTFs[0] = createOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+	pOTFs[1] = createOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+	if (pOTFs[0] == NULL || pOTFs[1] == NULL || pOTFs[0]->m_pfRealOTF == NULL) {
+		printf("FAILED: the OTF of a symmetric psf is not stored as real\n");
+		bOK = FALSE;
+	} else if (!storeComplexOTF(pOTFs[1])) {
+		printf("SKIPPED: not enough memory for a complex OTF of %dx%dx%d\n", iWidth, iHeight, iDepth);
+		destroyOTF(pOTFs[0]);
+		destroyOTF(pOTFs[1]);
+		pOTFs[0] = pOTFs[1] = NULL;
+	}
+
+	for (int iMethod = 0; bOK && pOTFs[0] != NULL && iMethod < 2; iMethod++) {
+		const char* pcMethod = iMethod == 0 ? "EM" : "LLS";
+		for (int iPass = 0; bOK && iPass < 2; iPass++) {
+			CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+			if (pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+					|| !(iMethod == 0 ? processEMWithOTF(pContext, pImage, pOTFs[iPass], 5)
+						: processLLSWithOTF(pContext, pImage, pOTFs[iPass], 0.01))
+					|| !getStack(pfResults[iPass], lStackSize, pImage)) {
+				printf("FAILED: %s with a %s OTF did not run\n", pcMethod, iPass == 0 ? "real" : "complex");
+				bOK = FALSE;
+			}
+			destroyStack(pImage);
+		}
+
+		double dMax = 0.0;
+		for (l = 0; bOK && l < lStackSize; l++) {
+			dMax = fabs(pfResults[0][l]) > dMax ? fabs(pfResults[0][l]) : dMax;
+		}
+		for (l = 0; bOK && l < lStackSize; l++) {
+			if (fabs(pfResults[1][l] - pfResults[0][l]) > 1e-5 * dMax) {
+				printf("FAILED: %s with a real OTF gives %g at voxel %.0f, with a complex OTF %g\n",
+						pcMethod, pfResults[0][l], (double) l, pfResults[1][l]);
+				bOK = FALSE;
+			}
+		}
+		if (bOK) {
+			printf("%s with a real OTF of %dx%dx%d: OK\n", pcMethod, iWidth, iHeight, iDepth);
+		}
+	}
+
+	destroyOTF(pOTFs[0]);
+	destroyOTF(pOTFs[1]);
+	destroyContext(pContext);
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	free(pfResults[0]);
+	free(pfResults[1]);
+	return bOK;
+}
+
+/* the checkpoint files of testCheckpointEM, and the first iteration that
+   reached the progress function */
+static const char* g_pcCheckpointFile = "./testCheckpoint.emc";
+static const char* g_pcInterruptedFile = "./testCheckpoint.emc.saved";
+static int g_iFirstIteration;
+
+/* copy a file. Returns FALSE if it could not be read or written. */
+static BOOL copyFile(const char* pcFrom, const char* pcTo)
+{
+	FILE* pFrom = fopen(pcFrom, "rb");
+	if (pFrom == NULL) {
+		return FALSE;
+	}
+	FILE* pTo = fopen(pcTo, "wb");
+	BOOL bOK = pTo != NULL;
+	char acBuffer[4096];
+	size_t cb;
+	while (bOK && (cb = fread(acBuffer, 1, sizeof (acBuffer), pFrom)) > 0) {
+		bOK = fwrite(acBuffer, 1, cb, pTo) == cb;
+	}
+	fclose(pFrom);
+	if (pTo != NULL) {
+		bOK = (fclose(pTo) == 0) && bOK;
+	}
+	return bOK;
+}
+
+/* progress function of testCheckpointEM. Iteration 5 only starts after the
+   checkpoint of iteration 4 is written, so the copy made then is the file a
+   run interrupted during iteration 5 leaves behind. */
+static void interruptAtFive(int iIteration, int nTotalIterations, double dError, int nSecRemaining)
+{
+	if (g_iFirstIteration < 0) {
+		g_iFirstIteration = iIteration;
+	}
+	if (iIteration == 5) {
+		copyFile(g_pcCheckpointFile, g_pcInterruptedFile);
+	}
+}
+
+/* run EM or accelerated EM of pfImage with a checkpoint every 2 iterations.
+   Returns the first iteration the run reported, or 0 if it failed. */
+static int runCheckpointEM(FLOAT* pfImage, FLOAT* pfPsf, FLOAT* pfResult, int iWidth, int iHeight, int iDepth,
+		int iMethod, int nIterations, BOOL bCheckpoint)
+{
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	setContextProgress(pContext, interruptAtFive);
+	if (bCheckpoint) {
+		setContextCheckpoint(pContext, g_pcCheckpointFile, 2, 0);
+	}
+	CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	g_iFirstIteration = -1;
+	BOOL bOK = pImage != NULL && pPsf != NULL
+			&& setFloatStack(pImage, pfImage, lStackSize) && setFloatStack(pPsf, pfPsf, lStackSize)
+			&& (iMethod == METHOD_AEM ? processAEM(pContext, pImage, pPsf, nIterations)
+				: processEM(pContext, pImage, pPsf, nIterations))
+			&& getStack(pfResult, lStackSize, pImage);
+	destroyStack(pImage);
+	destroyStack(pPsf);
+	destroyContext(pContext);
+	return bOK ? g_iFirstIteration : 0;
+}
+
+/* EM or accelerated EM that is interrupted after a checkpoint and run again
+   must resume from the checkpoint and give the result of an uninterrupted
+   run. A run with another psf or iteration total must start over. */
+static BOOL testCheckpointEM(int iWidth, int iHeight, int iDepth, int iMethod)
+{
+	const char* pcMethod = iMethod == METHOD_AEM ? "accelerated EM" : "EM";
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) calloc((size_t) lStackSize, sizeof (FLOAT));
+	FLOAT* pfStraight = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfResumed = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	if (pfImage == NULL || pfPsf == NULL || pfStraight == NULL || pfResumed == NULL) {
+		printf("SKIPPED: not enough memory for %s of a %dx%dx%d stack\n", pcMethod, iWidth, iHeight, iDepth);
+		free(pfImage);
+		free(pfPsf);
+		free(pfStraight);
+		free(pfResumed);
+		return TRUE;
+	}
+
+	INT64 l = 0;
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				pfImage[l++] = 10.0f + patternAt(x, y, z);
+			}
+		}
+	}
+	setBlurPsf(pfPsf, iWidth, iHeight, iDepth, 1.0f);
+	remove(g_pcCheckpointFile);
+	remove(g_pcInterruptedFile);
+
+	if (runCheckpointEM(pfImage, pfPsf, pfStraight, iWidth, iHeight, iDepth, iMethod, 8, FALSE) != 1
+			|| runCheckpointEM(pfImage, pfPsf, pfResumed, iWidth, iHeight, iDepth, iMethod, 8, TRUE) != 1) {
+		printf("FAILED: %s of a %dx%dx%d stack did not run\n", pcMethod, iWidth, iHeight, iDepth);
+		bOK = FALSE;
+	}
+
+	/* the interrupted run resumes at iteration 5 */
+	int iFirst = 0;
+	if (bOK) {
+		iFirst = copyFile(g_pcInterruptedFile, g_pcCheckpointFile)
+				? runCheckpointEM(pfImage, pfPsf, pfResumed, iWidth, iHeight, iDepth, iMethod, 8, TRUE) : 0;
+		if (iFirst != 5) {
+			printf("FAILED: %s resumed at iteration %d instead of 5\n", pcMethod, iFirst);
+			bOK = FALSE;
+		}
+	}
+	for (l = 0; bOK && l < lStackSize; l++) {
+		if (fabs(pfResumed[l] - pfStraight[l]) > 1e-4 * fabs(pfStraight[l])) {
+			printf("FAILED: resumed %s gives %g at voxel %.0f, the uninterrupted run %g\n",
+					pcMethod, pfResumed[l], (double) l, pfStraight[l]);
+			bOK = FALSE;
+		}
+	}
+
+	/* the checkpoint does not belong to a run with another iteration total */
+	if (bOK) {
+		iFirst = copyFile(g_pcInterruptedFile, g_pcCheckpointFile)
+				? runCheckpointEM(pfImage, pfPsf, pfResumed, iWidth, iHeight, iDepth, iMethod, 9, TRUE) : 0;
+		if (iFirst != 1) {
+			printf("FAILED: %s of 9 iterations resumed the checkpoint of 8 at iteration %d\n", pcMethod, iFirst);
+			bOK = FALSE;
+		}
+	}
+
+	/* nor to a run with another psf */
+	if (bOK) {
+		setBlurPsf(pfPsf, iWidth, iHeight, iDepth, 2.0f);
+		iFirst = copyFile(g_pcInterruptedFile, g_pcCheckpointFile)
+				? runCheckpointEM(pfImage, pfPsf, pfResumed, iWidth, iHeight, iDepth, iMethod, 8, TRUE) : 0;
+		if (iFirst != 1) {
+			printf("FAILED: %s with another psf resumed the checkpoint at iteration %d\n", pcMethod, iFirst);
+			bOK = FALSE;
+		}
+	}
+
+	if (bOK) {
+		printf("%s resumed from a checkpoint of %dx%dx%d: OK\n", pcMethod, iWidth, iHeight, iDepth);
+	}
+	remove(g_pcCheckpointFile);
+	remove(g_pcInterruptedFile);
+	free(pfImage);
+	free(pfPsf);
+	free(pfStraight);
+	free(pfResumed);
+	return bOK;
+}
+
+/* add gaussian beads with the given variances along X and Y and along Z to a
+   stack. The beads are the same for the same seed, and each one has the
+   same total intensity whatever its width. */
+static void addBeads(FLOAT* pf, int iWidth, int iHeight, int iDepth, double dVarXY, double dVarZ, unsigned int uSeed)
+{
+	srand(uSeed);
+	double dNorm = 1.0 / (dVarXY * sqrt(dVarZ));
+	for (int i = 0; i < 60; i++) {
+		double dX = 8 + rand() % (iWidth - 16);
+		double dY = 8 + rand() % (iHeight - 16);
+		double dZ = 3 + rand() % (iDepth - 6);
+		double dAmp = (100 + rand() % 400) * dNorm;
+		for (int z = 0; z < iDepth; z++) {
+			for (int y = 0; y < iHeight; y++) {
+				for (int x = 0; x < iWidth; x++) {
+					double dE = ((x - dX) * (x - dX) + (y - dY) * (y - dY)) / (2 * dVarXY) + (z - dZ) * (z - dZ) / (2 * dVarZ);
+					if (dE < 20) {
+						pf[((INT64) z * iHeight + y) * iWidth + x] += (FLOAT) (dAmp * exp(-dE));
+					}
+				}
+			}
+		}
+	}
+}
+
+/* EM with the cosine form of the OTF against EM with the OTF of twice the
+   depth, for a psf that is symmetric along Z and for one that is not. The
+   results must agree, and for the symmetric psf the cosine form must need
+   less memory: a working stack and a real OTF only as deep as the image. */
+static BOOL testCosineEM()
+{
+	int iWidth = 48, iHeight = 48, iDepth = 16;
+	double dVarXY = 2.0 * 2.0;
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfResults[2];
+	pfResults[0] = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	pfResults[1] = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	if (pfImage == NULL || pfPsf == NULL || pfResults[0] == NULL || pfResults[1] == NULL || pPsf == NULL) {
+		printf("SKIPPED: not enough memory for cosine form EM\n");
+		free(pfImage);
+		free(pfPsf);
+		free(pfResults[0]);
+		free(pfResults[1]);
+		destroyStack(pPsf);
+		return TRUE;
+	}
+
+	for (INT64 l = 0; l < lStackSize; l++) {
+		pfImage[l] = 1.0f;
+	}
+	addBeads(pfImage, iWidth, iHeight, iDepth, 1.0 + dVarXY, 1.0 + 2.0 * 2.0, 7);
+
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	for (int iPsf = 0; bOK && iPsf < 2; iPsf++) {
+		/* the second psf is wider below its center than above it */
+		for (int z = 0; z < iDepth; z++) {
+			int dz = z < iDepth / 2 ? z : z - iDepth;
+			double dVarZ = (iPsf == 1 && dz < 0) ? 2.5 * 2.5 : 1.5 * 1.5;
+			for (int y = 0; y < iHeight; y++) {
+				for (int x = 0; x < iWidth; x++) {
+					int dx = x < iWidth / 2 ? x : x - iWidth;
+					int dy = y < iHeight / 2 ? y : y - iHeight;
+					pfPsf[((INT64) z * iHeight + y) * iWidth + x] =
+							(FLOAT) exp(-(dx * dx + dy * dy) / (2 * dVarXY) - dz * dz / (2 * dVarZ));
+				}
+			}
+		}
+		setFloatStack(pPsf, pfPsf, lStackSize);
+
+		COTFData* pOTFs[2];
+		pOTFs[0] = createOTF(pContext, pPsf, iWidth, iHeight, 2 * iDepth);
+		pOTFs[1] = createCosineOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+		for (int iPass = 0; bOK && iPass < 2; iPass++) {
+			CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+			if (pOTFs[iPass] == NULL || pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+					|| !processEMWithOTF(pContext, pImage, pOTFs[iPass], 30)
+					|| !getStack(pfResults[iPass], lStackSize, pImage)) {
+				printf("FAILED: EM of the beads did not run\n");
+				bOK = FALSE;
+			}
+			destroyStack(pImage);
+		}
+
+		if (bOK) {
+			double dSumSq = 0.0, dResultSq = 0.0;
+			for (INT64 l = 0; l < lStackSize; l++) {
+				dSumSq += (pfResults[1][l] - pfResults[0][l]) * (pfResults[1][l] - pfResults[0][l]);
+				dResultSq += pfResults[0][l] * pfResults[0][l];
+			}
+			double dError = sqrt(dSumSq / dResultSq);
+			double dMirrorBytes = estimateMemoryWithOTF(METHOD_EM, pOTFs[0], iWidth, iHeight, iDepth);
+			double dCosineBytes = estimateMemoryWithOTF(METHOD_EM, pOTFs[1], iWidth, iHeight, iDepth);
+			printf("cosine form EM with %s psf: difference %.2g, memory %.0f KB instead of %.0f KB\n",
+					iPsf == 0 ? "a symmetric" : "an asymmetric", dError, dCosineBytes / 1024, dMirrorBytes / 1024);
+			if (dError > 1.0E-4) {
+				printf("FAILED: cosine form EM differs from EM padded to twice the depth\n");
+				bOK = FALSE;
+			} else if (iPsf == 0 && dCosineBytes >= 0.75 * dMirrorBytes) {
+				printf("FAILED: cosine form EM does not need less memory for a symmetric psf\n");
+				bOK = FALSE;
+			} else if (dCosineBytes > dMirrorBytes) {
+				printf("FAILED: cosine form EM needs more memory than EM padded to twice the depth\n");
+				bOK = FALSE;
+			} else {
+				printf("cosine form EM with %s psf: OK\n", iPsf == 0 ? "a symmetric" : "an asymmetric");
+			}
+		}
+		destroyOTF(pOTFs[0]);
+		destroyOTF(pOTFs[1]);
+	}
+	destroyContext(pContext);
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	free(pfResults[0]);
+	free(pfResults[1]);
+	return bOK;
+}
+
+/* coarse to fine EM against EM alone on blurred beads. The beads are 3 and
+   the psf 5 pixels wide, so the stack is oversampled like most widefield
+   data and EM alone needs many iterations for the low frequencies. Starting
+   from 200 iterations binned by 2, 40 full iterations must restore the beads
+   as well as 160 iterations of EM alone in less than 80% of the time. */
+static BOOL testCoarseToFineEM()
+{
+	int iWidth = 128, iHeight = 128, iDepth = 16;
+	double dVarBead = 3.0 * 3.0, dVarXY = 5.0 * 5.0, dVarZ = 1.5 * 1.5;
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	FLOAT* pfBeads = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfResult = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	if (pfBeads == NULL || pfImage == NULL || pfPsf == NULL || pfResult == NULL || pPsf == NULL) {
+		printf("SKIPPED: not enough memory for coarse to fine EM\n");
+		free(pfBeads);
+		free(pfImage);
+		free(pfPsf);
+		free(pfResult);
+		destroyStack(pPsf);
+		return TRUE;
+	}
+
+	/* the image of a gaussian bead is a gaussian with the variances added */
+	for (INT64 l = 0; l < lStackSize; l++) {
+		pfBeads[l] = pfImage[l] = 1.0f;
+	}
+	addBeads(pfBeads, iWidth, iHeight, iDepth, dVarBead, dVarBead, 7);
+	addBeads(pfImage, iWidth, iHeight, iDepth, dVarBead + dVarXY, dVarBead + dVarZ, 7);
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				int dx = x < iWidth / 2 ? x : x - iWidth;
+				int dy = y < iHeight / 2 ? y : y - iHeight;
+				int dz = z < iDepth / 2 ? z : z - iDepth;
+				pfPsf[((INT64) z * iHeight + y) * iWidth + x] =
+						(FLOAT) exp(-(dx * dx + dy * dy) / (2 * dVarXY) - dz * dz / (2 * dVarZ));
+			}
+		}
+	}
+	setFloatStack(pPsf, pfPsf, lStackSize);
+
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	COTFData* pOTF = createCosineOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+	int piBinning[1] = {2};
+	int piIterations[1] = {200};
+	double pdError[2], pdSeconds[2];
+	for (int iPass = 0; bOK && iPass < 2; iPass++) {
+		if (iPass == 1) {
+			setContextCoarseLevels(pContext, piBinning, piIterations, 1);
+		}
+		CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+		clock_t tStart = clock();
+		if (pOTF == NULL || pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+				|| !processEMWithOTF(pContext, pImage, pOTF, iPass == 0 ? 160 : 40)
+				|| !getStack(pfResult, lStackSize, pImage)) {
+			printf("FAILED: EM of the beads did not run\n");
+			bOK = FALSE;
+		}
+		pdSeconds[iPass] = (double) (clock() - tStart) / CLOCKS_PER_SEC;
+		double dSumSq = 0.0, dBeadSq = 0.0;
+		for (INT64 l = 0; l < lStackSize; l++) {
+			dSumSq += (pfResult[l] - pfBeads[l]) * (pfResult[l] - pfBeads[l]);
+			dBeadSq += pfBeads[l] * pfBeads[l];
+		}
+		pdError[iPass] = sqrt(dSumSq / dBeadSq);
+		destroyStack(pImage);
+	}
+
+	if (bOK) {
+		printf("beads restored by EM, 160 iterations: error %.4f, %.2f s\n", pdError[0], pdSeconds[0]);
+		printf("beads restored by coarse to fine EM, 200 binned by 2 + 40: error %.4f, %.2f s\n", pdError[1], pdSeconds[1]);
+		if (pdError[1] > 1.01 * pdError[0]) {
+			printf("FAILED: coarse to fine EM is worse than EM alone\n");
+			bOK = FALSE;
+		} else if (pdSeconds[1] > 0.8 * pdSeconds[0]) {
+			printf("FAILED: coarse to fine EM is not faster than EM alone\n");
+			bOK = FALSE;
+		} else {
+			printf("coarse to fine EM: OK\n");
+		}
+	}
+	destroyOTF(pOTF);
+	destroyContext(pContext);
+	destroyStack(pPsf);
+	free(pfBeads);
+	free(pfImage);
+	free(pfPsf);
+	free(pfResult);
+	return bOK;
+}
+
+/* accelerated EM against EM on blurred beads. Both must fit the image to the
+   same divergence, and AEM must get there in fewer iterations. The
+   extrapolated guess is clipped at zero, so the result must stay
+   non-negative like that of EM. */
+static BOOL testAEM()
+{
+	int iWidth = 64, iHeight = 64, iDepth = 16;
+	double dVarBead = 1.0, dVarXY = 2.0 * 2.0, dVarZ = 1.5 * 1.5;
+	double dTarget = 1.0E-4;
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfResult = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	if (pfImage == NULL || pfPsf == NULL || pfResult == NULL || pPsf == NULL) {
+		printf("SKIPPED: not enough memory for AEM\n");
+		free(pfImage);
+		free(pfPsf);
+		free(pfResult);
+		destroyStack(pPsf);
+		return TRUE;
+	}
+
+	for (INT64 l = 0; l < lStackSize; l++) {
+		pfImage[l] = 1.0f;
+	}
+	addBeads(pfImage, iWidth, iHeight, iDepth, dVarBead + dVarXY, dVarBead + dVarZ, 7);
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				int dx = x < iWidth / 2 ? x : x - iWidth;
+				int dy = y < iHeight / 2 ? y : y - iHeight;
+				int dz = z < iDepth / 2 ? z : z - iDepth;
+				pfPsf[((INT64) z * iHeight + y) * iWidth + x] =
+						(FLOAT) exp(-(dx * dx + dy * dy) / (2 * dVarXY) - dz * dz / (2 * dVarZ));
+			}
+		}
+	}
+	setFloatStack(pPsf, pfPsf, lStackSize);
+
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	setContextTarget(pContext, dTarget);
+	COTFData* pOTF = createCosineOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+	int piIterations[2];
+	FLOAT fMin = 0.0f;
+	for (int iPass = 0; bOK && iPass < 2; iPass++) {
+		CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+		if (pOTF == NULL || pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+				|| !(iPass == 0 ? processEMWithOTF(pContext, pImage, pOTF, 200)
+					: processAEMWithOTF(pContext, pImage, pOTF, 200))
+				|| !getStack(pfResult, lStackSize, pImage)) {
+			printf("FAILED: %s of the beads did not run\n", iPass == 0 ? "EM" : "AEM");
+			bOK = FALSE;
+		}
+		piIterations[iPass] = getContextIterationsToTarget(pContext);
+		if (iPass == 1) {
+			for (INT64 l = 0; l < lStackSize; l++) {
+				if (pfResult[l] < fMin) {
+					fMin = pfResult[l];
+				}
+			}
+		}
+		destroyStack(pImage);
+	}
+
+	if (bOK) {
+		printf("iterations to a divergence of %g: EM %d, AEM %d\n", dTarget, piIterations[0], piIterations[1]);
+		if (piIterations[1] < 0 || (piIterations[0] >= 0 && piIterations[1] >= piIterations[0])) {
+			printf("FAILED: AEM does not fit the beads faster than EM\n");
+			bOK = FALSE;
+		} else if (fMin < 0.0f) {
+			printf("FAILED: AEM result has negative voxels (%g)\n", fMin);
+			bOK = FALSE;
+		} else {
+			printf("AEM: OK\n");
+		}
+	}
+	destroyOTF(pOTF);
+	destroyContext(pContext);
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	free(pfResult);
+	return bOK;
+}
+
+/* SGP against EM on blurred beads. Both run the same two convolutions per
+   iteration, so the number of iterations each needs to fit the image to the
+   same divergence compares their speed. SGP must get there in fewer. */
+static BOOL testSGP()
+{
+	int iWidth = 64, iHeight = 64, iDepth = 16;
+	double dVarBead = 1.0, dVarXY = 2.0 * 2.0, dVarZ = 1.5 * 1.5;
+	double dTarget = 1.0E-4;
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	if (pfImage == NULL || pfPsf == NULL || pPsf == NULL) {
+		printf("SKIPPED: not enough memory for SGP\n");
+		free(pfImage);
+		free(pfPsf);
+		destroyStack(pPsf);
+		return TRUE;
+	}
+
+	for (INT64 l = 0; l < lStackSize; l++) {
+		pfImage[l] = 1.0f;
+	}
+	addBeads(pfImage, iWidth, iHeight, iDepth, dVarBead + dVarXY, dVarBead + dVarZ, 7);
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				int dx = x < iWidth / 2 ? x : x - iWidth;
+				int dy = y < iHeight / 2 ? y : y - iHeight;
+				int dz = z < iDepth / 2 ? z : z - iDepth;
+				pfPsf[((INT64) z * iHeight + y) * iWidth + x] =
+						(FLOAT) exp(-(dx * dx + dy * dy) / (2 * dVarXY) - dz * dz / (2 * dVarZ));
+			}
+		}
+	}
+	setFloatStack(pPsf, pfPsf, lStackSize);
+
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	setContextTarget(pContext, dTarget);
+	COTFData* pOTF = createCosineOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+	int piIterations[2];
+	for (int iPass = 0; bOK && iPass < 2; iPass++) {
+		CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+		if (pOTF == NULL || pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+				|| !(iPass == 0 ? processEMWithOTF(pContext, pImage, pOTF, 200)
+					: processSGPWithOTF(pContext, pImage, pOTF, 200))) {
+			printf("FAILED: %s of the beads did not run\n", iPass == 0 ? "EM" : "SGP");
+			bOK = FALSE;
+		}
+		piIterations[iPass] = getContextIterationsToTarget(pContext);
+		destroyStack(pImage);
+	}
+
+	if (bOK) {
+		printf("iterations to a divergence of %g: EM %d, SGP %d\n", dTarget, piIterations[0], piIterations[1]);
+		if (piIterations[1] < 0 || (piIterations[0] >= 0 && piIterations[1] >= piIterations[0])) {
+			printf("FAILED: SGP does not fit the beads faster than EM\n");
+			bOK = FALSE;
+		} else {
+			printf("SGP: OK\n");
+		}
+	}
+	destroyOTF(pOTF);
+	destroyContext(pContext);
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	return bOK;
+}
+
+/* EM with the OTF padded only as far as the psf reaches along Z against EM
+   with the OTF of twice the depth. The psf is narrow along Z, so the image
+   needs far fewer planes of padding, and the results only differ by the
+   energy of the psf left out. The memory estimate must follow the depth of
+   the OTF, also for an image of another depth than the OTF is for. */
+static BOOL testExtentEM()
+{
+	int iWidth = 48, iHeight = 48, iDepth = 40;
+	double dVarXY = 2.0 * 2.0, dVarZ = 1.5 * 1.5;
+	INT64 lStackSize = ((INT64) iWidth) * iHeight * iDepth;
+	BOOL bOK = TRUE;
+
+	FLOAT* pfImage = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfPsf = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	FLOAT* pfResults[2];
+	pfResults[0] = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	pfResults[1] = (FLOAT*) malloc((size_t) lStackSize * sizeof (FLOAT));
+	CStackData* pPsf = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+	if (pfImage == NULL || pfPsf == NULL || pfResults[0] == NULL || pfResults[1] == NULL || pPsf == NULL) {
+		printf("SKIPPED: not enough memory for EM padded to the psf extent\n");
+		free(pfImage);
+		free(pfPsf);
+		free(pfResults[0]);
+		free(pfResults[1]);
+		destroyStack(pPsf);
+		return TRUE;
+	}
+
+	for (INT64 l = 0; l < lStackSize; l++) {
+		pfImage[l] = 1.0f;
+	}
+	addBeads(pfImage, iWidth, iHeight, iDepth, 1.0 + dVarXY, 1.0 + dVarZ, 7);
+	for (int z = 0; z < iDepth; z++) {
+		for (int y = 0; y < iHeight; y++) {
+			for (int x = 0; x < iWidth; x++) {
+				int dx = x < iWidth / 2 ? x : x - iWidth;
+				int dy = y < iHeight / 2 ? y : y - iHeight;
+				int dz = z < iDepth / 2 ? z : z - iDepth;
+				pfPsf[((INT64) z * iHeight + y) * iWidth + x] =
+						(FLOAT) exp(-(dx * dx + dy * dy) / (2 * dVarXY) - dz * dz / (2 * dVarZ));
+			}
+		}
+	}
+	setFloatStack(pPsf, pfPsf, lStackSize);
+
+	CDecoContext* pContext = createContext();
+	setContextVerbose(pContext, 0);
+	COTFData* pOTFs[2];
+	pOTFs[0] = createOTF(pContext, pPsf, iWidth, iHeight, 2 * iDepth);
+	pOTFs[1] = createExtentOTF(pContext, pPsf, iWidth, iHeight, iDepth);
+	for (int iPass = 0; bOK && iPass < 2; iPass++) {
+		CStackData* pImage = createEmptyStack(iWidth, iHeight, iDepth, TRUE, TRUE);
+		if (pOTFs[iPass] == NULL || pImage == NULL || !setFloatStack(pImage, pfImage, lStackSize)
+				|| !processEMWithOTF(pContext, pImage, pOTFs[iPass], 30)
+				|| !getStack(pfResults[iPass], lStackSize, pImage)) {
+			printf("FAILED: EM of the beads did not run\n");
+			bOK = FALSE;
+		}
+		destroyStack(pImage);
+	}
+
+	if (bOK) {
+		double dSumSq = 0.0, dResultSq = 0.0;
+		for (INT64 l = 0; l < lStackSize; l++) {
+			dSumSq += (pfResults[1][l] - pfResults[0][l]) * (pfResults[1][l] - pfResults[0][l]);
+			dResultSq += pfResults[0][l] * pfResults[0][l];
+		}
+		double dError = sqrt(dSumSq / dResultSq);
+		int iExtentDepth = getStackDepth(pOTFs[1]);
+		printf("psf extent %d planes, image of %d planes padded to %d instead of %d: difference %.2g\n",
+				getPsfExtentZ(pPsf, 0.999), iDepth, iExtentDepth, 2 * iDepth, dError);
+		int iOtherDepth = iDepth / 2;
+		COTFData* pOtherOTF = createExtentOTF(pContext, pPsf, iWidth, iHeight, iOtherDepth);
+		double dExtentBytes = estimateMemoryWithOTF(METHOD_EM, pOTFs[1], iWidth, iHeight, iDepth);
+		double dMirrorBytes = estimateMemoryWithOTF(METHOD_EM, pOTFs[0], iWidth, iHeight, iDepth);
+		double dOtherBytes = estimateMemoryWithOTF(METHOD_EM, pOTFs[1], iWidth, iHeight, iOtherDepth);
+		double dExpectedBytes = pOtherOTF == NULL ? 0.0
+				: estimateMemoryWithOTF(METHOD_EM, pOtherOTF, iWidth, iHeight, iOtherDepth);
+		destroyOTF(pOtherOTF);
+		printf("memory %.0f KB instead of %.0f KB, for %d planes %.0f KB\n",
+				dExtentBytes / 1024, dMirrorBytes / 1024, iOtherDepth, dOtherBytes / 1024);
+		if (iExtentDepth >= 2 * iDepth) {
+			printf("FAILED: padding to the psf extent does not shrink the OTF\n");
+			bOK = FALSE;
+		} else if (dExtentBytes >= dMirrorBytes) {
+			printf("FAILED: the memory estimate ignores the depth of the OTF\n");
+			bOK = FALSE;
+		} else if (dOtherBytes != dExpectedBytes) {
+			printf("FAILED: the memory estimate for %d planes is not that of their OTF\n", iOtherDepth);
+			bOK = FALSE;
+		} else if (dError > 1.0E-3) {
+			printf("FAILED: EM padded to the psf extent differs from EM padded to twice the depth\n");
+			bOK = FALSE;
+		} else {
+			printf("EM padded to the psf extent: OK\n");
+		}
+	}
+	destroyOTF(pOTFs[0]);
+	destroyOTF(pOTFs[1]);
+	destroyContext(pContext);
+	destroyStack(pPsf);
+	free(pfImage);
+	free(pfPsf);
+	free(pfResults[0]);
+	free(pfResults[1]);
+	return bOK;
+}
+
+/* usage: testDecoJNA [width height depth]
+   The round trip uses a stack of the given size, e.g. 4096 4096 160 for more
+   than 2^31 voxels. EM always uses a small stack. */
 int main(int argc, char** argv)
 {
 	printf("Loading DecoJNA dynamics library\n");
 	setVerbose(1);
 	printf("Done\n");
 
-	return 0;
-}
\ No newline at end of file
+	int iWidth = 256, iHeight = 256, iDepth = 64;
+	if (argc >= 4) {
+		iWidth = atoi(argv[1]);
+		iHeight = atoi(argv[2]);
+		iDepth = atoi(argv[3]);
+	}
+
+	setVerbose(0);
+	BOOL bOK = testLargeSizes();
+	bOK = testStackRoundTrip(iWidth, iHeight, iDepth) && bOK;
+	bOK = testPadding() && bOK;
+	bOK = testPointEM(32, 24, 8) && bOK;
+	bOK = testScratchEM(32, 24, 8, ".", METHOD_AEM) && bOK;
+	bOK = testScratchEM(32, 24, 8, ".", METHOD_SGP) && bOK;
+	bOK = testCheckpointEM(32, 24, 8, METHOD_EM) && bOK;
+	bOK = testRealOTF(32, 24, 8) && bOK;
+	bOK = testCheckpointEM(32, 24, 8, METHOD_AEM) && bOK;
+	bOK = testCosineEM() && bOK;
+	bOK = testCoarseToFineEM() && bOK;
+	bOK = testAEM() && bOK;
+	bOK = testSGP() && bOK;
+	bOK = testExtentEM() && bOK;
+
+	return bOK ? 0 : 1;
+}
@@ -106,9 +106,11 @@ public class BatchListCheckDlg extends Dialog implements ActionListener, WindowL
         String strLastDir = "";
         String strDir;
         SourceFileInfo sfi;
-        tpList.setColumnHeadings("Directory\tFile\tZSize\t#WL\t#Iter");
+        tpList.setColumnHeadings("Directory\tFile\tZSize\t#WL\t#Iter\tMemory");
         int i, len=vBatchList.size();
         if (len > 0) {
+            long lBudget = DecoScheduler.getMemoryBudget(
+                    ((SourceFileInfo)vBatchList.get(0)).options);
             for (i=0; i<len; i++) {
                 sfi = (SourceFileInfo)vBatchList.get(i);
                 strDir = sfi.strPath;
@@ -120,11 +122,21 @@ public class BatchListCheckDlg extends Dialog implements ActionListener, WindowL
                         +"\t"+ sfi.strFilename
                         +"\t"+ sfi.options.iNumPlanes
                         +"\t"+ sfi.options.iNumWL
-                        +"\t"+ sfi.options.iNumIterations);
+                        +"\t"+ sfi.options.iNumIterations
+                        +"\t"+ formatMemory(DecoScheduler.estimateMemory(sfi), lBudget));
             }
         }
     }
     
+    /** Native memory needed per stack in MB, or a note if it will not fit */
+    static String formatMemory(long lBytes, long lBudget) {
+        if (lBytes < 0)
+            return "?";
+        if (lBytes > lBudget)
+            return "too large";
+        return ((lBytes + DecoScheduler.MB - 1) / DecoScheduler.MB) + " MB";
+    }
+    
     //-------------
     // Actions
     //-------------
@@ -19,9 +19,14 @@ import ij.*;
 import ij.process.*;
 import ij.io.*;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import com.sun.jna.Library;
+import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.lang.Runtime;
@@ -30,49 +35,112 @@ class DecoClient extends Thread {
 
     static final boolean VERBOSE = true;
     boolean success = false;
+    int iIterationsUsed = 0;	// iterations actually run, may stop before iNumIterations
     SourceFileInfo sfiIn;
     SourceFileInfo sfiPsf;
     SourceFileInfo sfiOut;
+    SourceFileInfo sfiGuess;	// result of the previous timepoint to start from, or null
+    String strCheckpointFile;	// EM saves its state here and resumes from it, or null
     DecoOptions options;
     String strName;
+    Pointer pOTF;
 
     public static interface ProgressCallback extends Callback {
         void callback (int iIteration, int nTotalIterations, double dError, int nSecRemaining);
     }
 
+    /** Shows the progress of all running jobs on the ImageJ status bar.
+     *  Each job reports through its own callback, and the bar shows the
+     *  iterations of all of them together and the longest time remaining. */
     static class IJProgressCallback implements ProgressCallback {
+        // callbacks of the jobs that are running, shared by all threads
+        static final List vActive = new ArrayList();
+        
+        int iIteration = 0;
+        int nTotalIterations = 0;
+        double dError = 0;
         int nLastSecRemaining = Integer.MAX_VALUE;
+        
+        /** Start counting the iterations of a new run of this job */
         void reset() {
-            nLastSecRemaining = Integer.MAX_VALUE;
-            IJ.showStatus("");
-            IJ.showProgress(0.0);
+            synchronized (vActive) {
+                iIteration = 0;
+                nTotalIterations = 0;
+                nLastSecRemaining = Integer.MAX_VALUE;
+                if (!vActive.contains(this))
+                    vActive.add(this);
+                showAll();
+            }
+        }
+        
+        /** Stop showing this job once its run is over */
+        void finish() {
+            synchronized (vActive) {
+                vActive.remove(this);
+                showAll();
+            }
         }
+        
         public void callback(int iIteration, int nTotalIterations, double dError, int nSecRemaining) {
-            if (nSecRemaining <= 0) {
-                reset();
+            synchronized (vActive) {
+                if (nSecRemaining <= 0) {
+                    reset();
+                    return;
+                }
+                this.iIteration = iIteration;
+                this.nTotalIterations = nTotalIterations;
+                this.dError = dError;
+                if (iIteration <= 10) {
+                    // Allow a few iterations for the time estimate to stabilize
+                    // update the remaining time regardless
+                    nLastSecRemaining = nSecRemaining;
+                } else if (nLastSecRemaining > nSecRemaining) {
+                    // Only count down on the remaining time. If the remaining
+                    // time reported by the algorithm increases, just show
+                    // the previous estimate
+                    nLastSecRemaining = nSecRemaining;
+                }
+                showAll();
+            }
+        }
+        
+        /** Show the combined progress. Must be called holding vActive. */
+        static void showAll() {
+            int nDone = 0, nTotal = 0, nSecRemaining = 0;
+            for (int i=0; i<vActive.size(); i++) {
+                IJProgressCallback job = (IJProgressCallback)vActive.get(i);
+                if (job.nTotalIterations <= 0)
+                    continue;
+                nDone += job.iIteration;
+                nTotal += job.nTotalIterations;
+                if (job.nLastSecRemaining != Integer.MAX_VALUE)
+                    nSecRemaining = Math.max(nSecRemaining, job.nLastSecRemaining);
+            }
+            if (nTotal == 0) {
+                IJ.showStatus("");
+                IJ.showProgress(0.0);
                 return;
             }
-            if (iIteration <= 10) {
-                // Allow a few iterations for the time estimate to stabilize
-                // update the remaining time regardless
-                nLastSecRemaining = nSecRemaining;
-            } else if (nLastSecRemaining > nSecRemaining) {
-                // Only count down on the remaining time. If the remaining
-                // time reported by the algorithm increases, just show
-                // the previous estimate
-                nLastSecRemaining = nSecRemaining;
-            }
-            int hr=nLastSecRemaining/3600;
-            int min=(nLastSecRemaining - 3600*hr)/60;
-            int sec=nLastSecRemaining - hr*3600 - min*60;
+            int hr=nSecRemaining/3600;
+            int min=(nSecRemaining - 3600*hr)/60;
+            int sec=nSecRemaining - hr*3600 - min*60;
             
-            String status = String.format("%d/%d   %02d:%02d:%02d   E=%f",
-                    iIteration, nTotalIterations, hr, min, sec, dError);
+            String status;
+            if (vActive.size() == 1) {
+                status = String.format("%d/%d   %02d:%02d:%02d   E=%f",
+                        nDone, nTotal, hr, min, sec, ((IJProgressCallback)vActive.get(0)).dError);
+            } else {
+                status = String.format("%d/%d   %02d:%02d:%02d   %d stacks",
+                        nDone, nTotal, hr, min, sec, vActive.size());
+            }
             IJ.showStatus(status);
-            IJ.showProgress(iIteration, nTotalIterations);
+            IJ.showProgress(nDone, nTotal);
         }
     };
-    static IJProgressCallback progress = new IJProgressCallback();
+    
+    // progress of this job. Native code keeps a pointer to it, so it must
+    // live as long as the job
+    IJProgressCallback progress = new IJProgressCallback();
     
     static String getLibName() {
         if (System.getProperty("jna.library.path") == null) {
@@ -87,9 +155,49 @@ class DecoClient extends Thread {
  
         DecoJNA INSTANCE = (DecoJNA) Native.loadLibrary(getLibName(), DecoJNA.class);
 
+        Pointer createContext();
+
+        boolean destroyContext(Pointer pContext);
+
+        boolean setContextNumThreads(Pointer pContext, int nThreads);
+
+        void setContextVerbose(Pointer pContext, int iVerbose);
+
+        boolean setContextFFTPlanMode(Pointer pContext, int iMode);
+
+        void setContextProgress(Pointer pContext, ProgressCallback progress);
+
+        void setContextConvergence(Pointer pContext, double dTolerance, int nMinIterations, int nPlateauWindow);
+
+        int getContextIterationsUsed(Pointer pContext);
+
+        void setContextTarget(Pointer pContext, double dTargetDivergence);
+
+        int getContextIterationsToTarget(Pointer pContext);
+
+        double getContextDivergence(Pointer pContext);
+
+        boolean setContextSnapshots(Pointer pContext, int[] aiIterations, int nSnapshots, Pointer[] apSnapshots);
+
+        boolean setContextCheckpoint(Pointer pContext, String strFileName, int nEveryIterations, int nEverySeconds);
+
+        boolean setContextScratch(Pointer pContext, String strDir, double dLimitBytes);
+
+        boolean setContextCoarseLevels(Pointer pContext, int[] aiBinning, int[] aiIterations, int nLevels);
+
         boolean setNumThreads(int nThreads);
                 
         void setVerbose(int iVerbose);
+
+        boolean setFFTPlanMode(int iMode, double dTimeLimit);
+
+        boolean importFFTWisdom(String strFileName);
+
+        boolean exportFFTWisdom(String strFileName);
+
+        void setFFTPlanCacheSize(int nMaxPlans);
+
+        void clearFFTPlanCache();
         
         Pointer createEmptyStack(int iWidth, int iHeight, int iDepth, boolean bCreateFFTPlan, boolean bQuickFFTPlan);
 
@@ -99,23 +207,249 @@ class DecoClient extends Thread {
         
         boolean setShortPlane(Pointer pDestStack, int zDestPlane, short[] psSrc, int iSrcLen);
 
+        boolean setFloatStack(Pointer pDestStack, Pointer pfSrc, long lSrcLen);
+
+        boolean setByteStack(Pointer pDestStack, Pointer pbSrc, long lSrcLen);
+
+        boolean setShortStack(Pointer pDestStack, Pointer psSrc, long lSrcLen);
+
         boolean destroyStack(Pointer pStack);
 
         boolean getPlane(float[] pfDest, int iDestLen, Pointer pSrcStack, int zSrcPlane);
 
+        boolean getStack(Pointer pfDest, long lDestLen, Pointer pSrcStack);
+
         int getStackWidth(Pointer pStack);
 
         int getStackHeight(Pointer pStack);
 
         int getStackDepth(Pointer pStack);
 
+        Pointer createPaddedStack(Pointer pSrc, int iWidth, int iHeight, int iDepth, int iFill);
+
+        Pointer createCroppedStack(Pointer pSrc, int iWidth, int iHeight, int iDepth);
+
+        double estimateMemory(int iMethod, int iWidth, int iHeight, int iDepth);
+
+        double estimateMemoryWithOTF(int iMethod, Pointer pOTF, int iWidth, int iHeight, int iDepth);
+
+        Pointer createOTF(Pointer pContext, Pointer pPsf, int iWidth, int iHeight, int iDepth);
+
+        Pointer createCosineOTF(Pointer pContext, Pointer pPsf, int iWidth, int iHeight, int iDepth);
+
+        Pointer createExtentOTF(Pointer pContext, Pointer pPsf, int iWidth, int iHeight, int iDepth);
+
+        boolean destroyOTF(Pointer pOTF);
+
         boolean processMain(Pointer pImage, Pointer pPsf);
 
-        boolean processLLS(Pointer pImage, Pointer pPsf, double dThresh);
+        boolean processLLS(Pointer pContext, Pointer pImage, Pointer pPsf, double dThresh);
 
-        boolean processMAP(Pointer pImage, Pointer pPsf, double dThresh);
+        boolean processMAP(Pointer pContext, Pointer pImage, Pointer pPsf, double dAlpha);
 
-        boolean processEM(Pointer pImage, Pointer pPsf, int iTotalIterations, ProgressCallback progress);
+        boolean processEM(Pointer pContext, Pointer pImage, Pointer pPsf, int iTotalIterations);
+
+        boolean processAEM(Pointer pContext, Pointer pImage, Pointer pPsf, int iTotalIterations);
+
+        boolean processSGP(Pointer pContext, Pointer pImage, Pointer pPsf, int iTotalIterations);
+
+        boolean processLLSWithOTF(Pointer pContext, Pointer pImage, Pointer pOTF, double dThresh);
+
+        boolean processMAPWithOTF(Pointer pContext, Pointer pImage, Pointer pOTF, double dAlpha);
+
+        boolean processEMWithOTF(Pointer pContext, Pointer pImage, Pointer pOTF, int iTotalIterations);
+
+        boolean processAEMWithOTF(Pointer pContext, Pointer pImage, Pointer pOTF, int iTotalIterations);
+
+        boolean processSGPWithOTF(Pointer pContext, Pointer pImage, Pointer pOTF, int iTotalIterations);
+
+        boolean processEMWithGuess(Pointer pContext, Pointer pImage, Pointer pOTF, Pointer pGuess, int iTotalIterations);
+
+        boolean processAEMWithGuess(Pointer pContext, Pointer pImage, Pointer pOTF, Pointer pGuess, int iTotalIterations);
+
+        boolean processSGPWithGuess(Pointer pContext, Pointer pImage, Pointer pOTF, Pointer pGuess, int iTotalIterations);
+
+        boolean sweepWithOTF(Pointer pContext, int iMethod, Pointer pImage, Pointer pOTF,
+                double[] adParams, int nParams, Pointer[] apResults);
+    }
+
+    static boolean bWisdomLoaded = false;
+    static boolean bNativeInitialized = false;
+
+    /** Returns the per-user file used to store FFTW wisdom. FFTW plans are
+     *  only valid on the machine that measured them, so the host name is
+     *  part of the file name. */
+    static String getWisdomPath() {
+        String strHost;
+        try {
+            strHost = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            strHost = "localhost";
+        }
+        return System.getProperty("user.home") + File.separator + ".decoj_" + strHost + ".wisdom";
+    }
+
+    /** Load the FFTW wisdom file the first time the library is used and
+     *  save it again when the JVM shuts down. */
+    static synchronized void loadWisdom() {
+        if (bWisdomLoaded) {
+            return;
+        }
+        bWisdomLoaded = true;
+        DecoJNA.INSTANCE.importFFTWisdom(getWisdomPath());
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                saveWisdom();
+            }
+        });
+    }
+
+    /** Save all FFTW plans measured so far to the wisdom file */
+    static synchronized void saveWisdom() {
+        if (bWisdomLoaded) {
+            DecoJNA.INSTANCE.exportFFTWisdom(getWisdomPath());
+        }
+    }
+
+    /** Apply the FFT planning options that are shared by the whole native
+     *  library. They are set by the first job only, so they do not change
+     *  while other jobs are planning; each context keeps its own plan mode. */
+    static synchronized void initNative(DecoOptions options) {
+        if (bNativeInitialized) {
+            return;
+        }
+        bNativeInitialized = true;
+        loadWisdom();
+        DecoJNA.INSTANCE.setVerbose(0);
+        DecoJNA.INSTANCE.setFFTPlanMode(options.iFFTPlanMode, options.dFFTPlanTimeLimit);
+        DecoJNA.INSTANCE.setFFTPlanCacheSize(options.iFFTPlanCacheSize);
+    }
+
+    /** Create a native engine context with the threading and FFT planning
+     *  options of one job, reporting its iterations to progress (which may be
+     *  null). Each concurrent job needs its own context, which must be
+     *  released with DecoJNA.destroyContext. */
+    static Pointer createContext(DecoOptions options, IJProgressCallback progress) {
+        initNative(options);
+        Pointer pContext = DecoJNA.INSTANCE.createContext();
+        DecoJNA.INSTANCE.setContextNumThreads(pContext, DecoScheduler.getThreadsPerJob(options));
+        DecoJNA.INSTANCE.setContextVerbose(pContext, 0);
+        DecoJNA.INSTANCE.setContextFFTPlanMode(pContext, options.iFFTPlanMode);
+        DecoJNA.INSTANCE.setContextProgress(pContext, progress);
+        DecoJNA.INSTANCE.setContextConvergence(pContext, options.dTolerance,
+                options.iMinIterations, options.iPlateauWindow);
+        return pContext;
+    }
+
+    /** Returns the depth of the OTF needed to deconvolve a stack of the
+     *  given depth. EM pads the image to twice its depth to avoid wrap-around. */
+    static int getOTFDepth(int iDepth) {
+        return 2 * iDepth;
+    }
+
+    /** Returns true if iSize has no prime factors larger than 7. FFTW
+     *  transforms these sizes quickly, while large prime factors can make a
+     *  transform many times slower. */
+    static boolean isFFTSize(int iSize) {
+        int[] aiPrimes = {2, 3, 5, 7};
+        for (int i=0; i<aiPrimes.length; i++) {
+            while (iSize % aiPrimes[i] == 0) {
+                iSize /= aiPrimes[i];
+            }
+        }
+        return iSize == 1;
+    }
+
+    /** Returns the smallest size of at least iSize that FFTW transforms quickly */
+    static int getFFTSize(int iSize) {
+        while (!isFFTSize(iSize)) {
+            iSize++;
+        }
+        return iSize;
+    }
+
+    /** Returns the size one axis of iSize voxels is padded to. With
+     *  options.iPadBucket, the padded sizes are taken from a fixed ladder of
+     *  fast sizes at least that many percent apart, so that stacks of
+     *  slightly different sizes in a batch share one padded size, and with
+     *  it their FFT plans and OTF. */
+    static int getPaddedSize(DecoOptions options, int iSize) {
+        if (options.iPadding == DecoOptions.PAD_OFF) {
+            return iSize;
+        }
+        if (options.iPadBucket <= 0) {
+            return getFFTSize(iSize);
+        }
+        int iPadded = 1;
+        while (iPadded < iSize) {
+            long lNext = ((long) iPadded * (100 + options.iPadBucket) + 99) / 100;
+            iPadded = getFFTSize((int) Math.max(iPadded + 1, lNext));
+        }
+        return iPadded;
+    }
+
+    /** Returns the size {W, H, D} a W x H x D stack is deconvolved at. Along
+     *  Z, both EM with the mirrored image and the cosine transform work on
+     *  multiples of the padded depth, which are fast sizes as well. */
+    static int[] getPaddedSize(DecoOptions options, int iWidth, int iHeight, int iDepth) {
+        return new int[] {getPaddedSize(options, iWidth),
+                getPaddedSize(options, iHeight), getPaddedSize(options, iDepth)};
+    }
+
+    /** Pad a native stack of the size of sfiImage to its padded size. The
+     *  stack is replaced by the padded one, which is returned, or null if it
+     *  could not be created. */
+    static Pointer padStack(Pointer pStack, SourceFileInfo sfiImage) {
+        int[] aiPadded = getPaddedSize(sfiImage.options, sfiImage.iWidth, sfiImage.iHeight, sfiImage.iDepth);
+        if (pStack == null || (aiPadded[0] == sfiImage.iWidth
+                && aiPadded[1] == sfiImage.iHeight && aiPadded[2] == sfiImage.iDepth)) {
+            return pStack;
+        }
+        Pointer pPadded = DecoJNA.INSTANCE.createPaddedStack(pStack,
+                aiPadded[0], aiPadded[1], aiPadded[2], sfiImage.options.iPadding);
+        DecoJNA.INSTANCE.destroyStack(pStack);
+        if (pPadded == null) {
+            IJ.write("Could not pad the stack to "+aiPadded[0]+"x"+aiPadded[1]+"x"+aiPadded[2]);
+        }
+        return pPadded;
+    }
+
+    /** Read a PSF file and create the OTF for deconvolving stacks with the
+     *  size of sfiImage, padded as set in its options. The OTF can be reused for any number of stacks of
+     *  the same size and must be released with DecoJNA.destroyOTF. */
+    public static Pointer createOTF(SourceFileInfo sfiPsf, SourceFileInfo sfiImage) {
+        return createOTF(sfiPsf, sfiImage, sfiImage.options.usesCosineOTF());
+    }
+
+    /** Like createOTF, but the OTF is only created in cosine form (which
+     *  only EM can use) if bCosine is true. Otherwise the image is padded
+     *  along Z to twice its depth, or only as far as the PSF reaches. */
+    static Pointer createOTF(SourceFileInfo sfiPsf, SourceFileInfo sfiImage, boolean bCosine) {
+        Pointer pContext = createContext(sfiImage.options, null);
+        Pointer pPsf = createStack(null, sfiPsf, "PSF", false);
+        if (pPsf == null) {
+            DecoJNA.INSTANCE.destroyContext(pContext);
+            return null;
+        }
+        int[] aiPadded = getPaddedSize(sfiImage.options, sfiImage.iWidth, sfiImage.iHeight, sfiImage.iDepth);
+        Pointer pOTF;
+        if (bCosine) {
+            pOTF = DecoJNA.INSTANCE.createCosineOTF(pContext, pPsf, aiPadded[0], aiPadded[1], aiPadded[2]);
+        } else if (sfiImage.options.iZEdge == DecoOptions.ZEDGE_PSF) {
+            pOTF = DecoJNA.INSTANCE.createExtentOTF(pContext, pPsf, aiPadded[0], aiPadded[1], aiPadded[2]);
+            if (pOTF != null) {
+                System.out.println("Padded "+aiPadded[2]+" planes to "
+                        +DecoJNA.INSTANCE.getStackDepth(pOTF)+" along Z, as far as the PSF reaches");
+            }
+        } else {
+            pOTF = DecoJNA.INSTANCE.createOTF(pContext, pPsf, aiPadded[0], aiPadded[1], getOTFDepth(aiPadded[2]));
+        }
+        DecoJNA.INSTANCE.destroyStack(pPsf);
+        DecoJNA.INSTANCE.destroyContext(pContext);
+        if (pOTF == null) {
+            IJ.write("Could not create the OTF from " + sfiPsf.strPath);
+        }
+        return pOTF;
     }
 
     DecoClient(SourceFileInfo sfiIn, SourceFileInfo sfiPsf, SourceFileInfo sfiOut) {
@@ -130,7 +464,17 @@ class DecoClient extends Thread {
         this.options = sfiIn.options;
     }
 
-    public Pointer createStack(PrintStream out, SourceFileInfo sfi, String strWhich) {
+    /** Deconvolve using an OTF previously created with createOTF. The OTF
+     *  is not destroyed when the deconvolution is finished. */
+    DecoClient(SourceFileInfo sfiIn, Pointer pOTF, SourceFileInfo sfiOut) {
+        this(sfiIn, (SourceFileInfo) null, sfiOut);
+        this.pOTF = pOTF;
+    }
+
+    public static Pointer createStack(PrintStream out, SourceFileInfo sfi, String strWhich, boolean bCreateFFTPlan) {
+        if (sfi.isInMemory()) {
+            return createStack(sfi.getStack(), sfi.iType, bCreateFFTPlan);
+        }
 
         // create a new FileInformation to read the entire image
         FileInfo fiNew = new FileInfo();
@@ -146,7 +490,7 @@ class DecoClient extends Thread {
         fiNew.intelByteOrder = false;
         fiNew.lutSize = 0;
 
-        Pointer pStack = DecoJNA.INSTANCE.createEmptyStack(sfi.iWidth, sfi.iHeight, sfi.iDepth, true, false);
+        Pointer pStack = DecoJNA.INSTANCE.createEmptyStack(sfi.iWidth, sfi.iHeight, sfi.iDepth, bCreateFFTPlan, false);
 
         switch (sfi.iType) {
             case ImagePlus.COLOR_256:
@@ -172,6 +516,7 @@ class DecoClient extends Thread {
             in = new FileInputStream(new File(sfi.strPath));
         } catch (FileNotFoundException e) {
             IJ.write("Cannot find file " + sfi.strPath + " to send to server.");
+            DecoJNA.INSTANCE.destroyStack(pStack);
             return null;
         }
 
@@ -202,44 +547,148 @@ class DecoClient extends Thread {
             in.close();
         } catch (IOException e) {
             IJ.write("Could not close stack file after sending to server");
+            DecoJNA.INSTANCE.destroyStack(pStack);
             return null;
         }
 
         return pStack;
     }
 
-    public boolean retrieveStack(Pointer pSrcStack, SourceFileInfo sfi, String strWhich) throws IOException {
-        // get dimensions in the form WIDTHxHEIGHTxDEPTH
-        int iWidth, iHeight, iDepth;
+    /** Convert an ImageStack to a native stack. The planes are gathered
+     *  into one block of native memory and sent across in a single call. */
+    public static Pointer createStack(ImageStack stack, int iType, boolean bCreateFFTPlan) {
+        int iWidth = stack.getWidth();
+        int iHeight = stack.getHeight();
+        int iDepth = stack.getSize();
+        int iPlaneSize = iWidth * iHeight;
+        long lStackSize = ((long) iPlaneSize) * iDepth;
 
-        iWidth = DecoJNA.INSTANCE.getStackWidth(pSrcStack);
-        iHeight = DecoJNA.INSTANCE.getStackHeight(pSrcStack);
-        iDepth = DecoJNA.INSTANCE.getStackDepth(pSrcStack);
+        int iBytesPerPixel;
+        switch (iType) {
+            case ImagePlus.COLOR_256:
+            case ImagePlus.GRAY8:
+                iBytesPerPixel = 1;
+                break;
+            case ImagePlus.GRAY16:
+                iBytesPerPixel = 2;
+                break;
+            case ImagePlus.GRAY32:
+                iBytesPerPixel = 4;
+                break;
+            default:
+                IJ.write("Unsupported image type " + iType);
+                return null;
+        }
 
-        System.out.println("Retriving stack " +iWidth+ " x " +iHeight+ " x " +iDepth);
+        Pointer pStack = DecoJNA.INSTANCE.createEmptyStack(iWidth, iHeight, iDepth, bCreateFFTPlan, false);
+        if (pStack == null) {
+            IJ.write("Could not create a " + iWidth + "x" + iHeight + "x" + iDepth + " stack");
+            return null;
+        }
 
-        // get the data type
-        int iDataType = ImagePlus.GRAY32;
+        Memory mem = new Memory(lStackSize * iBytesPerPixel);
+        long lOffset = 0;
+        int z;
+        for (z = 0; z < iDepth; z++) {
+            Object pixels = stack.getPixels(z + 1);
+            switch (iBytesPerPixel) {
+                case 1:
+                    mem.write(lOffset, (byte[]) pixels, 0, iPlaneSize);
+                    break;
+                case 2:
+                    mem.write(lOffset, (short[]) pixels, 0, iPlaneSize);
+                    break;
+                case 4:
+                    mem.write(lOffset, (float[]) pixels, 0, iPlaneSize);
+                    break;
+            }
+            lOffset += ((long) iPlaneSize) * iBytesPerPixel;
+        }
+
+        boolean bOK;
+        switch (iBytesPerPixel) {
+            case 1:
+                bOK = DecoJNA.INSTANCE.setByteStack(pStack, mem, lStackSize);
+                break;
+            case 2:
+                bOK = DecoJNA.INSTANCE.setShortStack(pStack, mem, lStackSize);
+                break;
+            default:
+                bOK = DecoJNA.INSTANCE.setFloatStack(pStack, mem, lStackSize);
+                break;
+        }
+        IJ.showProgress(1.0);
+        if (!bOK) {
+            DecoJNA.INSTANCE.destroyStack(pStack);
+            return null;
+        }
+
+        return pStack;
+    }
+
+    /** Copy the first W x H x D voxels of a native stack into a new 32-bit
+     *  ImageStack, which crops off the padding added by padStack. Returns
+     *  null if the stack could not be read. */
+    static ImageStack getImageStack(Pointer pSrcStack, int iWidth, int iHeight, int iDepth, String strWhich) {
+        if (DecoJNA.INSTANCE.getStackWidth(pSrcStack) == iWidth
+                && DecoJNA.INSTANCE.getStackHeight(pSrcStack) == iHeight
+                && DecoJNA.INSTANCE.getStackDepth(pSrcStack) == iDepth) {
+            return getImageStack(pSrcStack, strWhich);
+        }
+        Pointer pCropped = DecoJNA.INSTANCE.createCroppedStack(pSrcStack, iWidth, iHeight, iDepth);
+        if (pCropped == null) {
+            IJ.write("Could not crop the " + strWhich + " stack");
+            return null;
+        }
+        ImageStack stack = getImageStack(pCropped, strWhich);
+        DecoJNA.INSTANCE.destroyStack(pCropped);
+        return stack;
+    }
+
+    /** Copy a native stack into a new 32-bit ImageStack. Returns null if the
+     *  stack could not be read. */
+    static ImageStack getImageStack(Pointer pSrcStack, String strWhich) {
+        int iWidth = DecoJNA.INSTANCE.getStackWidth(pSrcStack);
+        int iHeight = DecoJNA.INSTANCE.getStackHeight(pSrcStack);
+        int iDepth = DecoJNA.INSTANCE.getStackDepth(pSrcStack);
+
+        System.out.println("Retriving stack " +iWidth+ " x " +iHeight+ " x " +iDepth);
 
         // get the data
         ImageStack stack = new ImageStack(iWidth, iHeight);
 
-        int xy, z, ss = iWidth * iHeight;
+        int z, ss = iWidth * iHeight;
+        Memory mem = new Memory(4L * ss * iDepth);
+        if (!DecoJNA.INSTANCE.getStack(mem, ((long) ss) * iDepth, pSrcStack)) {
+            IJ.write("Could not retrieve the " + strWhich + " stack");
+            return null;
+        }
         for (z = 0; z < iDepth; z++) {
-            //System.out.println(strName + " Receiving " + strWhich + " " + (z + 1) + "/" + iDepth);
             FloatProcessor fp = new FloatProcessor(iWidth, iHeight);
             float[] af = (float[]) fp.getPixels();
-            DecoJNA.INSTANCE.getPlane(af, af.length, pSrcStack, z);
-
-            double dSum = 0;
-            for (float f : af)
-                dSum += f;
-            dSum /= af.length;
-            //System.out.println(strWhich+" getPlane "+z+" size = "+af.length+" avg = "+dSum);
-
+            mem.read(4L * ss * z, af, 0, ss);
             stack.addSlice("", fp);
         }
         IJ.showProgress(1.0);
+        return stack;
+    }
+
+    public boolean retrieveStack(Pointer pSrcStack, SourceFileInfo sfi, String strWhich) throws IOException {
+        // get the data type
+        int iDataType = ImagePlus.GRAY32;
+
+        // get the data without the padding
+        ImageStack stack = getImageStack(pSrcStack, sfi.iWidth, sfi.iHeight, sfi.iDepth, strWhich);
+        if (stack == null) {
+            return false;
+        }
+
+        sfi.iType = iDataType;
+        if (sfi.isInMemory()) {
+            // hand the result back without writing it to disk
+            sfi.setStack(stack);
+            return true;
+        }
 
         // write the raw stack
         ImagePlus imp = new ImagePlus("", stack);
@@ -363,37 +812,324 @@ class DecoClient extends Thread {
 //        }
 //    }
 
+    /** Deconvolve sfiIn with LLS or MAP once for each threshold or alpha in
+     *  adParams. The image and the PSF are transformed only once. Returns one
+     *  32-bit stack per parameter, or null if the sweep failed. */
+    public static ImageStack[] sweep(SourceFileInfo sfiIn, SourceFileInfo sfiPsf, int iMethod, double[] adParams) {
+        int nParams = adParams.length;
+        IJProgressCallback progress = new IJProgressCallback();
+        Pointer pContext = createContext(sfiIn.options, progress);
+        Pointer pOTF = createOTF(sfiPsf, sfiIn, false);
+        Pointer pImage = null;
+        Pointer[] apResults = new Pointer[nParams];
+        try {
+            if (pOTF == null) {
+                return null;
+            }
+            pImage = padStack(createStack(null, sfiIn, "Image", false), sfiIn);
+            if (pImage == null) {
+                return null;
+            }
+            int iWidth = DecoJNA.INSTANCE.getStackWidth(pImage);
+            int iHeight = DecoJNA.INSTANCE.getStackHeight(pImage);
+            int iDepth = DecoJNA.INSTANCE.getStackDepth(pImage);
+            for (int i=0; i<nParams; i++) {
+                apResults[i] = DecoJNA.INSTANCE.createEmptyStack(iWidth, iHeight, iDepth, false, false);
+                if (apResults[i] == null) {
+                    IJ.write("Could not create the result stacks");
+                    return null;
+                }
+            }
+
+            progress.reset();
+            boolean bOK = DecoJNA.INSTANCE.sweepWithOTF(pContext, iMethod, pImage, pOTF, adParams, nParams, apResults);
+            progress.finish();
+            if (!bOK) {
+                return null;
+            }
+
+            ImageStack[] aStacks = new ImageStack[nParams];
+            for (int i=0; i<nParams; i++) {
+                aStacks[i] = getImageStack(apResults[i], sfiIn.iWidth, sfiIn.iHeight, sfiIn.iDepth, "Output");
+                if (aStacks[i] == null) {
+                    return null;
+                }
+            }
+            return aStacks;
+        } finally {
+            for (int i=0; i<nParams; i++) {
+                if (apResults[i] != null) {
+                    DecoJNA.INSTANCE.destroyStack(apResults[i]);
+                }
+            }
+            if (pImage != null) {
+                DecoJNA.INSTANCE.destroyStack(pImage);
+            }
+            if (pOTF != null) {
+                DecoJNA.INSTANCE.destroyOTF(pOTF);
+            }
+            progress.finish();
+            DecoJNA.INSTANCE.destroyContext(pContext);
+        }
+    }
+
+    /** Returns true for the methods that run options.iNumIterations iterations */
+    static boolean isIterative(int iMethod) {
+        return iMethod == DecoOptions.METHOD_EM || iMethod == DecoOptions.METHOD_AEM
+                || iMethod == DecoOptions.METHOD_SGP;
+    }
+
+    /** Deconvolve pImage in place with the method chosen in the options */
+    boolean process(PrintStream out, Pointer pContext, Pointer pImage, Pointer pOTF) {
+        switch (options.iMethod) {
+            case DecoOptions.METHOD_LLS:
+                return DecoJNA.INSTANCE.processLLSWithOTF(pContext, pImage, pOTF, options.dLLSThreshold);
+            case DecoOptions.METHOD_MAP:
+                return DecoJNA.INSTANCE.processMAPWithOTF(pContext, pImage, pOTF, options.dMAPAlpha);
+        }
+        
+        Pointer pGuess = createGuess(out, pContext, pImage, pOTF);
+        boolean bProcessed;
+        if (pGuess == null) {
+            switch (options.iMethod) {
+                case DecoOptions.METHOD_AEM:
+                    bProcessed = DecoJNA.INSTANCE.processAEMWithOTF(pContext, pImage, pOTF, options.iNumIterations);
+                    break;
+                case DecoOptions.METHOD_SGP:
+                    bProcessed = DecoJNA.INSTANCE.processSGPWithOTF(pContext, pImage, pOTF, options.iNumIterations);
+                    break;
+                default:
+                    bProcessed = DecoJNA.INSTANCE.processEMWithOTF(pContext, pImage, pOTF, options.iNumIterations);
+            }
+        } else {
+            switch (options.iMethod) {
+                case DecoOptions.METHOD_AEM:
+                    bProcessed = DecoJNA.INSTANCE.processAEMWithGuess(pContext, pImage, pOTF, pGuess, options.iNumIterations);
+                    break;
+                case DecoOptions.METHOD_SGP:
+                    bProcessed = DecoJNA.INSTANCE.processSGPWithGuess(pContext, pImage, pOTF, pGuess, options.iNumIterations);
+                    break;
+                default:
+                    bProcessed = DecoJNA.INSTANCE.processEMWithGuess(pContext, pImage, pOTF, pGuess, options.iNumIterations);
+            }
+            if (pGuess != pImage) {
+                DecoJNA.INSTANCE.destroyStack(pGuess);
+            }
+        }
+        iIterationsUsed = DecoJNA.INSTANCE.getContextIterationsUsed(pContext);
+        return bProcessed;
+    }
+
+    /** Print how many iterations it took to reach the target divergence,
+     *	so that the methods can be compared on the same stack. */
+    void printTarget(Pointer pContext) {
+        int nToTarget = DecoJNA.INSTANCE.getContextIterationsToTarget(pContext);
+        if (nToTarget >= 0) {
+            System.out.println("Reached a divergence of "+options.dTargetDivergence
+                    +" after "+nToTarget+" iterations");
+        } else {
+            System.out.println("Divergence "+DecoJNA.INSTANCE.getContextDivergence(pContext)
+                    +" did not reach the target of "+options.dTargetDivergence);
+        }
+    }
+
+    /** Hand the coarse EM levels to the context. They run before the full
+     *	size iterations, and only when EM starts from a flat guess or a guess
+     *	of the same size. */
+    void setCoarseLevels(Pointer pContext) {
+        int nLevels = options.aaiCoarseLevels.length;
+        if (nLevels == 0)
+            return;
+        int[] aiBinning = new int[nLevels];
+        int[] aiIterations = new int[nLevels];
+        for (int i=0; i<nLevels; i++) {
+            aiBinning[i] = options.aaiCoarseLevels[i][0];
+            aiIterations[i] = options.aaiCoarseLevels[i][1];
+        }
+        if (!DecoJNA.INSTANCE.setContextCoarseLevels(pContext, aiBinning, aiIterations, nLevels)) {
+            IJ.write("Ignoring the coarse levels "+options.formatCoarseLevels(options.aaiCoarseLevels));
+        }
+    }
+    
+    /** Returns the snapshot iterations that come before the last iteration.
+     *  A snapshot at or after it would be the same as the final result. */
+    int[] getSnapshotIterations() {
+        return getSnapshotIterations(options);
+    }
+
+    static int[] getSnapshotIterations(DecoOptions options) {
+        int n = 0;
+        while (n < options.aiSnapshotIterations.length
+                && options.aiSnapshotIterations[n] < options.iNumIterations) {
+            n++;
+        }
+        int[] aiIterations = new int[n];
+        System.arraycopy(options.aiSnapshotIterations, 0, aiIterations, 0, n);
+        return aiIterations;
+    }
+
+    /** Create one native stack per snapshot and hand them to the context.
+     *  Returns null if there are no snapshots or they could not be created. */
+    Pointer[] createSnapshots(Pointer pContext, Pointer pImage, int[] aiIterations) {
+        int nSnapshots = aiIterations.length;
+        if (nSnapshots == 0) {
+            return null;
+        }
+        Pointer[] apSnapshots = new Pointer[nSnapshots];
+        for (int i=0; i<nSnapshots; i++) {
+            apSnapshots[i] = DecoJNA.INSTANCE.createEmptyStack(DecoJNA.INSTANCE.getStackWidth(pImage),
+                    DecoJNA.INSTANCE.getStackHeight(pImage), DecoJNA.INSTANCE.getStackDepth(pImage), false, false);
+            if (apSnapshots[i] == null) {
+                IJ.write("Could not create the snapshot stacks, saving only the final result");
+                destroySnapshots(apSnapshots);
+                return null;
+            }
+        }
+        if (!DecoJNA.INSTANCE.setContextSnapshots(pContext, aiIterations, nSnapshots, apSnapshots)) {
+            destroySnapshots(apSnapshots);
+            return null;
+        }
+        return apSnapshots;
+    }
+
+    static void destroySnapshots(Pointer[] apSnapshots) {
+        for (int i=0; i<apSnapshots.length; i++) {
+            if (apSnapshots[i] != null) {
+                DecoJNA.INSTANCE.destroyStack(apSnapshots[i]);
+            }
+        }
+    }
+
+    /** Store the snapshot stacks next to the output, in sfiOut.asfiSnapshots */
+    boolean retrieveSnapshots(Pointer[] apSnapshots, int[] aiIterations) throws IOException {
+        sfiOut.asfiSnapshots = new SourceFileInfo[apSnapshots.length];
+        for (int i=0; i<apSnapshots.length; i++) {
+            SourceFileInfo sfiSnapshot = (SourceFileInfo) sfiOut.clone();
+            sfiSnapshot.asfiSnapshots = null;
+            sfiSnapshot.strPath = sfiOut.strPath + "_it" + aiIterations[i];
+            if (!retrieveStack(apSnapshots[i], sfiSnapshot, "Snapshot")) {
+                return false;
+            }
+            sfiOut.asfiSnapshots[i] = sfiSnapshot;
+        }
+        return true;
+    }
+
+    /** Returns the stack EM starts from, pImage itself, or null for a flat
+     *  guess. Any other stack must be destroyed by the caller. */
+    Pointer createGuess(PrintStream out, Pointer pContext, Pointer pImage, Pointer pOTF) {
+        if (sfiGuess != null) {
+            Pointer pGuess = padStack(createStack(out, sfiGuess, "Guess", false), sfiIn);
+            if (pGuess == null) {
+                IJ.write("Could not read the previous result, starting from a flat guess");
+            }
+            return pGuess;
+        }
+        switch (options.iInitialGuess) {
+            case DecoOptions.GUESS_IMAGE:
+                return pImage;
+            case DecoOptions.GUESS_LLS:
+            case DecoOptions.GUESS_MAP:
+                Pointer pGuess = padStack(createStack(out, sfiIn, "Guess", false), sfiIn);
+                if (pGuess == null) {
+                    return null;
+                }
+                boolean bOK = options.iInitialGuess == DecoOptions.GUESS_LLS
+                        ? DecoJNA.INSTANCE.processLLSWithOTF(pContext, pGuess, pOTF, options.dLLSThreshold)
+                        : DecoJNA.INSTANCE.processMAPWithOTF(pContext, pGuess, pOTF, options.dMAPAlpha);
+                if (!bOK) {
+                    IJ.write("Could not create the initial guess, starting from a flat guess");
+                    DecoJNA.INSTANCE.destroyStack(pGuess);
+                    return null;
+                }
+                return pGuess;
+        }
+        return null;
+    }
+
     public void run() {
+        Pointer pContext = createContext(options, progress);
+        Pointer pImage = null;
+        Pointer pOTF = this.pOTF;
+        boolean bOwnOTF = false;
+        Pointer[] apSnapshots = null;
         try {
-            DecoJNA.INSTANCE.setNumThreads(Runtime.getRuntime().availableProcessors());
-            DecoJNA.INSTANCE.setVerbose(0);
             PrintStream out = null;
-            Pointer pImage = null;
-            Pointer pPsf = null;
-            pImage = createStack(out, sfiIn, "Image");
-            if (pImage != null) {
-                pPsf = createStack(out, sfiPsf, "PSF");
+            if (pOTF == null) {
+                pOTF = createOTF(sfiPsf, sfiIn);
+                bOwnOTF = true;
+            }
+            if (pOTF != null) {
+                pImage = padStack(createStack(out, sfiIn, "Image", false), sfiIn);
             }
-            if (pImage == null || pPsf == null) {
+            if (pImage == null || pOTF == null) {
                 success = false;
                 return;
             }
-            System.out.println("Starting EM algorithm");
+            String strMethod = DecoOptions.METHOD_NAMES[DecoOptions.methodIndex(options.iMethod)];
+            System.out.println("Starting "+strMethod+" algorithm");
+            if (DecoJNA.INSTANCE.getStackWidth(pImage) != sfiIn.iWidth
+                    || DecoJNA.INSTANCE.getStackHeight(pImage) != sfiIn.iHeight
+                    || DecoJNA.INSTANCE.getStackDepth(pImage) != sfiIn.iDepth) {
+                System.out.println("Padded "+sfiIn.iWidth+"x"+sfiIn.iHeight+"x"+sfiIn.iDepth+" to "
+                        +DecoJNA.INSTANCE.getStackWidth(pImage)+"x"+DecoJNA.INSTANCE.getStackHeight(pImage)
+                        +"x"+DecoJNA.INSTANCE.getStackDepth(pImage)+" for the FFT");
+            }
+
+            int[] aiSnapshots = new int[0];
+            if (isIterative(options.iMethod)) {
+                aiSnapshots = getSnapshotIterations();
+                apSnapshots = createSnapshots(pContext, pImage, aiSnapshots);
+                if (strCheckpointFile != null) {
+                    DecoJNA.INSTANCE.setContextCheckpoint(pContext, strCheckpointFile,
+                            options.iCheckpointEvery, options.iCheckpointMinutes * 60);
+                }
+                long lScratchLimit = DecoScheduler.getScratchLimit(options);
+                if (lScratchLimit > 0) {
+                    DecoJNA.INSTANCE.setContextScratch(pContext, options.strScratchDir, lScratchLimit);
+                }
+                setCoarseLevels(pContext);
+                if (options.dTargetDivergence > 0) {
+                    DecoJNA.INSTANCE.setContextTarget(pContext, options.dTargetDivergence);
+                }
+            }
 
             progress.reset();
-            DecoJNA.INSTANCE.processEM(pImage, pPsf, options.iNumIterations, progress);
-            //DecoJNA.INSTANCE.processLLS(pImage, pPsf, 0.01);
-            progress.reset();
+            boolean bProcessed = process(out, pContext, pImage, pOTF);
+            progress.finish();
 
-            System.out.println("Finished EM algorithm");
-            boolean bOK = retrieveStack(pImage, sfiOut, "Output");
-            DecoJNA.INSTANCE.destroyStack(pImage);
-            DecoJNA.INSTANCE.destroyStack(pPsf);
+            if (isIterative(options.iMethod)) {
+                System.out.println("Finished "+strMethod+" algorithm after "
+                        +iIterationsUsed+" of "+options.iNumIterations+" iterations");
+                if (options.dTargetDivergence > 0) {
+                    printTarget(pContext);
+                }
+            } else {
+                System.out.println("Finished "+strMethod+" algorithm");
+            }
+            boolean bOK = bProcessed && retrieveStack(pImage, sfiOut, "Output");
+            if (apSnapshots != null) {
+                bOK = bOK && retrieveSnapshots(apSnapshots, aiSnapshots);
+            }
+            success = bOK;
 
         } catch (IOException ex) {
             Logger.getLogger(DecoClient.class.getName()).log(Level.SEVERE, null, ex);
             success = false;
+        } finally {
+            // release the native stacks even if reading or writing a file failed
+            if (apSnapshots != null) {
+                DecoJNA.INSTANCE.setContextSnapshots(pContext, null, 0, null);
+                destroySnapshots(apSnapshots);
+            }
+            if (pImage != null) {
+                DecoJNA.INSTANCE.destroyStack(pImage);
+            }
+            if (bOwnOTF && pOTF != null) {
+                DecoJNA.INSTANCE.destroyOTF(pOTF);
+            }
+            progress.finish();
+            DecoJNA.INSTANCE.destroyContext(pContext);
         }
-        success = true;
     }
 }
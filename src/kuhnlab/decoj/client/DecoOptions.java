@@ -30,16 +30,113 @@ public class DecoOptions {
     static final String DEFAULT_PROP_EXT = ".dop";
     static final String DEFAULT_PROP_DESC = "Deconvolution Options";
     
-    int iNumIterations=500;
+    // FFT planning modes (must match FFT_PLAN_* in DecoJNA process.h)
+    static final int PLAN_ESTIMATE = 0;
+    static final int PLAN_MEASURE = 1;
+    static final int PLAN_PATIENT = 2;
+    static final String[] PLAN_MODE_NAMES = {"estimate", "measure", "patient"};
+    
+    // deconvolution methods (must match METHOD_* in DecoJNA deco.h)
+    static final int METHOD_LLS = 1;
+    static final int METHOD_MAP = 2;
+    static final int METHOD_EM = 3;
+    static final int METHOD_AEM = 8;	// accelerated EM
+    static final int METHOD_SGP = 9;	// scaled gradient projection
+    // methods that can be chosen, with their names in the dialog and .dop file
+    static final int[] METHODS = {METHOD_EM, METHOD_AEM, METHOD_SGP, METHOD_LLS, METHOD_MAP};
+    static final String[] METHOD_NAMES = {"em", "accelerated_em", "sgp", "lls", "map"};
+    
+    // where EM starts from
+    static final int GUESS_FLAT = 0;		// all voxels 1
+    static final int GUESS_IMAGE = 1;		// the raw image
+    static final int GUESS_PREVIOUS = 2;	// result of the previous timepoint
+    static final int GUESS_LLS = 3;			// LLS result of the image
+    static final int GUESS_MAP = 4;			// MAP result of the image
+    static final String[] GUESS_NAMES = {"flat", "image", "previous", "lls", "map"};
+    
+    // how EM extends the image along Z
+    static final int ZEDGE_MIRROR = 0;		// FFT of the image mirrored to twice its depth
+    static final int ZEDGE_COSINE = 1;		// cosine transform along Z, same result in half the memory
+    static final int ZEDGE_PSF = 2;			// mirrored only as far as the PSF reaches along Z
+    static final String[] ZEDGE_NAMES = {"mirror", "cosine", "psf"};
+    
+    // how a stack that does not fit in the memory budget is split up
+    static final int TILES_OFF = 0;		// the stack is refused
+    static final int TILES_XY = 1;		// overlapping tiles across the plane, each with all planes
+    static final int TILES_XYZ = 2;		// overlapping tiles along Z as well
+    static final String[] TILES_NAMES = {"off", "xy", "xyz"};
+    
+    // how a stack is padded to sizes FFTW transforms quickly (must match
+    // PAD_* in DecoJNA deco.h)
+    static final int PAD_OFF = 0;		// the stack is deconvolved at its own size
+    static final int PAD_MIRROR = 1;	// the stack reflected at its edges
+    static final int PAD_TAPER = 2;		// a smooth blend from each edge back to the opposite one
+    static final String[] PAD_NAMES = {"off", "mirror", "taper"};
+    
+    int iMethod=METHOD_EM;
+    int iInitialGuess=GUESS_FLAT;
+    int iNumIterations=500;		// maximum number of iterations
+    double dTolerance=0;		// stop when the relative change is below this, 0 = never
+    int iMinIterations=0;		// iterations to run before checking the tolerance
+    int iPlateauWindow=1;		// successive iterations that must be below the tolerance
+    double dTargetDivergence=0;	// report the iterations needed to reach this divergence, 0 = off
+    int[] aiSnapshotIterations=new int[0];	// also save EM results after these iterations
+    int[][] aaiCoarseLevels=new int[0][];	// {binning, iterations} of each EM level before the full size
+    int iCheckpointEvery=0;		// save the EM state every N iterations, 0 = never
+    int iCheckpointMinutes=0;	// save the EM state every N minutes, 0 = never
+    boolean bSkipFinished=false;	// a batch skips files whose output exists
+    int iZEdge=ZEDGE_MIRROR;
+    int iTiles=TILES_OFF;
+    int iTileOverlap=0;			// pixels the tiles overlap by, 0 = the PSF size
+    int iPadding=PAD_OFF;
+    int iPadBucket=0;			// padded sizes are at least this many percent apart, 0 = the nearest fast size
+    String strScratchDir="";	// directory for out-of-core EM scratch files, "" = off
+    int iScratchLimitMB=0;		// EM uses scratch files above this footprint, 0 = its share of the budget
+    double dLLSThreshold=0.01;	// LLS ignores frequencies where |OTF|^2 is below this
+    double dMAPAlpha=0.01;		// MAP smoothing weight
     int iNumPlanes=64;
     int iNumWL=1;
     String[] astrPsfFile;
+    int iFFTPlanMode=PLAN_ESTIMATE;
+    double dFFTPlanTimeLimit=0;	// seconds per plan, 0 = no limit
+    int iFFTPlanCacheSize=8;	// number of transform sizes to keep plans for
+    boolean bUseTempFiles=false;	// pass stacks through raw temp files
+    int iNumCores=0;			// cores to use, 0 = all available
+    int iConcurrentJobs=0;		// stacks deconvolved at once, 0 = automatic
+    int iMemoryBudgetMB=0;		// native memory for all jobs, 0 = automatic
     
     // Profile keys
+    static final String P_METHOD		= "method";
+    static final String P_INITIALGUESS	= "initial_guess";
     static final String P_NUMITERATIONS	= "num_iterations";
+    static final String P_TOLERANCE		= "tolerance";
+    static final String P_MINITERATIONS	= "min_iterations";
+    static final String P_TARGETDIVERGENCE	= "target_divergence";
+    static final String P_PLATEAUWINDOW	= "plateau_window";
+    static final String P_SNAPSHOTS		= "snapshot_iterations";
+    static final String P_COARSELEVELS	= "coarse_levels";
+    static final String P_CHECKPOINTEVERY	= "checkpoint_every";
+    static final String P_CHECKPOINTMINUTES	= "checkpoint_minutes";
+    static final String P_SKIPFINISHED	= "skip_finished";
+    static final String P_ZEDGE			= "z_edge";
+    static final String P_TILES			= "tiles";
+    static final String P_TILEOVERLAP	= "tile_overlap";
+    static final String P_PADDING		= "fft_padding";
+    static final String P_PADBUCKET		= "pad_bucket";
+    static final String P_SCRATCHDIR	= "scratch_dir";
+    static final String P_SCRATCHLIMIT	= "scratch_limit_mb";
+    static final String P_LLSTHRESHOLD	= "lls_threshold";
+    static final String P_MAPALPHA		= "map_alpha";
     static final String P_NUMPLANES		= "num_planes";
     static final String P_NUMWL			= "num_wavelengths";
     static final String P_PSFFILE		= "psf";
+    static final String P_FFTPLANMODE	= "fft_plan_mode";
+    static final String P_FFTPLANTIME	= "fft_plan_time_limit";
+    static final String P_FFTPLANCACHE	= "fft_plan_cache_size";
+    static final String P_USETEMPFILES	= "use_temp_files";
+    static final String P_NUMCORES		= "num_cores";
+    static final String P_CONCURRENTJOBS	= "concurrent_jobs";
+    static final String P_MEMORYBUDGET	= "memory_budget_mb";
     
     
     DecoOptions() {
@@ -52,17 +149,64 @@ public class DecoOptions {
     
     /** Store variables in properties file */
     void storeValues(PropertiesFile props) {
+        props.setPropString(P_METHOD, METHOD_NAMES[methodIndex(iMethod)]);
+        props.setPropString(P_INITIALGUESS, GUESS_NAMES[iInitialGuess]);
         props.setPropInt(P_NUMITERATIONS, iNumIterations);
+        props.setPropDouble(P_TOLERANCE, dTolerance);
+        props.setPropInt(P_MINITERATIONS, iMinIterations);
+        props.setPropDouble(P_TARGETDIVERGENCE, dTargetDivergence);
+        props.setPropInt(P_PLATEAUWINDOW, iPlateauWindow);
+        props.setPropString(P_SNAPSHOTS, formatIterations(aiSnapshotIterations));
+        props.setPropString(P_COARSELEVELS, formatCoarseLevels(aaiCoarseLevels));
+        props.setPropInt(P_CHECKPOINTEVERY, iCheckpointEvery);
+        props.setPropInt(P_CHECKPOINTMINUTES, iCheckpointMinutes);
+        props.setPropBoolean(P_SKIPFINISHED, bSkipFinished);
+        props.setPropString(P_ZEDGE, ZEDGE_NAMES[iZEdge]);
+        props.setPropString(P_TILES, TILES_NAMES[iTiles]);
+        props.setPropInt(P_TILEOVERLAP, iTileOverlap);
+        props.setPropString(P_PADDING, PAD_NAMES[iPadding]);
+        props.setPropInt(P_PADBUCKET, iPadBucket);
+        props.setPropString(P_SCRATCHDIR, strScratchDir);
+        props.setPropInt(P_SCRATCHLIMIT, iScratchLimitMB);
+        props.setPropDouble(P_LLSTHRESHOLD, dLLSThreshold);
+        props.setPropDouble(P_MAPALPHA, dMAPAlpha);
         props.setPropInt(P_NUMPLANES, iNumPlanes);
         props.setPropInt(P_NUMWL, iNumWL);
         for (int i=0; i<iNumWL; i++) {
             props.setPropString(P_PSFFILE+(i+1), astrPsfFile[i]);
         }
+        props.setPropString(P_FFTPLANMODE, PLAN_MODE_NAMES[iFFTPlanMode]);
+        props.setPropDouble(P_FFTPLANTIME, dFFTPlanTimeLimit);
+        props.setPropInt(P_FFTPLANCACHE, iFFTPlanCacheSize);
+        props.setPropBoolean(P_USETEMPFILES, bUseTempFiles);
+        props.setPropInt(P_NUMCORES, iNumCores);
+        props.setPropInt(P_CONCURRENTJOBS, iConcurrentJobs);
+        props.setPropInt(P_MEMORYBUDGET, iMemoryBudgetMB);
     }
     
     /** Load variables from properties file */
     void loadValues(PropertiesFile props) {
+        iMethod = parseMethod(props.getPropString(P_METHOD, METHOD_NAMES[methodIndex(METHOD_EM)]));
+        iInitialGuess = parseInitialGuess(props.getPropString(P_INITIALGUESS, GUESS_NAMES[GUESS_FLAT]));
         iNumIterations = props.getPropInt(P_NUMITERATIONS, 500);
+        dTolerance = props.getPropDouble(P_TOLERANCE, 0);
+        iMinIterations = props.getPropInt(P_MINITERATIONS, 0);
+        dTargetDivergence = props.getPropDouble(P_TARGETDIVERGENCE, 0);
+        iPlateauWindow = props.getPropInt(P_PLATEAUWINDOW, 1);
+        aiSnapshotIterations = parseIterations(props.getPropString(P_SNAPSHOTS, ""));
+        aaiCoarseLevels = parseCoarseLevels(props.getPropString(P_COARSELEVELS, ""));
+        iCheckpointEvery = props.getPropInt(P_CHECKPOINTEVERY, 0);
+        iCheckpointMinutes = props.getPropInt(P_CHECKPOINTMINUTES, 0);
+        bSkipFinished = props.getPropBoolean(P_SKIPFINISHED, false);
+        iZEdge = parseZEdge(props.getPropString(P_ZEDGE, ZEDGE_NAMES[ZEDGE_MIRROR]));
+        iTiles = parseTiles(props.getPropString(P_TILES, TILES_NAMES[TILES_OFF]));
+        iTileOverlap = props.getPropInt(P_TILEOVERLAP, 0);
+        iPadding = parsePadding(props.getPropString(P_PADDING, PAD_NAMES[PAD_OFF]));
+        iPadBucket = props.getPropInt(P_PADBUCKET, 0);
+        strScratchDir = props.getPropString(P_SCRATCHDIR, "");
+        iScratchLimitMB = props.getPropInt(P_SCRATCHLIMIT, 0);
+        dLLSThreshold = props.getPropDouble(P_LLSTHRESHOLD, 0.01);
+        dMAPAlpha = props.getPropDouble(P_MAPALPHA, 0.01);
         iNumPlanes = props.getPropInt(P_NUMPLANES, 64);
         iNumWL = props.getPropInt(P_NUMWL, 1);
         if (iNumWL > MAX_WL)
@@ -70,6 +214,168 @@ public class DecoOptions {
         for (int i=0; i<iNumWL; i++) {
             astrPsfFile[i] = props.getPropString(P_PSFFILE+(i+1), "");
         }
+        iFFTPlanMode = parsePlanMode(props.getPropString(P_FFTPLANMODE, PLAN_MODE_NAMES[PLAN_ESTIMATE]));
+        dFFTPlanTimeLimit = props.getPropDouble(P_FFTPLANTIME, 0);
+        iFFTPlanCacheSize = props.getPropInt(P_FFTPLANCACHE, 8);
+        bUseTempFiles = props.getPropBoolean(P_USETEMPFILES, false);
+        iNumCores = props.getPropInt(P_NUMCORES, 0);
+        iConcurrentJobs = props.getPropInt(P_CONCURRENTJOBS, 0);
+        iMemoryBudgetMB = props.getPropInt(P_MEMORYBUDGET, 0);
+    }
+    
+    /** Convert a planning mode name to one of the PLAN_ constants */
+    static int parsePlanMode(String strMode) {
+        for (int i=0; i<PLAN_MODE_NAMES.length; i++) {
+            if (PLAN_MODE_NAMES[i].equalsIgnoreCase(strMode.trim()))
+                return i;
+        }
+        IJ.write("Unknown FFT plan mode \""+strMode+"\", using "+PLAN_MODE_NAMES[PLAN_ESTIMATE]);
+        return PLAN_ESTIMATE;
+    }
+    
+    
+    /** Convert a Z edge name to one of the ZEDGE_ constants */
+    static int parseZEdge(String strEdge) {
+        for (int i=0; i<ZEDGE_NAMES.length; i++) {
+            if (ZEDGE_NAMES[i].equalsIgnoreCase(strEdge.trim()))
+                return i;
+        }
+        IJ.write("Unknown Z edge \""+strEdge+"\", using "+ZEDGE_NAMES[ZEDGE_MIRROR]);
+        return ZEDGE_MIRROR;
+    }
+    
+    /** Convert a padding name to one of the PAD_ constants */
+    static int parsePadding(String strPadding) {
+        for (int i=0; i<PAD_NAMES.length; i++) {
+            if (PAD_NAMES[i].equalsIgnoreCase(strPadding.trim()))
+                return i;
+        }
+        IJ.write("Unknown padding \""+strPadding+"\", using "+PAD_NAMES[PAD_OFF]);
+        return PAD_OFF;
+    }
+    
+    /** Convert a tiling name to one of the TILES_ constants */
+    static int parseTiles(String strTiles) {
+        for (int i=0; i<TILES_NAMES.length; i++) {
+            if (TILES_NAMES[i].equalsIgnoreCase(strTiles.trim()))
+                return i;
+        }
+        IJ.write("Unknown tiling \""+strTiles+"\", using "+TILES_NAMES[TILES_OFF]);
+        return TILES_OFF;
+    }
+    
+    /** Convert a method name to one of the METHOD_ constants */
+    static int parseMethod(String strMethod) {
+        for (int i=0; i<METHOD_NAMES.length; i++) {
+            if (METHOD_NAMES[i].equalsIgnoreCase(strMethod.trim()))
+                return METHODS[i];
+        }
+        IJ.write("Unknown deconvolution method \""+strMethod+"\", using "+METHOD_NAMES[methodIndex(METHOD_EM)]);
+        return METHOD_EM;
+    }
+    
+    /** Convert an initial guess name to one of the GUESS_ constants */
+    static int parseInitialGuess(String strGuess) {
+        for (int i=0; i<GUESS_NAMES.length; i++) {
+            if (GUESS_NAMES[i].equalsIgnoreCase(strGuess.trim()))
+                return i;
+        }
+        IJ.write("Unknown initial guess \""+strGuess+"\", using "+GUESS_NAMES[GUESS_FLAT]);
+        return GUESS_FLAT;
+    }
+    
+    /** Convert a comma separated list of iteration counts into a sorted
+     *	array. Counts that are not positive numbers are ignored. */
+    static int[] parseIterations(String strIterations) {
+        StringTokenizer st = new StringTokenizer(strIterations, ", ");
+        List vIterations = new ArrayList();
+        while (st.hasMoreTokens()) {
+            String strToken = st.nextToken();
+            try {
+                int iIteration = Integer.parseInt(strToken);
+                if (iIteration > 0)
+                    vIterations.add(new Integer(iIteration));
+            } catch (NumberFormatException e) {
+                IJ.write("Ignoring snapshot iteration \""+strToken+"\"");
+            }
+        }
+        Collections.sort(vIterations);
+        int[] aiIterations = new int[vIterations.size()];
+        for (int i=0; i<aiIterations.length; i++) {
+            aiIterations[i] = ((Integer)vIterations.get(i)).intValue();
+        }
+        return aiIterations;
+    }
+    
+    /** Convert an array of iteration counts to a comma separated list */
+    static String formatIterations(int[] aiIterations) {
+        StringBuffer sb = new StringBuffer();
+        for (int i=0; i<aiIterations.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(aiIterations[i]);
+        }
+        return sb.toString();
+    }
+    
+    /** Convert a comma separated list of coarse EM levels, each written as
+     *	binning x iterations, into an array of {binning, iterations}. "4x20,2x30"
+     *	runs 20 iterations binned by 4, then 30 binned by 2. Levels with a
+     *	binning below 2 or no iterations are ignored. */
+    static int[][] parseCoarseLevels(String strLevels) {
+        StringTokenizer st = new StringTokenizer(strLevels, ", ");
+        List vLevels = new ArrayList();
+        while (st.hasMoreTokens()) {
+            String strToken = st.nextToken();
+            int iSep = strToken.toLowerCase().indexOf('x');
+            try {
+                int iBinning = Integer.parseInt(strToken.substring(0, iSep));
+                int iIterations = Integer.parseInt(strToken.substring(iSep + 1));
+                if (iBinning >= 2 && iIterations > 0)
+                    vLevels.add(new int[] {iBinning, iIterations});
+            } catch (RuntimeException e) {
+                IJ.write("Ignoring coarse level \""+strToken+"\"");
+            }
+        }
+        int[][] aaiLevels = new int[vLevels.size()][];
+        for (int i=0; i<aaiLevels.length; i++) {
+            aaiLevels[i] = (int[])vLevels.get(i);
+        }
+        return aaiLevels;
+    }
+    
+    /** Convert an array of coarse EM levels to a comma separated list */
+    static String formatCoarseLevels(int[][] aaiLevels) {
+        StringBuffer sb = new StringBuffer();
+        for (int i=0; i<aaiLevels.length; i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(aaiLevels[i][0]).append("x").append(aaiLevels[i][1]);
+        }
+        return sb.toString();
+    }
+    
+    /** Returns true if the OTF is created in cosine form. Only the
+     *	iterative methods can use it, and LLS and MAP first guesses need the
+     *	mirrored OTF. */
+    boolean usesCosineOTF() {
+        return iZEdge == ZEDGE_COSINE && iMethod != METHOD_LLS && iMethod != METHOD_MAP
+                && iInitialGuess != GUESS_LLS && iInitialGuess != GUESS_MAP;
+    }
+    
+    /** Returns true if long EM runs save their state so that they can be
+     *	resumed */
+    boolean usesCheckpoints() {
+        return iCheckpointEvery > 0 || iCheckpointMinutes > 0;
+    }
+    
+    /** Position of a METHOD_ constant in METHODS and METHOD_NAMES */
+    static int methodIndex(int iMethod) {
+        for (int i=0; i<METHODS.length; i++) {
+            if (METHODS[i] == iMethod)
+                return i;
+        }
+        return 0;
     }
     
     
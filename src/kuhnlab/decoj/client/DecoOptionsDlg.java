@@ -60,7 +60,27 @@ public class DecoOptionsDlg extends Dialog implements ActionListener, ItemListen
     //=======================================================================
     
     // Controls
+    Choice chMethod				= new Choice();
     TextField tfNumIterations	= new TextField("----");
+    Choice chInitialGuess		= new Choice();
+    TextField tfLLSThreshold	= new TextField("----");
+    TextField tfMAPAlpha		= new TextField("----");
+    TextField tfTolerance		= new TextField("----");
+    TextField tfMinIterations	= new TextField("----");
+    TextField tfTargetDivergence	= new TextField("----");
+    TextField tfSnapshots		= new TextField("--------");
+    TextField tfCoarseLevels	= new TextField("--------");
+    TextField tfCheckpointEvery	= new TextField("----");
+    TextField tfCheckpointMinutes	= new TextField("----");
+    Choice chZEdge				= new Choice();
+    Choice chTiles				= new Choice();
+    TextField tfTileOverlap		= new TextField("----");
+    Choice chPadding			= new Choice();
+    TextField tfPadBucket		= new TextField("----");
+    TextField tfScratchDir		= new TextField("--------");
+    TextField tfScratchLimit	= new TextField("----");
+    Choice chFFTPlanMode		= new Choice();
+    TextField tfFFTPlanTime		= new TextField("----");
     
     /** Create the deconvolution options control panel */
     Panel createDecoPanel() {
@@ -89,17 +109,166 @@ public class DecoOptionsDlg extends Dialog implements ActionListener, ItemListen
         c.gridx++;
         pan.add(constrain(tfNumIterations, gb, c));
         
+        for (int i=0; i<options.METHOD_NAMES.length; i++) {
+            chMethod.add(options.METHOD_NAMES[i]);
+        }
+        c.gridx++;
+        pan.add(constrain(new Label("Method:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(chMethod, gb, c));
+        
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Tolerance:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfTolerance, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Min Iterations:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfMinIterations, gb, c));
+        
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Target Divergence:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfTargetDivergence, gb, c));
+        
+        for (int i=0; i<options.GUESS_NAMES.length; i++) {
+            chInitialGuess.add(options.GUESS_NAMES[i]);
+        }
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Start From:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(chInitialGuess, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Snapshots At:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfSnapshots, gb, c));
+        
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Checkpoint Every:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfCheckpointEvery, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Or Minutes:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfCheckpointMinutes, gb, c));
+        
+        for (int i=0; i<options.ZEDGE_NAMES.length; i++) {
+            chZEdge.add(options.ZEDGE_NAMES[i]);
+        }
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Z Edges:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(chZEdge, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Coarse Levels:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfCoarseLevels, gb, c));
+        
+        for (int i=0; i<options.TILES_NAMES.length; i++) {
+            chTiles.add(options.TILES_NAMES[i]);
+        }
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Tiles:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(chTiles, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Tile Overlap:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfTileOverlap, gb, c));
+        
+        for (int i=0; i<options.PAD_NAMES.length; i++) {
+            chPadding.add(options.PAD_NAMES[i]);
+        }
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("FFT Padding:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(chPadding, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Size Steps (%):", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfPadBucket, gb, c));
+        
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("Scratch Dir:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfScratchDir, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Scratch Above (MB):", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfScratchLimit, gb, c));
+        
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("LLS Threshold:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfLLSThreshold, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("MAP Alpha:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfMAPAlpha, gb, c));
+        
+        for (int i=0; i<options.PLAN_MODE_NAMES.length; i++) {
+            chFFTPlanMode.add(options.PLAN_MODE_NAMES[i]);
+        }
+        c.gridx = 0;	c.gridy++;
+        pan.add(constrain(new Label("FFT Planning:", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(chFFTPlanMode, gb, c));
+        c.gridx++;
+        pan.add(constrain(new Label("Time Limit (sec):", Label.RIGHT), gb, c));
+        c.gridx++;
+        pan.add(constrain(tfFFTPlanTime, gb, c));
+        
         return pan;
     }
     
     /** Retrieve user-input values from the panel and store in variables */
     void retrieveDecoPanel() {
+        options.iMethod = options.METHODS[chMethod.getSelectedIndex()];
         options.iNumIterations = Integer.parseInt(tfNumIterations.getText());
+        options.iInitialGuess = chInitialGuess.getSelectedIndex();
+        options.dLLSThreshold = Double.parseDouble(tfLLSThreshold.getText());
+        options.dMAPAlpha = Double.parseDouble(tfMAPAlpha.getText());
+        options.dTolerance = Double.parseDouble(tfTolerance.getText());
+        options.iMinIterations = Integer.parseInt(tfMinIterations.getText());
+        options.dTargetDivergence = Double.parseDouble(tfTargetDivergence.getText());
+        options.aiSnapshotIterations = options.parseIterations(tfSnapshots.getText());
+        options.aaiCoarseLevels = options.parseCoarseLevels(tfCoarseLevels.getText());
+        options.iCheckpointEvery = Integer.parseInt(tfCheckpointEvery.getText());
+        options.iCheckpointMinutes = Integer.parseInt(tfCheckpointMinutes.getText());
+        options.iZEdge = chZEdge.getSelectedIndex();
+        options.iTiles = chTiles.getSelectedIndex();
+        options.iTileOverlap = Integer.parseInt(tfTileOverlap.getText());
+        options.iPadding = chPadding.getSelectedIndex();
+        options.iPadBucket = Integer.parseInt(tfPadBucket.getText());
+        options.strScratchDir = tfScratchDir.getText().trim();
+        options.iScratchLimitMB = Integer.parseInt(tfScratchLimit.getText());
+        options.iFFTPlanMode = chFFTPlanMode.getSelectedIndex();
+        options.dFFTPlanTimeLimit = Double.parseDouble(tfFFTPlanTime.getText());
     }
     
     /** Load the controls from variables */
     void updateDecoPanel() {
+        chMethod.select(options.methodIndex(options.iMethod));
         tfNumIterations.setText(""+options.iNumIterations);
+        chInitialGuess.select(options.iInitialGuess);
+        tfLLSThreshold.setText(""+options.dLLSThreshold);
+        tfMAPAlpha.setText(""+options.dMAPAlpha);
+        tfTolerance.setText(""+options.dTolerance);
+        tfMinIterations.setText(""+options.iMinIterations);
+        tfTargetDivergence.setText(""+options.dTargetDivergence);
+        tfSnapshots.setText(options.formatIterations(options.aiSnapshotIterations));
+        tfCoarseLevels.setText(options.formatCoarseLevels(options.aaiCoarseLevels));
+        tfCheckpointEvery.setText(""+options.iCheckpointEvery);
+        tfCheckpointMinutes.setText(""+options.iCheckpointMinutes);
+        chZEdge.select(options.iZEdge);
+        chTiles.select(options.iTiles);
+        tfTileOverlap.setText(""+options.iTileOverlap);
+        chPadding.select(options.iPadding);
+        tfPadBucket.setText(""+options.iPadBucket);
+        tfScratchDir.setText(options.strScratchDir);
+        tfScratchLimit.setText(""+options.iScratchLimitMB);
+        chFFTPlanMode.select(options.iFFTPlanMode);
+        tfFFTPlanTime.setText(""+options.dFFTPlanTimeLimit);
     }
     
     
@@ -0,0 +1,328 @@
+//   Copyright 2013 Jeffrey R. Kuhn
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package kuhnlab.decoj.client;
+
+
+import ij.*;
+import com.sun.jna.Pointer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/** Runs several deconvolution jobs at the same time. The cores of the
+ *  machine are split between the number of stacks deconvolved at once and
+ *  the number of FFTW threads used by each stack. FFTW threading alone
+ *  leaves most cores idle during the per-voxel passes of each iteration,
+ *  so large machines are better used by running several stacks at once.
+ *  Jobs are only started while their combined native memory footprint
+ *  fits in the memory budget. */
+public class DecoScheduler {
+    // number of FFT threads per stack chosen when concurrent_jobs is 0
+    static final int AUTO_THREADS_PER_JOB = 8;
+    // fraction of the free physical memory used when memory_budget_mb is 0
+    static final double AUTO_MEMORY_FRACTION = 0.8;
+    static final long MB = 1024L * 1024L;
+    
+    int nJobs;
+    ExecutorService pool;
+    long lMemoryBudget;
+    long lMemoryInUse = 0;
+    
+    public DecoScheduler(DecoOptions options) {
+        nJobs = getNumJobs(options);
+        lMemoryBudget = getMemoryBudget(options);
+        pool = Executors.newFixedThreadPool(nJobs);
+    }
+    
+    /** Returns the number of cores available for deconvolution */
+    static int getNumCores(DecoOptions options) {
+        int nAvailable = Runtime.getRuntime().availableProcessors();
+        if (options.iNumCores <= 0 || options.iNumCores > nAvailable)
+            return nAvailable;
+        return options.iNumCores;
+    }
+    
+    /** Returns the number of stacks to deconvolve at the same time */
+    static int getNumJobs(DecoOptions options) {
+        int nCores = getNumCores(options);
+        int nJobs = options.iConcurrentJobs;
+        if (nJobs <= 0)
+            nJobs = nCores / AUTO_THREADS_PER_JOB;
+        if (nJobs > nCores)
+            nJobs = nCores;
+        return Math.max(1, nJobs);
+    }
+    
+    /** Returns the number of FFTW threads each stack may use */
+    static int getThreadsPerJob(DecoOptions options) {
+        return Math.max(1, getNumCores(options) / getNumJobs(options));
+    }
+    
+    public int getNumJobs() {
+        return nJobs;
+    }
+    
+    /** Returns the number of bytes of native memory that all running jobs
+     *	together may use. The automatic budget is a fraction of the physical
+     *	memory not reserved for the Java heap. */
+    static long getMemoryBudget(DecoOptions options) {
+        if (options.iMemoryBudgetMB > 0)
+            return options.iMemoryBudgetMB * MB;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean))
+            return Long.MAX_VALUE;
+        long lPhysical = ((com.sun.management.OperatingSystemMXBean)os).getTotalPhysicalMemorySize();
+        long lFree = lPhysical - Runtime.getRuntime().maxMemory();
+        if (lFree <= 0)
+            return Long.MAX_VALUE;
+        return (long)(lFree * AUTO_MEMORY_FRACTION);
+    }
+    
+    public long getMemoryBudget() {
+        return lMemoryBudget;
+    }
+    
+    /** Returns the native memory needed to deconvolve one stack of the
+     *	given size with one of the METHOD_ constants, including its OTF. The
+     *	stacks of the OTF and the working stacks are those of an OTF like
+     *	pOTF, which may be in cosine form or only have a real part. Without
+     *	pOTF, they are assumed to be complex and twice the depth of the stack. */
+    static long estimateMemory(int iMethod, Pointer pOTF, int iWidth, int iHeight, int iDepth) {
+        return (long)DecoClient.DecoJNA.INSTANCE.estimateMemoryWithOTF(
+                iMethod, pOTF, iWidth, iHeight, iDepth);
+    }
+    
+    /** Returns the footprint above which EM keeps the image, the guess and
+     *	the extrapolation stacks in scratch files, or 0 if it never does. The
+     *	default is the share of the memory budget of one job. */
+    static long getScratchLimit(DecoOptions options) {
+        if (options.strScratchDir.length() == 0 || !DecoClient.isIterative(options.iMethod))
+            return 0;
+        if (options.iScratchLimitMB > 0)
+            return options.iScratchLimitMB * MB;
+        return getMemoryBudget(options) / getNumJobs(options);
+    }
+    
+    /** Returns the number of stacks that an iterative method keeps in
+     *	scratch files: the image and the guess, plus the extrapolation
+     *	stacks of accelerated EM or the projection, gradient and direction
+     *	of SGP. */
+    static int getScratchStacks(int iMethod) {
+        switch (iMethod) {
+            case DecoOptions.METHOD_AEM:
+                return 4;
+            case DecoOptions.METHOD_SGP:
+                return 5;
+        }
+        return 2;
+    }
+    
+    /** Returns the native memory that stays resident while a stack of the
+     *	given size is deconvolved at its padded size with an OTF like pOTF
+     *	(see estimateMemory). Stacks that EM keeps in scratch files are not
+     *	counted, only its working stack and OTF. */
+    static long estimateResidentMemory(DecoOptions options, Pointer pOTF, int iWidth, int iHeight, int iDepth) {
+        int[] aiPadded = DecoClient.getPaddedSize(options, iWidth, iHeight, iDepth);
+        iWidth = aiPadded[0];
+        iHeight = aiPadded[1];
+        iDepth = aiPadded[2];
+        long lBytes = estimateMemory(options.iMethod, pOTF, iWidth, iHeight, iDepth);
+        long lScratchLimit = getScratchLimit(options);
+        if (lScratchLimit > 0 && lBytes > lScratchLimit) {
+            // one padded float stack, see CStackData::storageBytes
+            long lStackBytes = 4L * 2 * (iWidth / 2 + 1) * iHeight * iDepth;
+            lBytes -= getScratchStacks(options.iMethod) * lStackBytes;
+        }
+        return lBytes;
+    }
+    
+    /** Returns the largest estimateResidentMemory of the OTFs in apOTF */
+    static long estimateResidentMemory(DecoOptions options, Pointer[] apOTF, int iWidth, int iHeight, int iDepth) {
+        if (apOTF == null || apOTF.length == 0)
+            return estimateResidentMemory(options, (Pointer)null, iWidth, iHeight, iDepth);
+        long lMax = 0;
+        for (int i=0; i<apOTF.length; i++) {
+            lMax = Math.max(lMax, estimateResidentMemory(options, apOTF[i], iWidth, iHeight, iDepth));
+        }
+        return lMax;
+    }
+    
+    /** Returns true if a job keeps a guess stack of its own while EM runs:
+     *	the result of the previous timepoint or an LLS or MAP result. A flat
+     *	guess needs no stack, and the image is its own guess. */
+    static boolean keepsGuessStack(DecoOptions options) {
+        return options.iInitialGuess != DecoOptions.GUESS_FLAT
+                && options.iInitialGuess != DecoOptions.GUESS_IMAGE;
+    }
+    
+    /** Returns the native memory needed by one job that deconvolves a stack
+     *	of the given size with an OTF like pOTF, including the stacks of its
+     *	EM snapshots, its initial guess and the guess of its coarse levels. */
+    static long estimateJobMemory(DecoOptions options, Pointer pOTF, int iWidth, int iHeight, int iDepth) {
+        long lBytes = estimateResidentMemory(options, pOTF, iWidth, iHeight, iDepth);
+        if (DecoClient.isIterative(options.iMethod)) {
+            int[] aiPadded = DecoClient.getPaddedSize(options, iWidth, iHeight, iDepth);
+            iWidth = aiPadded[0];
+            iHeight = aiPadded[1];
+            iDepth = aiPadded[2];
+            // each EM snapshot is one more float stack
+            lBytes += 4L * iWidth * iHeight * iDepth
+                    * DecoClient.getSnapshotIterations(options).length;
+            long lStackBytes = 4L * 2 * (iWidth / 2 + 1) * iHeight * iDepth;
+            // the initial guess stays alive next to the copy EM makes of it
+            if (keepsGuessStack(options))
+                lBytes += lStackBytes;
+            // the result of the coarse levels is kept as the first guess
+            if (options.aaiCoarseLevels.length > 0)
+                lBytes += lStackBytes;
+        }
+        return lBytes;
+    }
+    
+    /** Returns the largest estimateJobMemory of the OTFs in apOTF, for
+     *	stacks whose wavelengths have different PSFs */
+    static long estimateJobMemory(DecoOptions options, Pointer[] apOTF, int iWidth, int iHeight, int iDepth) {
+        if (apOTF == null || apOTF.length == 0)
+            return estimateJobMemory(options, (Pointer)null, iWidth, iHeight, iDepth);
+        long lMax = 0;
+        for (int i=0; i<apOTF.length; i++) {
+            lMax = Math.max(lMax, estimateJobMemory(options, apOTF[i], iWidth, iHeight, iDepth));
+        }
+        return lMax;
+    }
+    
+    /** Returns the native memory needed to deconvolve one stack of a file,
+     *	or -1 if the image size is not known yet. */
+    static long estimateMemory(SourceFileInfo sfi) {
+        if (!sfi.readImageSize())
+            return -1;
+        int[] aiPadded = DecoClient.getPaddedSize(sfi.options, sfi.iWidth, sfi.iHeight, sfi.options.iNumPlanes);
+        return estimateMemory(sfi.options.iMethod, null, aiPadded[0], aiPadded[1], aiPadded[2]);
+    }
+    
+    /** Wait until lBytes more fit in the memory budget and reserve them.
+     *	A job is always admitted when no other job is running. */
+    synchronized void admit(long lBytes) throws InterruptedException {
+        while (lMemoryInUse > 0 && lMemoryInUse + lBytes > lMemoryBudget) {
+            wait();
+        }
+        lMemoryInUse += lBytes;
+    }
+    
+    /** Return memory reserved with admit */
+    synchronized void release(long lBytes) {
+        lMemoryInUse -= lBytes;
+        notifyAll();
+    }
+    
+    /** Runs a DecoClient once its memory footprint fits in the budget */
+    class AdmittedJob implements Runnable {
+        DecoClient client;
+        long lBytes;
+        
+        AdmittedJob(DecoClient client) {
+            this.client = client;
+            SourceFileInfo sfi = client.sfiIn;
+            lBytes = estimateJobMemory(client.options, client.pOTF, sfi.iWidth, sfi.iHeight, sfi.iDepth);
+        }
+        
+        public void run() {
+            try {
+                admit(lBytes);
+            } catch (InterruptedException e) {
+                client.success = false;
+                return;
+            }
+            try {
+                client.run();
+            } finally {
+                release(lBytes);
+            }
+        }
+    }
+    
+    /** Runs a list of DecoClients one after the other, so each one can
+     *	start from the result of the one before. Stops at the first failure. */
+    class ChainJob implements Runnable {
+        List vClients;
+        
+        ChainJob(List vClients) {
+            this.vClients = vClients;
+        }
+        
+        public void run() {
+            for (int i=0; i<vClients.size(); i++) {
+                DecoClient client = (DecoClient)vClients.get(i);
+                new AdmittedJob(client).run();
+                if (!client.success)
+                    return;
+            }
+        }
+    }
+    
+    /** Run a list of DecoClients, at most getNumJobs() at a time, and wait
+     *	for all of them to finish. Returns true if all of them succeeded. */
+    public boolean runAll(List vClients) {
+        List vChains = new ArrayList();
+        for (int i=0; i<vClients.size(); i++) {
+            List vChain = new ArrayList();
+            vChain.add(vClients.get(i));
+            vChains.add(vChain);
+        }
+        return runChains(vChains);
+    }
+    
+    /** Run a list of chains, each a List of DecoClients that must run in
+     *	order. The chains run at the same time, at most getNumJobs() at a
+     *	time. Returns true if all clients succeeded. */
+    public boolean runChains(List vChains) {
+        List vFutures = new ArrayList();
+        int i, j, len=vChains.size();
+        for (i=0; i<len; i++) {
+            List vChain = (List)vChains.get(i);
+            for (j=0; j<vChain.size(); j++) {
+                ((DecoClient)vChain.get(j)).success = false;
+            }
+            vFutures.add(pool.submit(new ChainJob(vChain)));
+        }
+        boolean bSuccess = true;
+        for (i=0; i<len; i++) {
+            try {
+                ((Future)vFutures.get(i)).get();
+            } catch (InterruptedException e) {
+                bSuccess = false;
+            } catch (ExecutionException e) {
+                IJ.write("Deconvolution failed: "+e.getCause());
+                bSuccess = false;
+            }
+            List vChain = (List)vChains.get(i);
+            for (j=0; j<vChain.size(); j++) {
+                if (!((DecoClient)vChain.get(j)).success)
+                    bSuccess = false;
+            }
+        }
+        return bSuccess;
+    }
+    
+    /** Stop the worker threads once all submitted jobs are done */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,219 @@
+//   Copyright 2013 Jeffrey R. Kuhn
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package kuhnlab.decoj.client;
+
+
+import ij.*;
+import ij.process.*;
+import com.sun.jna.Pointer;
+
+/** Splits a stack that does not fit in the memory budget into tiles of
+ *  equal size, so that all tiles share one OTF. Neighbouring tiles overlap
+ *  by at least the half-width of the PSF, and each tile is deconvolved on
+ *  its own. The results are blended back with weights that fall smoothly
+ *  to zero across each overlap, where a tile sees the edge artifacts of
+ *  its own borders. The weights of all tiles add up to 1 at every voxel.
+ *  EM spreads the edge artifacts further with each iteration, so by
+ *  default the tiles overlap by the whole size of the PSF. */
+public class DecoTiles {
+    // stacks of less than this many planes are never split along Z
+    static final int MIN_TILED_DEPTH = 8;
+
+    int iWidth, iHeight, iDepth;				// size of the whole stack
+    int iTileWidth, iTileHeight, iTileDepth;	// size of every tile
+    int[] aiX, aiY, aiZ;						// first voxel of the tiles along each axis
+    float[][] aafWeightX, aafWeightY, aafWeightZ;	// blending weight of each tile along each axis
+
+    DecoTiles(int iWidth, int iHeight, int iDepth,
+            int iTileWidth, int iTileHeight, int iTileDepth,
+            int iOverlapX, int iOverlapY, int iOverlapZ) {
+        this.iWidth = iWidth;
+        this.iHeight = iHeight;
+        this.iDepth = iDepth;
+        this.iTileWidth = iTileWidth;
+        this.iTileHeight = iTileHeight;
+        this.iTileDepth = iTileDepth;
+        aiX = getStarts(iWidth, iTileWidth, iOverlapX);
+        aiY = getStarts(iHeight, iTileHeight, iOverlapY);
+        aiZ = getStarts(iDepth, iTileDepth, iOverlapZ);
+        aafWeightX = getWeights(iWidth, iTileWidth, aiX);
+        aafWeightY = getWeights(iHeight, iTileHeight, aiY);
+        aafWeightZ = getWeights(iDepth, iTileDepth, aiZ);
+    }
+
+    /** Choose the largest tiles of a W x H x D stack for which one job with
+     *	OTFs like apOTF fits in lBudget bytes. The tiles overlap by
+     *	options.iTileOverlap pixels, or by the size of the PSF if it is 0, and
+     *	are never smaller than the PSF. Returns null if even the smallest
+     *	tiles do not fit. */
+    static DecoTiles create(DecoOptions options, Pointer[] apOTF, int iWidth, int iHeight, int iDepth,
+            int iPsfWidth, int iPsfHeight, int iPsfDepth, long lBudget) {
+        int iOverlapX = options.iTileOverlap > 0 ? options.iTileOverlap : iPsfWidth;
+        int iOverlapY = options.iTileOverlap > 0 ? options.iTileOverlap : iPsfHeight;
+        int iOverlapZ = options.iTileOverlap > 0 ? options.iTileOverlap : iPsfDepth;
+        boolean bTileZ = options.iTiles == DecoOptions.TILES_XYZ && iDepth >= MIN_TILED_DEPTH;
+
+        // smaller tiles would be mostly overlap, so that each voxel would be
+        // deconvolved more than twice along each axis
+        int iMinWidth = Math.min(iWidth, Math.max(iPsfWidth, 2 * iOverlapX));
+        int iMinHeight = Math.min(iHeight, Math.max(iPsfHeight, 2 * iOverlapY));
+        int iMinDepth = bTileZ ? Math.min(iDepth, Math.max(iPsfDepth, 2 * iOverlapZ)) : iDepth;
+
+        // add tiles along the axis with the largest tiles until one fits
+        int nX = 1, nY = 1, nZ = 1;
+        while (true) {
+            int iTileWidth = getTileSize(iWidth, nX, iOverlapX, iMinWidth);
+            int iTileHeight = getTileSize(iHeight, nY, iOverlapY, iMinHeight);
+            int iTileDepth = getTileSize(iDepth, nZ, iOverlapZ, iMinDepth);
+            if (DecoScheduler.estimateJobMemory(options, apOTF, iTileWidth, iTileHeight, iTileDepth) <= lBudget) {
+                return new DecoTiles(iWidth, iHeight, iDepth, iTileWidth, iTileHeight, iTileDepth,
+                        iOverlapX, iOverlapY, iOverlapZ);
+            }
+            boolean bSplitX = iTileWidth > iMinWidth;
+            boolean bSplitY = iTileHeight > iMinHeight;
+            boolean bSplitZ = iTileDepth > iMinDepth;
+            if (bSplitX && (!bSplitY || iTileWidth >= iTileHeight) && (!bSplitZ || iTileWidth >= iTileDepth)) {
+                nX++;
+            } else if (bSplitY && (!bSplitZ || iTileHeight >= iTileDepth)) {
+                nY++;
+            } else if (bSplitZ) {
+                nZ++;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /** Returns the size of n tiles that cover iSize pixels with the given
+     *	overlap */
+    static int getTileSize(int iSize, int n, int iOverlap, int iMinSize) {
+        int iTileSize = (iSize + (n - 1) * iOverlap + n - 1) / n;
+        return Math.min(iSize, Math.max(iMinSize, iTileSize));
+    }
+
+    /** Returns the first pixel of each tile along one axis. The tiles are
+     *	spread evenly, so that each one overlaps the next by at least iOverlap
+     *	pixels and the last one ends at the edge of the stack. */
+    static int[] getStarts(int iSize, int iTileSize, int iOverlap) {
+        if (iTileSize >= iSize) {
+            return new int[] {0};
+        }
+        int iStep = Math.max(1, iTileSize - iOverlap);
+        int n = (iSize - iTileSize + iStep - 1) / iStep + 1;
+        int[] aiStarts = new int[n];
+        for (int i=0; i<n; i++) {
+            aiStarts[i] = (int)((long)i * (iSize - iTileSize) / (n - 1));
+        }
+        return aiStarts;
+    }
+
+    /** Returns the blending weights of each tile along one axis. The weight
+     *	rises as sin^2 across the overlap with the tile before and falls as
+     *	cos^2 across the overlap with the tile after, and is normalized so
+     *	that the weights at each pixel add up to 1. */
+    static float[][] getWeights(int iSize, int iTileSize, int[] aiStarts) {
+        int i, p, n = aiStarts.length;
+        double[][] aadWeight = new double[n][iTileSize];
+        double[] adTotal = new double[iSize];
+        for (i=0; i<n; i++) {
+            int iBefore = i > 0 ? aiStarts[i-1] + iTileSize - aiStarts[i] : 0;
+            int iAfter = i < n-1 ? aiStarts[i] + iTileSize - aiStarts[i+1] : 0;
+            for (p=0; p<iTileSize; p++) {
+                double dWeight = 1;
+                if (p < iBefore) {
+                    double dSin = Math.sin(0.5 * Math.PI * (p + 0.5) / iBefore);
+                    dWeight *= dSin * dSin;
+                }
+                if (iTileSize - 1 - p < iAfter) {
+                    double dSin = Math.sin(0.5 * Math.PI * (iTileSize - p - 0.5) / iAfter);
+                    dWeight *= dSin * dSin;
+                }
+                aadWeight[i][p] = dWeight;
+                adTotal[aiStarts[i] + p] += dWeight;
+            }
+        }
+        float[][] aafWeight = new float[n][iTileSize];
+        for (i=0; i<n; i++) {
+            for (p=0; p<iTileSize; p++) {
+                aafWeight[i][p] = (float)(aadWeight[i][p] / adTotal[aiStarts[i] + p]);
+            }
+        }
+        return aafWeight;
+    }
+
+    public int getNumTiles() {
+        return aiX.length * aiY.length * aiZ.length;
+    }
+
+    /** Position of tile iTile along each axis. X varies fastest. */
+    int tileX(int iTile) {
+        return iTile % aiX.length;
+    }
+
+    int tileY(int iTile) {
+        return (iTile / aiX.length) % aiY.length;
+    }
+
+    int tileZ(int iTile) {
+        return iTile / (aiX.length * aiY.length);
+    }
+
+    /** Returns a copy of tile iTile of a stack of any type */
+    ImageStack crop(ImageStack stack, int iTile) {
+        int x = aiX[tileX(iTile)], y = aiY[tileY(iTile)], z0 = aiZ[tileZ(iTile)];
+        ImageStack stkTile = new ImageStack(iTileWidth, iTileHeight);
+        for (int z=z0; z<z0+iTileDepth; z++) {
+            ImageProcessor ip = stack.getProcessor(z+1);
+            ip.setRoi(x, y, iTileWidth, iTileHeight);
+            stkTile.addSlice("", ip.crop());
+        }
+        return stkTile;
+    }
+
+    /** Returns a new 32-bit stack of the size of the whole stack for blend */
+    ImageStack createBlendStack() {
+        ImageStack stack = new ImageStack(iWidth, iHeight);
+        for (int z=0; z<iDepth; z++) {
+            stack.addSlice("", new FloatProcessor(iWidth, iHeight));
+        }
+        return stack;
+    }
+
+    /** Add the 32-bit result of tile iTile with its blending weights to a
+     *	stack created with createBlendStack */
+    void blend(ImageStack stkDest, ImageStack stkTile, int iTile) {
+        int iX = tileX(iTile), iY = tileY(iTile), iZ = tileZ(iTile);
+        float[] afWeightX = aafWeightX[iX];
+        float[] afWeightY = aafWeightY[iY];
+        float[] afWeightZ = aafWeightZ[iZ];
+        int x, y, z;
+        for (z=0; z<iTileDepth; z++) {
+            float[] afDest = (float[]) stkDest.getPixels(aiZ[iZ] + z + 1);
+            float[] afSrc = (float[]) stkTile.getPixels(z + 1);
+            for (y=0; y<iTileHeight; y++) {
+                float fWeightYZ = afWeightZ[z] * afWeightY[y];
+                int iDest = (aiY[iY] + y) * iWidth + aiX[iX];
+                int iSrc = y * iTileWidth;
+                for (x=0; x<iTileWidth; x++) {
+                    afDest[iDest + x] += fWeightYZ * afWeightX[x] * afSrc[iSrc + x];
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return getNumTiles() +" tiles of "+ iTileWidth +"x"+ iTileHeight +"x"+ iTileDepth;
+    }
+}
@@ -22,6 +22,10 @@ import java.lang.*;
 import java.util.List;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 
 public class Deconvolve_Batch implements PlugIn {
     
@@ -55,14 +59,59 @@ public class Deconvolve_Batch implements PlugIn {
         if (blcdlg.wasCanceled())
             return;
         
-        Deconvolver deco = new Deconvolver();
+        // all files share one core budget and memory budget, taken from the
+        // options of the first file. Up to getNumJobs() files are prepared
+        // at once so that their stacks can run concurrently.
+        DecoOptions options = ((SourceFileInfo)vFileInfo.get(0)).options;
+        final DecoScheduler scheduler = new DecoScheduler(options);
         int i, len=vFileInfo.size();
-        for (i=0; i<len; i++) {
+        for (i=1; i<len; i++) {
             SourceFileInfo sfi = (SourceFileInfo)vFileInfo.get(i);
-            IJ.write("Deconvolving "+sfi.strPath+"   "+sfi.strFilename);
-            deco.deconvolve(sfi, true);
+            if (!sameScheduling(options, sfi.options)) {
+                IJ.write("The cores, concurrent jobs and memory budget of "+sfi.strPath
+                        +" differ from those of the first directory, which are used for all files");
+                break;
+            }
+        }
+        ExecutorService filePool = Executors.newFixedThreadPool(scheduler.getNumJobs());
+        List vFutures = new ArrayList();
+        for (i=0; i<len; i++) {
+            final SourceFileInfo sfi = (SourceFileInfo)vFileInfo.get(i);
+            vFutures.add(filePool.submit(new Runnable() {
+                public void run() {
+                    Deconvolver deco = new Deconvolver(scheduler);
+                    IJ.write("Deconvolving "+sfi.strPath+"   "+sfi.strFilename);
+                    try {
+                        if (!deco.deconvolve(sfi, true)) {
+                            IJ.write("Deconvolution of "+sfi.strPath+"   "+sfi.strFilename+" failed");
+                        }
+                    } finally {
+                        deco.deleteTempFiles();
+                    }
+                }
+            }));
         }
-        deco.deleteTempFiles();
+        for (i=0; i<len; i++) {
+            try {
+                ((Future)vFutures.get(i)).get();
+            } catch (InterruptedException e) {
+                IJ.write("Batch deconvolution was interrupted");
+                break;
+            } catch (ExecutionException e) {
+                SourceFileInfo sfi = (SourceFileInfo)vFileInfo.get(i);
+                IJ.write("Deconvolution of "+sfi.strPath+"   "+sfi.strFilename+" failed: "+e.getCause());
+            }
+        }
+        filePool.shutdown();
+        scheduler.shutdown();
+    }
+    
+    /** Returns true if two options files split the cores and the memory
+     *	budget between jobs in the same way */
+    static boolean sameScheduling(DecoOptions options1, DecoOptions options2) {
+        return options1.iNumCores == options2.iNumCores
+                && options1.iConcurrentJobs == options2.iConcurrentJobs
+                && options1.iMemoryBudgetMB == options2.iMemoryBudgetMB;
     }
     
     public void buildFileList(String strRootDir, List vFileInfo) {
@@ -53,6 +53,15 @@ public class Deconvolve_Stack implements PlugInFilter {
                 = new BatchListCheckDlg(IJ.getInstance(), vFileInfo);
         blcdlg.show();
         
+        if (blcdlg.wasCanceled())
+            return;
+        
+        // deconvolve the open window directly from memory
+        Deconvolver deco = new Deconvolver();
+        SourceFileInfo sfi = (SourceFileInfo)vFileInfo.get(0);
+        IJ.write("Deconvolving "+sfi.strFilename);
+        deco.deconvolve(sfi, true);
+        deco.deleteTempFiles();
     }
     
 }
\ No newline at end of file
@@ -19,10 +19,13 @@ import ij.*;
 import ij.io.*;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
+import ij.measure.Calibration;
+import com.sun.jna.Pointer;
 import java.io.*;
 import java.lang.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /* NOTE: the command-line executable decop.exe usually requires a LOT of
  * memory. Unfortunately, this is a Cygwin program (see www.cygwin.com)
@@ -43,6 +46,7 @@ public class Deconvolver /*implements Runnable*/ {
     static final String OUTDIR = "out";
     static final String OUTSUFFIX = "_out";
     static final String OUTEXTENSION = ".tif";
+    static final String CHECKPOINTEXTENSION = ".emc";
     
     // index of return values from splitPath
     static final int PATH=0;
@@ -53,6 +57,25 @@ public class Deconvolver /*implements Runnable*/ {
     public List vPsfFileInfos = null;
     public List vSplitFileInfos = null;
     
+    // runs the stacks of one file concurrently. May be shared by several
+    // Deconvolvers so that their stacks share one core budget.
+    DecoScheduler scheduler = null;
+    
+    // start of the checkpoint file names of the stacks of the current file,
+    // or null if EM does not save checkpoints
+    String strCheckpointBase = null;
+    
+    // tiles the stacks of the current file are split into, or null if each
+    // stack is deconvolved in one piece
+    DecoTiles tiles = null;
+    
+    public Deconvolver() {
+    }
+    
+    public Deconvolver(DecoScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+    
     //==========================================================================
     // Main interface
     //==========================================================================
@@ -66,7 +89,7 @@ public class Deconvolver /*implements Runnable*/ {
             }
             vPsfFileInfos = new ArrayList();
             //
-            // Save the PSF file in RAW format
+            // Save the PSF file in RAW format or keep it in memory
             //
             int i, nPsf=sfi.options.iNumWL;
             for (i=0; i<nPsf; i++) {
@@ -81,11 +104,15 @@ public class Deconvolver /*implements Runnable*/ {
                 optPsf.iNumWL = 1;
                 optPsf.iNumPlanes = impPsf.getStackSize();
                 
-                // Save the RAW psf file
-                List vNewPsfFileInfos = saveRawStacks(impPsf, "psf"+(i+1), optPsf);
-                if (vNewPsfFileInfos.size() != 1) {
-                    deleteFiles(vNewPsfFileInfos);
-                    IJ.write("Error writing "+strPsfFile+" to temp directory");
+                // Split off the PSF stack
+                List vNewPsfFileInfos = sfi.options.bUseTempFiles
+                        ? saveRawStacks(impPsf, "psf"+(i+1), optPsf)
+                        : splitStacks(impPsf, "psf"+(i+1), optPsf);
+                if (vNewPsfFileInfos == null || vNewPsfFileInfos.size() != 1) {
+                    if (vNewPsfFileInfos != null) {
+                        deleteFiles(vNewPsfFileInfos);
+                    }
+                    IJ.write("Error reading PSF stack from "+strPsfFile);
                     return false;
                 }
                 
@@ -100,7 +127,15 @@ public class Deconvolver /*implements Runnable*/ {
         //
         boolean bCloseWhenDone = false;
         boolean bSaveResult = false;
+        boolean bCheckpoints = sfi.options.usesCheckpoints() && DecoClient.isIterative(sfi.options.iMethod);
         if (sfi.getImagePlus() == null) {
+            // a batch that is run again skips the files it has finished if
+            // asked to. Otherwise they are deconvolved again, and only the
+            // stacks that left a checkpoint resume from it.
+            if (sfi.options.bSkipFinished && (new File(getOutputFile(sfi, getOutputName(sfi)))).exists()) {
+                IJ.write("Skipping "+sfi.strFilename+", it was already deconvolved");
+                return true;
+            }
             // open the file
             sfi.setImagePlus((new Opener()).openImage(sfi.strPath, sfi.strFilename));
             if (sfi.getImagePlus() == null) {
@@ -111,13 +146,50 @@ public class Deconvolver /*implements Runnable*/ {
             bSaveResult = true;
         }
         
+        // refuse stacks that could never fit in the memory budget
+        long lBudget = scheduler != null
+                ? scheduler.getMemoryBudget()
+                : DecoScheduler.getMemoryBudget(sfi.options);
+        Pointer[] apOTF = createOTFTemplates(sfi.options, vPsfFileInfos);
+        long lNeeded = DecoScheduler.estimateResidentMemory(sfi.options, apOTF, sfi.getImagePlus().getWidth(),
+                sfi.getImagePlus().getHeight(), sfi.options.iNumPlanes);
+        destroyOTFs(apOTF);
+        if (lNeeded > lBudget && sfi.options.iTiles == DecoOptions.TILES_OFF) {
+            IJ.write(sfi.strFilename+" needs "+(lNeeded/DecoScheduler.MB)
+                    +" MB per stack, more than the memory budget of "
+                    +(lBudget/DecoScheduler.MB)+" MB. Use tiles to deconvolve it in pieces.");
+            if (bCloseWhenDone) {
+                sfi.imp = null;
+            }
+            return false;
+        }
+        
+        // EM saves its state next to the output, or in the temp directory
+        // for an open window
+        strCheckpointBase = null;
+        if (bCheckpoints) {
+            String strDir = bSaveResult
+                    ? splitPath(sfi.strPath + SEP + sfi.strFilename)[PATH] + OUTDIR + SEP
+                    : System.getProperty("java.io.tmpdir") + SEP;
+            (new File(strDir)).mkdirs();
+            strCheckpointBase = strDir + getOutputName(sfi);
+        }
+        
         // keep a copy of the FileInfo for later storage
         FileInfo fi = sfi.getImagePlus().getFileInfo();
         
         //
-        // Save the multidimensional stack to a series of RAW files
+        // Split the multidimensional stack into one stack per timepoint and
+        // wavelength, either in memory or as a series of RAW files
         //
-        vSplitFileInfos = saveRawStacks(sfi.getImagePlus(), sfi.strFilename, sfi.options);
+        if (sfi.options.bUseTempFiles) {
+            vSplitFileInfos = saveRawStacks(sfi.getImagePlus(), sfi.strFilename, sfi.options);
+        } else {
+            vSplitFileInfos = splitStacks(sfi.getImagePlus(), sfi.strFilename, sfi.options);
+        }
+        if (vSplitFileInfos == null) {
+            return false;
+        }
         if (bCloseWhenDone) {
             sfi.imp = null;
             System.gc();
@@ -132,32 +204,127 @@ public class Deconvolver /*implements Runnable*/ {
         // combine the raw output files into one stack and save if necessary
         //
         if (vOutFileInfos != null) {
-            ImagePlus impOutStack = combineFiles(vOutFileInfos, fi);
-            if (bSaveResult && impOutStack != null) {
-                String[] astrSplit = splitPath(sfi.strPath + SEP + sfi.strFilename);
-                String strOutDir = astrSplit[PATH] + OUTDIR + SEP;
-                // create the directory
-                (new File(strOutDir)).mkdirs();
-                String strOutFile = strOutDir + astrSplit[NAME] + OUTSUFFIX + OUTEXTENSION;
-                if (!(new FileSaver(impOutStack)).saveAsTiffStack(strOutFile)) {
-                    IJ.write("Unable to save output file to "+strOutFile);
-                    return false;
-                }
-                impOutStack = null;
-            } else if (impOutStack != null) {
-                impOutStack.show();
+            String strName = getOutputName(sfi);
+            boolean bOK = saveOutput(combineFiles(vOutFileInfos, fi), strName, sfi, bSaveResult);
+            
+            // the EM snapshots are saved or shown like the final result
+            int[] aiSnapshots = getSnapshotIterations(vOutFileInfos);
+            for (int i=0; bOK && i<aiSnapshots.length; i++) {
+                List vSnapshotInfos = getSnapshots(vOutFileInfos, i);
+                bOK = saveOutput(combineFiles(vSnapshotInfos, fi), strName + "_it" + aiSnapshots[i],
+                        sfi, bSaveResult);
             }
             deleteFiles(vOutFileInfos);
             vOutFileInfos = null;
+            if (!bOK) {
+                return false;
+            }
+            deleteCheckpoints(vSplitFileInfos);
         }
         
         deleteFiles(vSplitFileInfos);
         vSplitFileInfos = null;
+        DecoClient.saveWisdom();
         System.gc();
         return true;
     }
     
     
+    /** Returns the name of the output stack of a source file */
+    static String getOutputName(SourceFileInfo sfi) {
+        return splitPath(sfi.strFilename)[NAME] + OUTSUFFIX;
+    }
+    
+    /** Returns the file an output stack is saved to in the OUTDIR folder
+     *	next to the source file */
+    static String getOutputFile(SourceFileInfo sfi, String strName) {
+        String[] astrSplit = splitPath(sfi.strPath + SEP + sfi.strFilename);
+        return astrSplit[PATH] + OUTDIR + SEP + strName + OUTEXTENSION;
+    }
+    
+    /** Returns the checkpoint file of one stack of the current file, or
+     *	null if EM does not save checkpoints */
+    String getCheckpointFile(SourceFileInfo sfiStack) {
+        return getCheckpointFile(sfiStack, -1);
+    }
+    
+    /** Returns the checkpoint file of one tile of a stack, or of the whole
+     *	stack if iTile < 0 */
+    String getCheckpointFile(SourceFileInfo sfiStack, int iTile) {
+        if (strCheckpointBase == null) {
+            return null;
+        }
+        String strTile = iTile < 0 ? "" : "_tile" + (iTile+1);
+        return strCheckpointBase + "_t" + sfiStack.iTime + "w" + sfiStack.iWavelength + strTile + CHECKPOINTEXTENSION;
+    }
+    
+    /** Delete the checkpoints of the stacks of the current file once its
+     *	output is saved */
+    void deleteCheckpoints(List vStackInfos) {
+        int i, len=vStackInfos.size();
+        // a stack that is not tiled has one checkpoint, tile -1
+        int iTile, iFirstTile = tiles == null ? -1 : 0;
+        int nTiles = tiles == null ? 0 : tiles.getNumTiles();
+        for (i=0; i<len; i++) {
+            SourceFileInfo sfiStack = (SourceFileInfo)vStackInfos.get(i);
+            for (iTile=iFirstTile; iTile<nTiles; iTile++) {
+                String strFile = getCheckpointFile(sfiStack, iTile);
+                if (strFile != null) {
+                    (new File(strFile)).delete();
+                }
+            }
+        }
+    }
+    
+    /** Save a combined output stack in the OUTDIR folder next to the source
+     *	file, or show it if the source was an open window. */
+    boolean saveOutput(ImagePlus impOutStack, String strName, SourceFileInfo sfi, boolean bSaveResult) {
+        if (impOutStack == null) {
+            return true;
+        }
+        impOutStack.setTitle(strName);
+        if (bSaveResult) {
+            String strOutFile = getOutputFile(sfi, strName);
+            // create the directory
+            (new File(strOutFile)).getParentFile().mkdirs();
+            if (!(new FileSaver(impOutStack)).saveAsTiffStack(strOutFile)) {
+                IJ.write("Unable to save output file to "+strOutFile);
+                return false;
+            }
+        } else {
+            impOutStack.show();
+        }
+        return true;
+    }
+    
+    /** Returns the iterations of the snapshots that every output stack has */
+    static int[] getSnapshotIterations(List vOutFileInfos) {
+        int i, len=vOutFileInfos.size();
+        int nSnapshots = len > 0 ? Integer.MAX_VALUE : 0;
+        for (i=0; i<len; i++) {
+            SourceFileInfo sfiOut = (SourceFileInfo)vOutFileInfos.get(i);
+            int n = sfiOut.asfiSnapshots == null ? 0 : sfiOut.asfiSnapshots.length;
+            nSnapshots = Math.min(nSnapshots, n);
+        }
+        int[] aiIterations = new int[nSnapshots];
+        if (nSnapshots > 0) {
+            SourceFileInfo sfiOut = (SourceFileInfo)vOutFileInfos.get(0);
+            System.arraycopy(sfiOut.options.aiSnapshotIterations, 0, aiIterations, 0, nSnapshots);
+        }
+        return aiIterations;
+    }
+    
+    /** Returns snapshot iSnapshot of every output stack */
+    static List getSnapshots(List vOutFileInfos, int iSnapshot) {
+        List vSnapshotInfos = new ArrayList();
+        int i, len=vOutFileInfos.size();
+        for (i=0; i<len; i++) {
+            SourceFileInfo sfiOut = (SourceFileInfo)vOutFileInfos.get(i);
+            vSnapshotInfos.add(sfiOut.asfiSnapshots[iSnapshot]);
+        }
+        return vSnapshotInfos;
+    }
+    
     /** Called to delete temporary files when done. */
     public void deleteTempFiles() {
         if (vPsfFileInfos != null) {
@@ -170,13 +337,21 @@ public class Deconvolver /*implements Runnable*/ {
     // File utilities
     //==========================================================================
     
-    /** Delete a list of files */
+    /** Delete a list of files. Stacks held in memory are released. */
     public void deleteFiles(List vFileInfos) {
         int i, len=vFileInfos.size();
         if (len==0) return;
         for (i=0; i<len; i++) {
-            String strName = ((SourceFileInfo)vFileInfos.get(i)).strPath;
-            (new File(strName)).delete();
+            SourceFileInfo sfi = (SourceFileInfo)vFileInfos.get(i);
+            if (sfi.asfiSnapshots != null) {
+                deleteFiles(Arrays.asList(sfi.asfiSnapshots));
+                sfi.asfiSnapshots = null;
+            }
+            if (sfi.isInMemory()) {
+                sfi.setStack(null);
+                continue;
+            }
+            (new File(sfi.strPath)).delete();
         }
     }
     
@@ -269,6 +444,48 @@ public class Deconvolver /*implements Runnable*/ {
         return vTempFileInfos;
     }
     
+    /** Split a multidimensional stack into one stack for each timepoint &
+     *	wavelength without copying any pixel data. Returns the list of
+     *	in-memory stacks. */
+    public List splitStacks(ImagePlus imp, String strName, DecoOptions opt) {
+        int iStackSize = imp.getStackSize();
+        int iNumPlanes = opt.iNumPlanes;
+        int iNumWL = opt.iNumWL;
+        int iNumT = iStackSize / iNumWL / iNumPlanes;
+        int iNumStacks = iNumWL * iNumT;
+        if (iStackSize != iNumPlanes * iNumWL * iNumT) {
+            IJ.write("WARNING: Timelapse stack is truncated");
+        }
+        int t, w, p;
+        String[] astrSplit = splitPath(strName);
+        List vStackInfos = new ArrayList();
+        
+        int iStack = 0;
+        for (t=0; t<iNumT; t++) {
+            for (w=0; w<iNumWL; w++) {
+                p = (t*iNumWL + w)*iNumPlanes;
+                ImagePlus impSub = getSubStack(imp, p, p+iNumPlanes-1);
+                if (impSub == null) {
+                    IJ.write("Could not get sub-stack from "+p+" to "+(p+iNumPlanes-1));
+                    return null;
+                }
+                
+                // set the information for this particular stack
+                SourceFileInfo sfiNew = new SourceFileInfo(impSub, opt);
+                sfiNew.iTime = t;
+                sfiNew.iWavelength = w;
+                sfiNew.strPath = astrSplit[NAME] + "_t"+t+"w"+w;
+                sfiNew.strFilename = astrSplit[NAME] + "(" + (iStack+1) + "/" + iNumStacks + ")";
+                sfiNew.setStack(impSub.getStack());
+                sfiNew.imp = null;
+                vStackInfos.add(sfiNew);
+                iStack++;
+            }
+        }
+        
+        return vStackInfos;
+    }
+    
     /** Combine a number of raw (32-bit float) input files into one
      *	multidimensional stack. */
     public ImagePlus combineFiles(List vOutFileInfos, FileInfo fiSrc) {
@@ -278,7 +495,12 @@ public class Deconvolver /*implements Runnable*/ {
         for (i=0; i<len; i++) {
             SourceFileInfo sfiOutFile = (SourceFileInfo)vOutFileInfos.get(i);
             String strOutFile = sfiOutFile.strPath;
-            impNew = readRawFloatStack(strOutFile, fiSrc, sfiOutFile.iDepth);
+            if (sfiOutFile.isInMemory()) {
+                impNew = new ImagePlus(strOutFile, sfiOutFile.getStack());
+                impNew.setCalibration(getCalibration(fiSrc));
+            } else {
+                impNew = readRawFloatStack(strOutFile, fiSrc, sfiOutFile.iDepth);
+            }
             if (impNew == null) {
                 IJ.write("Could not read output file "+strOutFile);
                 return impCombined;
@@ -298,6 +520,18 @@ public class Deconvolver /*implements Runnable*/ {
         return impCombined;
     }
     
+    /** Create the calibration of an output stack from the FileInfo of
+     *	the source stack. */
+    static public Calibration getCalibration(FileInfo fiSrc) {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = fiSrc.pixelWidth;
+        cal.pixelHeight = fiSrc.pixelHeight;
+        cal.pixelDepth = fiSrc.pixelDepth;
+        cal.setUnit(fiSrc.unit);
+        cal.frameInterval = fiSrc.frameInterval;
+        return cal;
+    }
+    
     /** Read a single float stack as a raw image. */
     public ImagePlus readRawFloatStack(String strFile, FileInfo fiSrc, int iNumPlanes) {
         String[] astrSplit = splitPath(strFile);
@@ -352,39 +586,384 @@ public class Deconvolver /*implements Runnable*/ {
     // Deconvolution processing
     //==========================================================================
     
-    /** Deconvolve a list of files from one multidimensional stack */
+    /** Deconvolve a list of files from one multidimensional stack. The OTF
+     *  of each wavelength is calculated once and shared by all timepoints.
+     *  The timepoints and wavelengths are deconvolved concurrently. Stacks
+     *  that do not fit in the memory budget are split into tiles if the
+     *  options allow it. */
     public List deconvolveFileList(List vSplitFileInfos, List vPsfFileInfos) {
         List vOutFileInfos = new ArrayList();
-        int i, len=vSplitFileInfos.size();
-        for (i=0; i<len; i++) {
-            SourceFileInfo sfiIn = (SourceFileInfo)vSplitFileInfos.get(i);
-            String[] astrSplit = splitPath(sfiIn.strPath);
-            String strOutFile = "";
+        List vClients = new ArrayList();
+        Pointer[] apOTF = new Pointer[vPsfFileInfos.size()];
+        // with GUESS_PREVIOUS, the timepoints of each wavelength form one
+        // chain, each starting from the result of the one before
+        List[] avChains = new List[vPsfFileInfos.size()];
+        SourceFileInfo[] asfiPrevious = new SourceFileInfo[vPsfFileInfos.size()];
+        DecoScheduler sched = scheduler;
+        tiles = null;
+        try {
+            int i, len=vSplitFileInfos.size();
+            if (sched == null && len > 0) {
+                sched = new DecoScheduler(((SourceFileInfo)vSplitFileInfos.get(0)).options);
+            }
+            if (len > 0 && !chooseTiles((SourceFileInfo)vSplitFileInfos.get(0), vPsfFileInfos, sched)) {
+                return null;
+            }
+            for (i=0; i<len; i++) {
+                SourceFileInfo sfiIn = (SourceFileInfo)vSplitFileInfos.get(i);
+                SourceFileInfo sfiOut = createOutputInfo(sfiIn);
+                if (sfiOut == null) {
+                    deleteFiles(vOutFileInfos);
+                    return null;
+                }
+
+                SourceFileInfo sfiPsf = (SourceFileInfo)vPsfFileInfos.get(sfiIn.iWavelength);
+                if (sfiPsf == null) {
+                    IJ.write("No PSF file for wavelength " + sfiIn.iWavelength);
+                    return null;
+                }
+
+                Pointer pOTF = apOTF[sfiIn.iWavelength];
+                if (pOTF == null) {
+                    pOTF = DecoClient.createOTF(sfiPsf, tiles == null ? sfiIn : createTileInfo(sfiIn, null, 0));
+                    if (pOTF == null) {
+                        deleteFiles(vOutFileInfos);
+                        return null;
+                    }
+                    apOTF[sfiIn.iWavelength] = pOTF;
+                }
+                vOutFileInfos.add(sfiOut);
+                
+                boolean bChain = sfiIn.options.iInitialGuess == DecoOptions.GUESS_PREVIOUS
+                        && DecoClient.isIterative(sfiIn.options.iMethod);
+                if (tiles != null) {
+                    // the tiles of one stack run at the same time, the
+                    // stacks one after the other
+                    SourceFileInfo sfiGuess = bChain ? asfiPrevious[sfiIn.iWavelength] : null;
+                    if (!deconvolveTiles(sfiIn, pOTF, sfiGuess, sfiOut, sched)) {
+                        deleteFiles(vOutFileInfos);
+                        return null;
+                    }
+                    asfiPrevious[sfiIn.iWavelength] = sfiOut;
+                    continue;
+                }
+
+                DecoClient client = new DecoClient(sfiIn, pOTF, sfiOut);
+                client.strCheckpointFile = getCheckpointFile(sfiIn);
+                vClients.add(client);
+                
+                if (bChain) {
+                    client.sfiGuess = asfiPrevious[sfiIn.iWavelength];
+                    asfiPrevious[sfiIn.iWavelength] = sfiOut;
+                    if (avChains[sfiIn.iWavelength] == null) {
+                        avChains[sfiIn.iWavelength] = new ArrayList();
+                    }
+                    avChains[sfiIn.iWavelength].add(client);
+                }
+            }
+
+            List vChains = new ArrayList();
+            for (int w=0; w<avChains.length; w++) {
+                if (avChains[w] != null) {
+                    vChains.add(avChains[w]);
+                }
+            }
+            boolean bOK = true;
+            if (sched != null && !vClients.isEmpty()) {
+                bOK = vChains.isEmpty() ? sched.runAll(vClients) : sched.runChains(vChains);
+            }
+            if (!bOK) {
+                deleteFiles(vOutFileInfos);
+                return null;
+            }
+        } finally {
+            if (sched != null && sched != scheduler) {
+                sched.shutdown();
+            }
+            for (int w=0; w<apOTF.length; w++) {
+                if (apOTF[w] != null) {
+                    DecoClient.DecoJNA.INSTANCE.destroyOTF(apOTF[w]);
+                }
+            }
+        }
+        return vOutFileInfos;
+    }
+    
+    /** Returns the info of the output stack of sfiIn. An in-memory input
+     *  stack is replaced by the result, other results are written to a new
+     *  temp file. Returns null if the temp file could not be created. */
+    SourceFileInfo createOutputInfo(SourceFileInfo sfiIn) {
+        String[] astrSplit = splitPath(sfiIn.strPath);
+        String strOutFile = astrSplit[NAME] + OUTSUFFIX;
+        if (!sfiIn.isInMemory()) {
             try {
                 strOutFile = File.createTempFile(astrSplit[NAME], OUTSUFFIX).getAbsolutePath();
             } catch (IOException e) {
                 IJ.write(""+ e +"Unable to create temp file " + strOutFile);
-                deleteFiles(vOutFileInfos);
                 return null;
             }
-            
-            SourceFileInfo sfiPsf = (SourceFileInfo)vPsfFileInfos.get(sfiIn.iWavelength);
+        }
+        SourceFileInfo sfiOut = (SourceFileInfo) sfiIn.clone();
+        sfiOut.strPath = strOutFile;
+        return sfiOut;
+    }
+    
+    //==========================================================================
+    // Tiled deconvolution
+    //==========================================================================
+    
+    /** Set tiles if the stacks of the current file must be split into tiles
+     *  to fit in the memory budget. The tiles are made small enough for
+     *  all jobs of the scheduler to run at once, unless that would make them
+     *  smaller than the PSF. Returns false if the stacks do not fit even
+     *  when tiled. */
+    boolean chooseTiles(SourceFileInfo sfiStack, List vPsfFileInfos, DecoScheduler sched) {
+        DecoOptions options = sfiStack.options;
+        if (options.iTiles == DecoOptions.TILES_OFF) {
+            return true;
+        }
+        Pointer[] apOTF = createOTFTemplates(options, vPsfFileInfos);
+        try {
+            return chooseTiles(sfiStack, vPsfFileInfos, apOTF, sched);
+        } finally {
+            destroyOTFs(apOTF);
+        }
+    }
+    
+    /** Returns an OTF of each PSF at the size of the PSF itself, in the form
+     *  the options create. The tiles are not chosen yet, so these stand in
+     *  for the OTFs of the tiles when their memory is estimated: whether the
+     *  OTF is in cosine form, has an odd part or only a real part does not
+     *  depend on its size, and an OTF padded as far as its PSF reaches
+     *  keeps the planes of the PSF it pads for. OTFs that cannot be created
+     *  are null, and their stacks are estimated as complex and twice their
+     *  depth. */
+    Pointer[] createOTFTemplates(DecoOptions options, List vPsfFileInfos) {
+        Pointer[] apOTF = new Pointer[vPsfFileInfos == null ? 0 : vPsfFileInfos.size()];
+        for (int i=0; i<apOTF.length; i++) {
+            SourceFileInfo sfiPsf = (SourceFileInfo)vPsfFileInfos.get(i);
             if (sfiPsf == null) {
-                IJ.write("No PSF file for wavelength " + sfiIn.iWavelength);
-                return null;
+                continue;
             }
-            
-            SourceFileInfo sfiOut = (SourceFileInfo) sfiIn.clone();
-            sfiOut.strPath = strOutFile;
-            
-            if (!deconvolveFile(sfiIn, sfiPsf, sfiOut)) {
-                deleteFiles(vOutFileInfos);
-                return null;
+            SourceFileInfo sfiSize = (SourceFileInfo) sfiPsf.clone();
+            sfiSize.options = options;
+            apOTF[i] = DecoClient.createOTF(sfiPsf, sfiSize);
+        }
+        return apOTF;
+    }
+    
+    /** Destroy the OTFs of createOTFTemplates */
+    static void destroyOTFs(Pointer[] apOTF) {
+        for (int i=0; i<apOTF.length; i++) {
+            if (apOTF[i] != null) {
+                DecoClient.DecoJNA.INSTANCE.destroyOTF(apOTF[i]);
+            }
+        }
+    }
+    
+    /** chooseTiles with OTFs like those of the tiles, see createOTFTemplates */
+    boolean chooseTiles(SourceFileInfo sfiStack, List vPsfFileInfos, Pointer[] apOTF, DecoScheduler sched) {
+        DecoOptions options = sfiStack.options;
+        long lBudget = sched.getMemoryBudget();
+        if (DecoScheduler.estimateJobMemory(options, apOTF, sfiStack.iWidth, sfiStack.iHeight, sfiStack.iDepth) <= lBudget) {
+            return true;
+        }
+        
+        // the tiles must hold the largest PSF
+        int iPsfWidth = 1, iPsfHeight = 1, iPsfDepth = 1;
+        int i, len=vPsfFileInfos.size();
+        for (i=0; i<len; i++) {
+            SourceFileInfo sfiPsf = (SourceFileInfo)vPsfFileInfos.get(i);
+            iPsfWidth = Math.max(iPsfWidth, sfiPsf.iWidth);
+            iPsfHeight = Math.max(iPsfHeight, sfiPsf.iHeight);
+            iPsfDepth = Math.max(iPsfDepth, sfiPsf.iDepth);
+        }
+        
+        tiles = DecoTiles.create(options, apOTF, sfiStack.iWidth, sfiStack.iHeight, sfiStack.iDepth,
+                iPsfWidth, iPsfHeight, iPsfDepth, lBudget / sched.getNumJobs());
+        if (tiles == null) {
+            tiles = DecoTiles.create(options, apOTF, sfiStack.iWidth, sfiStack.iHeight, sfiStack.iDepth,
+                    iPsfWidth, iPsfHeight, iPsfDepth, lBudget);
+        }
+        if (tiles == null) {
+            IJ.write("Tiles the size of the PSF need more than the memory budget of "
+                    +(lBudget/DecoScheduler.MB)+" MB");
+            return false;
+        }
+        IJ.write("Deconvolving each stack in "+tiles);
+        return true;
+    }
+    
+    /** Returns the info of an in-memory copy of tile iTile of a stack. Only
+     *  the size is set if stack is null. */
+    SourceFileInfo createTileInfo(SourceFileInfo sfiStack, ImageStack stack, int iTile) {
+        SourceFileInfo sfiTile = (SourceFileInfo) sfiStack.clone();
+        sfiTile.iWidth = tiles.iTileWidth;
+        sfiTile.iHeight = tiles.iTileHeight;
+        sfiTile.iDepth = tiles.iTileDepth;
+        sfiTile.asfiSnapshots = null;
+        sfiTile.strPath = sfiStack.strPath + "_tile" + (iTile+1);
+        sfiTile.strFilename = sfiStack.strFilename + " tile " + (iTile+1) + "/" + tiles.getNumTiles();
+        sfiTile.setStack(stack == null ? null : tiles.crop(stack, iTile));
+        return sfiTile;
+    }
+    
+    /** Returns the pixel data of a stack, reading it from its raw file if
+     *  it is not in memory. Returns null if the file could not be read. */
+    ImageStack readStack(SourceFileInfo sfi) {
+        if (sfi.isInMemory()) {
+            return sfi.getStack();
+        }
+        FileInfo fiNew = new FileInfo();
+        fiNew.fileFormat = FileInfo.RAW;
+        switch (sfi.iType) {
+            case ImagePlus.COLOR_256:
+            case ImagePlus.GRAY8:
+                fiNew.fileType = FileInfo.GRAY8;
+                break;
+            case ImagePlus.GRAY16:
+                fiNew.fileType = FileInfo.GRAY16_UNSIGNED;
+                break;
+            default:
+                fiNew.fileType = FileInfo.GRAY32_FLOAT;
+                break;
+        }
+        String[] astrSplit = splitPath(sfi.strPath);
+        fiNew.fileName = astrSplit[NAME] + astrSplit[EXTENSION];
+        fiNew.directory = astrSplit[PATH];
+        fiNew.width = sfi.iWidth;
+        fiNew.height = sfi.iHeight;
+        fiNew.nImages = sfi.iDepth;
+        fiNew.intelByteOrder = false;
+        ImagePlus imp = (new FileOpener(fiNew)).open(false);
+        if (imp == null) {
+            IJ.write("Could not read stack file "+sfi.strPath);
+            return null;
+        }
+        return imp.getStack();
+    }
+    
+    /** Store a 32-bit result in sfi, in memory if sfi is an in-memory stack
+     *  and in its raw file otherwise */
+    static void storeStack(SourceFileInfo sfi, ImageStack stack) {
+        sfi.iType = ImagePlus.GRAY32;
+        if (sfi.isInMemory()) {
+            sfi.setStack(stack);
+        } else {
+            (new FileSaver(new ImagePlus("", stack))).saveAsRawStack(sfi.strPath);
+        }
+    }
+    
+    /** Deconvolve one stack tile by tile, running the tiles at the same
+     *  time as far as the memory budget allows, and blend the results and
+     *  their EM snapshots into sfiOut. EM starts each tile from the same
+     *  tile of sfiGuess if it is not null. Only the tiles that are running
+     *  are held in memory next to the whole stacks, see TileClient. */
+    boolean deconvolveTiles(SourceFileInfo sfiIn, Pointer pOTF, SourceFileInfo sfiGuess,
+            SourceFileInfo sfiOut, DecoScheduler sched) {
+        ImageStack stkIn = readStack(sfiIn);
+        ImageStack stkGuess = sfiGuess == null ? null : readStack(sfiGuess);
+        if (stkIn == null) {
+            return false;
+        }
+        
+        // the snapshots are blended like the result
+        int[] aiIterations = DecoClient.isIterative(sfiIn.options.iMethod)
+                ? DecoClient.getSnapshotIterations(sfiIn.options) : new int[0];
+        int i, nSnapshots = aiIterations.length;
+        ImageStack stkOut = tiles.createBlendStack();
+        ImageStack[] astkSnapshots = new ImageStack[nSnapshots];
+        for (i=0; i<nSnapshots; i++) {
+            astkSnapshots[i] = tiles.createBlendStack();
+        }
+        
+        int iTile, nTiles = tiles.getNumTiles();
+        List vClients = new ArrayList();
+        for (iTile=0; iTile<nTiles; iTile++) {
+            TileClient client = new TileClient(sfiIn, pOTF, iTile, stkIn, stkOut, astkSnapshots);
+            client.strCheckpointFile = getCheckpointFile(sfiIn, iTile);
+            if (stkGuess != null) {
+                client.sfiGuess = createTileInfo(sfiGuess, null, iTile);
+                client.stkGuess = stkGuess;
+            }
+            vClients.add(client);
+        }
+        if (!sched.runAll(vClients)) {
+            return false;
+        }
+        storeStack(sfiOut, stkOut);
+        
+        // a tile whose snapshots could not be created leaves them out
+        for (iTile=0; iTile<nTiles; iTile++) {
+            nSnapshots = Math.min(nSnapshots, ((TileClient)vClients.get(iTile)).nSnapshotsBlended);
+        }
+        sfiOut.asfiSnapshots = nSnapshots == 0 ? null : new SourceFileInfo[nSnapshots];
+        for (i=0; i<nSnapshots; i++) {
+            SourceFileInfo sfiSnapshot = (SourceFileInfo) sfiOut.clone();
+            sfiSnapshot.asfiSnapshots = null;
+            sfiSnapshot.strPath = sfiOut.strPath + "_it" + aiIterations[i];
+            storeStack(sfiSnapshot, astkSnapshots[i]);
+            sfiOut.asfiSnapshots[i] = sfiSnapshot;
+        }
+        return true;
+    }
+    
+    /** Deconvolves one tile of a stack. The tile is only cropped from the
+     *  whole stack once the scheduler has admitted the job, and its result
+     *  and snapshots are blended into the whole stacks as soon as it is
+     *  done and then dropped. */
+    class TileClient extends DecoClient {
+        int iTile;
+        ImageStack stkIn;
+        ImageStack stkGuess = null;		// whole stack sfiGuess is cropped from, or null
+        ImageStack stkOut;
+        ImageStack[] astkSnapshots;
+        int nSnapshotsBlended = 0;
+        
+        TileClient(SourceFileInfo sfiStack, Pointer pOTF, int iTile, ImageStack stkIn,
+                ImageStack stkOut, ImageStack[] astkSnapshots) {
+            super(createTileInfo(sfiStack, null, iTile), pOTF, null);
+            sfiOut = (SourceFileInfo) sfiIn.clone();
+            this.iTile = iTile;
+            this.stkIn = stkIn;
+            this.stkOut = stkOut;
+            this.astkSnapshots = astkSnapshots;
+        }
+        
+        public void run() {
+            // the result replaces the in-memory input, see retrieveStack
+            sfiIn.setStack(tiles.crop(stkIn, iTile));
+            sfiOut.setStack(sfiIn.getStack());
+            if (stkGuess != null) {
+                sfiGuess.setStack(tiles.crop(stkGuess, iTile));
+            }
+            try {
+                super.run();
+            } finally {
+                sfiIn.setStack(null);
+                if (stkGuess != null) {
+                    sfiGuess.setStack(null);
+                }
+            }
+            if (success) {
+                blendResults();
+            }
+            sfiOut.setStack(null);
+            sfiOut.asfiSnapshots = null;
+        }
+        
+        /** Add the result and the snapshots of this tile to the whole stacks.
+         *  Neighbouring tiles overlap, so one tile is blended at a time. */
+        void blendResults() {
+            synchronized (stkOut) {
+                tiles.blend(stkOut, sfiOut.getStack(), iTile);
+                int n = sfiOut.asfiSnapshots == null ? 0 : sfiOut.asfiSnapshots.length;
+                nSnapshotsBlended = Math.min(n, astkSnapshots.length);
+                for (int i=0; i<nSnapshotsBlended; i++) {
+                    tiles.blend(astkSnapshots[i], sfiOut.asfiSnapshots[i].getStack(), iTile);
+                }
             }
-            
-            vOutFileInfos.add(sfiOut);
         }
-        return vOutFileInfos;
     }
     
     /** Start deconvolution on a single file */
@@ -400,5 +979,18 @@ public class Deconvolver /*implements Runnable*/ {
         return client.success;
     }
     
+    /** Start deconvolution on a single file using a previously created OTF */
+    public boolean deconvolveFile(SourceFileInfo sfiIn, Pointer pOTF, SourceFileInfo sfiOut) {
+        DecoClient client = new DecoClient(sfiIn, pOTF, sfiOut);
+        client.success = false;
+        client.start();
+        try {
+            client.join();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return client.success;
+    }
+    
 }
 
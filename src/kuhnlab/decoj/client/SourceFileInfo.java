@@ -16,6 +16,8 @@ package kuhnlab.decoj.client;
 
 
 import ij.*;
+import ij.io.*;
+import java.io.*;
 import java.lang.*;
 
 /** Holds file information for deconvolution processing. */
@@ -31,6 +33,8 @@ public class SourceFileInfo implements Cloneable {
     public String 			strFilename		=null;
     public String 			strLayoutFile	=null;
     protected ImagePlus		imp				=null;
+    protected ImageStack	stkData			=null;
+    public SourceFileInfo[]	asfiSnapshots	=null;	// EM results at options.aiSnapshotIterations
     
     public SourceFileInfo() {}
     
@@ -64,6 +68,44 @@ public class SourceFileInfo implements Cloneable {
         return imp;
     }
     
+    /** Fill in the width and height of a file that has not been opened yet
+     *	from its TIFF header. Returns false if the size is not known. */
+    public boolean readImageSize() {
+        if (iWidth > 0 && iHeight > 0)
+            return true;
+        if (imp != null || strPath == null || strFilename == null)
+            return false;
+        String strDir = strPath;
+        if (!strDir.endsWith(File.separator))
+            strDir += File.separator;
+        try {
+            FileInfo[] afi = (new TiffDecoder(strDir, strFilename)).getTiffInfo();
+            if (afi == null || afi.length == 0)
+                return false;
+            iWidth = afi[0].width;
+            iHeight = afi[0].height;
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+    
+    /** Keep the pixel data of this stack in memory instead of in the file
+     *	strPath. */
+    public void setStack(ImageStack stkData) {
+        this.stkData = stkData;
+    }
+    
+    public ImageStack getStack() {
+        return stkData;
+    }
+    
+    /** Returns true if the pixel data is held in memory rather than in a
+     *	raw file. */
+    public boolean isInMemory() {
+        return stkData != null;
+    }
+    
     public Object clone() {
         try {
             return super.clone();
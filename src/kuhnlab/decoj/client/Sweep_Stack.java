@@ -0,0 +1,127 @@
+//   Copyright 2013 Jeffrey R. Kuhn
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package kuhnlab.decoj.client;
+
+
+import ij.*;
+import ij.io.*;
+import ij.gui.*;
+import ij.process.*;
+import ij.plugin.filter.*;
+import java.util.StringTokenizer;
+
+/** Deconvolve the open stack with LLS or MAP for a list of thresholds or
+ *  alphas and show the results side by side as the channels of one
+ *  hyperstack. */
+public class Sweep_Stack implements PlugInFilter {
+    static final String TITLE = "Regularization Sweep";
+    ImagePlus imp;
+    
+    public int setup(String arg, ImagePlus imp) {
+        this.imp = imp;
+        if (IJ.versionLessThan("1.46"))
+            return DONE;
+        else
+            return DOES_8C + DOES_8G + DOES_16 + DOES_32 + STACK_REQUIRED;
+    }
+    
+    public void run(ImageProcessor ip) {
+        if (imp == null) {
+            IJ.showMessage(TITLE, "No images are open.");
+            return;
+        }
+        
+        // prompt the user for deconvolution options
+        DecoOptions options = new DecoOptions();
+        DecoOptionsDlg dlg = new DecoOptionsDlg(IJ.getInstance(), options, true);
+        dlg.show();
+        
+        if (dlg.wasCanceled())
+            return;
+        
+        int iMethod = options.iMethod;
+        if (iMethod != DecoOptions.METHOD_LLS && iMethod != DecoOptions.METHOD_MAP) {
+            IJ.showMessage(TITLE, "Only the lls and map methods can be swept.");
+            return;
+        }
+        boolean bLLS = iMethod == DecoOptions.METHOD_LLS;
+        String strParam = bLLS ? "thresh" : "alpha";
+        double dParam = bLLS ? options.dLLSThreshold : options.dMAPAlpha;
+        
+        // ask for the values, one decade around the chosen one by default
+        GenericDialog gd = new GenericDialog(TITLE);
+        gd.addStringField((bLLS ? "Thresholds" : "Alphas")+" (comma separated):",
+                (dParam/10)+", "+(dParam/3)+", "+dParam+", "+(dParam*3)+", "+(dParam*10), 40);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        double[] adParams = parseValues(gd.getNextString());
+        if (adParams == null) {
+            IJ.showMessage(TITLE, "Enter one or more numbers separated by commas.");
+            return;
+        }
+        
+        String strPsfFile = options.astrPsfFile[0];
+        ImagePlus impPsf = (new Opener()).openImage(strPsfFile);
+        if (impPsf == null) {
+            IJ.write("Unable to open PSF file "+strPsfFile);
+            return;
+        }
+        SourceFileInfo sfiPsf = new SourceFileInfo(impPsf, options);
+        sfiPsf.setStack(impPsf.getStack());
+        SourceFileInfo sfiIn = new SourceFileInfo(imp, options);
+        sfiIn.setStack(imp.getStack());
+        
+        IJ.write("Sweeping "+strParam+" of "+sfiIn.strFilename+" over "+adParams.length+" values");
+        ImageStack[] aStacks = DecoClient.sweep(sfiIn, sfiPsf, iMethod, adParams);
+        if (aStacks == null) {
+            IJ.write("Error sweeping "+sfiIn.strFilename);
+            return;
+        }
+        
+        // interleave the results so that each value is one channel
+        int nParams = adParams.length;
+        int iDepth = sfiIn.iDepth;
+        ImageStack stkOut = new ImageStack(sfiIn.iWidth, sfiIn.iHeight);
+        for (int z=1; z<=iDepth; z++) {
+            for (int i=0; i<nParams; i++) {
+                stkOut.addSlice(strParam+"="+adParams[i], aStacks[i].getProcessor(z));
+            }
+        }
+        ImagePlus impOut = new ImagePlus(sfiIn.strFilename+"_sweep", stkOut);
+        impOut.setDimensions(nParams, iDepth, 1);
+        impOut.setOpenAsHyperStack(true);
+        impOut.setCalibration(imp.getCalibration());
+        impOut.show();
+    }
+    
+    /** Parse a comma separated list of numbers. Returns null if the list is
+     *	empty or contains something that is not a number. */
+    static double[] parseValues(String strValues) {
+        StringTokenizer st = new StringTokenizer(strValues, ", ");
+        int n = st.countTokens();
+        if (n == 0)
+            return null;
+        double[] adValues = new double[n];
+        try {
+            for (int i=0; i<n; i++) {
+                adValues[i] = Double.parseDouble(st.nextToken());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return adValues;
+    }
+}
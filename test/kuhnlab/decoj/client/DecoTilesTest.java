@@ -0,0 +1,241 @@
+//   Copyright 2013 Jeffrey R. Kuhn
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package kuhnlab.decoj.client;
+
+
+import ij.*;
+import ij.process.*;
+import com.sun.jna.Pointer;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.Assume;
+import static org.junit.Assert.*;
+
+/** Tests the tiling of stacks that do not fit in the memory budget. The
+ *  deconvolution test needs the DecoJNA library on jna.library.path and is
+ *  skipped without it. */
+public class DecoTilesTest {
+
+    /** The blending weights of the tiles along one axis add up to 1 at
+     *  every pixel, for tiles that overlap by more or less than a third */
+    @Test
+    public void testWeightsAddUpToOne() {
+        int[][] aaiSizes = {{64, 40, 9}, {100, 30, 8}, {17, 9, 4}, {50, 50, 9}, {200, 31, 30}};
+        for (int k=0; k<aaiSizes.length; k++) {
+            int iSize = aaiSizes[k][0], iTileSize = aaiSizes[k][1], iOverlap = aaiSizes[k][2];
+            int[] aiStarts = DecoTiles.getStarts(iSize, iTileSize, iOverlap);
+            float[][] aafWeight = DecoTiles.getWeights(iSize, iTileSize, aiStarts);
+            assertEquals(iSize, aiStarts[aiStarts.length-1] + iTileSize);
+            double[] adTotal = new double[iSize];
+            for (int i=0; i<aiStarts.length; i++) {
+                for (int p=0; p<iTileSize; p++) {
+                    adTotal[aiStarts[i] + p] += aafWeight[i][p];
+                }
+            }
+            for (int p=0; p<iSize; p++) {
+                assertEquals("weight at "+p+" of "+iSize+" in tiles of "+iTileSize, 1.0, adTotal[p], 1e-6);
+            }
+        }
+    }
+
+    /** Cropping a stack into tiles and blending them back gives the stack */
+    @Test
+    public void testCropAndBlend() {
+        DecoTiles tiles = new DecoTiles(50, 40, 20, 24, 22, 12, 6, 6, 4);
+        assertEquals(3 * 3 * 2, tiles.getNumTiles());
+        ImageStack stack = createStack(50, 40, 20);
+        Random random = new Random(1);
+        for (int z=1; z<=20; z++) {
+            float[] af = (float[]) stack.getPixels(z);
+            for (int i=0; i<af.length; i++) {
+                af[i] = random.nextFloat();
+            }
+        }
+        ImageStack stkBlend = tiles.createBlendStack();
+        for (int iTile=0; iTile<tiles.getNumTiles(); iTile++) {
+            tiles.blend(stkBlend, tiles.crop(stack, iTile), iTile);
+        }
+        assertTrue(getMaxDifference(stack, stkBlend) < 1e-5);
+    }
+
+    /** EM of a stack tile by tile gives the result of EM of the whole stack,
+     *  apart from the edge artifacts of the tiles across their overlaps.
+     *  The beads and the compared voxels keep away from the edges of the
+     *  stack, which wrap around differently in a tile. */
+    @Test
+    public void testTiledMatchesWhole() {
+        Assume.assumeTrue(isNativeAvailable());
+        int iWidth = 64, iHeight = 64, iDepth = 12;
+        DecoOptions options = new DecoOptions();
+        options.iNumIterations = 5;
+        options.aiSnapshotIterations = new int[] {2};
+        options.iTiles = DecoOptions.TILES_XY;
+        options.iConcurrentJobs = 2;
+        options.iMemoryBudgetMB = 1024;
+
+        SourceFileInfo sfiPsf = createInfo(createGaussian(9, 9, 5, 1.5, 1.0), options);
+        ImageStack stkPsf = sfiPsf.getStack();
+        ImageStack stkImage = createStack(iWidth, iHeight, iDepth);
+        Random random = new Random(2);
+        for (int i=0; i<30; i++) {
+            addPsf(stkImage, stkPsf, 9 + random.nextInt(iWidth - 26), 9 + random.nextInt(iHeight - 26),
+                    random.nextInt(iDepth - 4), 100 * (1 + random.nextFloat()));
+        }
+        for (int z=1; z<=iDepth; z++) {
+            ((FloatProcessor) stkImage.getProcessor(z)).add(1.0);
+        }
+        SourceFileInfo sfiIn = createInfo(stkImage, options);
+
+        // the whole stack
+        SourceFileInfo sfiWhole = createInfo(createStack(iWidth, iHeight, iDepth), options);
+        Pointer pOTF = DecoClient.createOTF(sfiPsf, sfiIn);
+        assertNotNull(pOTF);
+        DecoClient client = new DecoClient(sfiIn, pOTF, sfiWhole);
+        client.run();
+        DecoClient.DecoJNA.INSTANCE.destroyOTF(pOTF);
+        assertTrue(client.success);
+
+        // 2 x 2 tiles that overlap by 16 pixels
+        Deconvolver deconvolver = new Deconvolver();
+        deconvolver.tiles = new DecoTiles(iWidth, iHeight, iDepth, 40, 40, iDepth, 9, 9, 5);
+        assertEquals(4, deconvolver.tiles.getNumTiles());
+        SourceFileInfo sfiTiled = createInfo(createStack(iWidth, iHeight, iDepth), options);
+        pOTF = DecoClient.createOTF(sfiPsf, deconvolver.createTileInfo(sfiIn, null, 0));
+        assertNotNull(pOTF);
+        DecoScheduler sched = new DecoScheduler(options);
+        boolean bOK = deconvolver.deconvolveTiles(sfiIn, pOTF, null, sfiTiled, sched);
+        sched.shutdown();
+        DecoClient.DecoJNA.INSTANCE.destroyOTF(pOTF);
+        assertTrue(bOK);
+
+        compareTiled("result", sfiWhole.getStack(), sfiTiled.getStack());
+        assertEquals(1, sfiTiled.asfiSnapshots.length);
+        compareTiled("snapshot", sfiWhole.asfiSnapshots[0].getStack(), sfiTiled.asfiSnapshots[0].getStack());
+    }
+
+    /** Compare EM of the 64 x 64 stack of testTiledMatchesWhole with EM of
+     *  its tiles. The tiles see the edge artifacts of their own borders
+     *  across the overlaps, x and y from 24 to 39, and only the far edges
+     *  elsewhere. */
+    static void compareTiled(String strWhich, ImageStack stkWhole, ImageStack stkTiled) {
+        int iWidth = stkWhole.getWidth(), iHeight = stkWhole.getHeight();
+        double dMax = getMax(stkWhole);
+        double dInside = 0, dOverlap = 0, dWholeSum = 0, dTiledSum = 0;
+        for (int z=1; z<=stkWhole.getSize(); z++) {
+            float[] afWhole = (float[]) stkWhole.getPixels(z);
+            float[] afTiled = (float[]) stkTiled.getPixels(z);
+            for (int y=9; y<iHeight-9; y++) {
+                for (int x=9; x<iWidth-9; x++) {
+                    int i = y*iWidth + x;
+                    double dDifference = Math.abs(afWhole[i] - afTiled[i]) / dMax;
+                    if ((x >= 24 && x < 40) || (y >= 24 && y < 40)) {
+                        dOverlap = Math.max(dOverlap, dDifference);
+                    } else {
+                        dInside = Math.max(dInside, dDifference);
+                    }
+                    dWholeSum += afWhole[i];
+                    dTiledSum += afTiled[i];
+                }
+            }
+        }
+        assertTrue("tiled EM "+strWhich+" differs by "+dInside+" of the maximum inside the tiles",
+                dInside < 0.02);
+        assertTrue("tiled EM "+strWhich+" differs by "+dOverlap+" of the maximum across the overlaps",
+                dOverlap < 0.15);
+        assertEquals("total intensity of the tiled EM "+strWhich, 1.0, dTiledSum / dWholeSum, 0.05);
+    }
+
+    static boolean isNativeAvailable() {
+        try {
+            return DecoClient.DecoJNA.INSTANCE != null;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    static ImageStack createStack(int iWidth, int iHeight, int iDepth) {
+        ImageStack stack = new ImageStack(iWidth, iHeight);
+        for (int z=0; z<iDepth; z++) {
+            stack.addSlice("", new FloatProcessor(iWidth, iHeight));
+        }
+        return stack;
+    }
+
+    static SourceFileInfo createInfo(ImageStack stack, DecoOptions options) {
+        SourceFileInfo sfi = new SourceFileInfo("WINDOW", "test", options);
+        sfi.iType = ImagePlus.GRAY32;
+        sfi.iWidth = stack.getWidth();
+        sfi.iHeight = stack.getHeight();
+        sfi.iDepth = stack.getSize();
+        sfi.setStack(stack);
+        return sfi;
+    }
+
+    /** Returns a Gaussian PSF centred in a stack of the given size */
+    static ImageStack createGaussian(int iWidth, int iHeight, int iDepth, double dSigmaXY, double dSigmaZ) {
+        ImageStack stack = createStack(iWidth, iHeight, iDepth);
+        for (int z=0; z<iDepth; z++) {
+            float[] af = (float[]) stack.getPixels(z+1);
+            double dz = (z - iDepth/2) / dSigmaZ;
+            for (int y=0; y<iHeight; y++) {
+                double dy = (y - iHeight/2) / dSigmaXY;
+                for (int x=0; x<iWidth; x++) {
+                    double dx = (x - iWidth/2) / dSigmaXY;
+                    af[y*iWidth + x] = (float) Math.exp(-0.5 * (dx*dx + dy*dy + dz*dz));
+                }
+            }
+        }
+        return stack;
+    }
+
+    /** Add a bead blurred by the PSF with its corner at x0, y0, z0 */
+    static void addPsf(ImageStack stack, ImageStack stkPsf, int x0, int y0, int z0, float fValue) {
+        int iWidth = stack.getWidth();
+        int iPsfWidth = stkPsf.getWidth();
+        for (int z=0; z<stkPsf.getSize(); z++) {
+            float[] afDest = (float[]) stack.getPixels(z0 + z + 1);
+            float[] afPsf = (float[]) stkPsf.getPixels(z + 1);
+            for (int y=0; y<stkPsf.getHeight(); y++) {
+                for (int x=0; x<iPsfWidth; x++) {
+                    afDest[(y0 + y)*iWidth + x0 + x] += fValue * afPsf[y*iPsfWidth + x];
+                }
+            }
+        }
+    }
+
+    static double getMax(ImageStack stack) {
+        double dMax = 0;
+        for (int z=1; z<=stack.getSize(); z++) {
+            float[] af = (float[]) stack.getPixels(z);
+            for (int i=0; i<af.length; i++) {
+                dMax = Math.max(dMax, af[i]);
+            }
+        }
+        return dMax;
+    }
+
+    /** Returns the largest difference between two stacks of the same size */
+    static double getMaxDifference(ImageStack stkA, ImageStack stkB) {
+        double dMax = 0;
+        for (int z=1; z<=stkA.getSize(); z++) {
+            float[] afA = (float[]) stkA.getPixels(z);
+            float[] afB = (float[]) stkB.getPixels(z);
+            for (int i=0; i<afA.length; i++) {
+                dMax = Math.max(dMax, Math.abs(afA[i] - afB[i]));
+            }
+        }
+        return dMax;
+    }
+}